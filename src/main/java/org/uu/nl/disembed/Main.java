@@ -60,7 +60,7 @@ public class Main {
                 if(precomputedEmbedding) {
 
                     // check cluster config for location of embedding to load
-                    EmbeddingReader reader = new EmbeddingReader();
+                    EmbeddingReader reader = new EmbeddingReader(config.getThreads());
                     logger.info("Loading embedding from file...");
                     embedding = reader.load(inputConfig.getEmbedding().getImportFile());
 
@@ -72,7 +72,8 @@ public class Main {
 
                     if(precomputedBCA) {
                         logger.info("Loading in pre-computed co-occurrence matrix...");
-                        bca = new BookmarkColoring(new BCAReader().load(inputConfig.getBca().getImportFile()), config);
+                        BCAReader reader = new BCAReader(config.getThreads(), inputConfig.getBca().isMmap());
+                        bca = new BookmarkColoring(reader.load(inputConfig.getBca().getImportFile()), config);
                     } else {
 
                         InMemoryRdfGraph graph;
@@ -94,9 +95,27 @@ public class Main {
                     logger.info("Loaded in BCA sparse matrix, approximate RAM usage: " + bca.calculateMemoryMegaBytes() + " MB");
 
 
-                    embedding = createOptimizer(config, bca).optimize();
+                    // The statistics are written next to the embedding, so only if the embedding is written
+                    final boolean writeEmbedding = intermediateOutputConfig != null && intermediateOutputConfig.getEmbedding() != null;
 
-                    if(intermediateOutputConfig.getEmbedding() != null) {
+                    IOptimizer optimizer = createOptimizer(config, bca);
+                    try {
+                        embedding = optimizer.optimize();
+                    } catch (Throwable e) {
+                        // Also write the statistics of a failed run, they show where training started to diverge,
+                        // without replacing the failure if writing fails as well
+                        if(writeEmbedding) {
+                            try {
+                                new TrainingStatisticsWriter(config, optimizer.getStatistics()).write();
+                            } catch (Throwable writeFailure) {
+                                e.addSuppressed(writeFailure);
+                            }
+                        }
+                        throw e;
+                    }
+
+                    if(writeEmbedding) {
+                        new TrainingStatisticsWriter(config, optimizer.getStatistics()).write();
                         getWriter(embedding, config).write();
                     }
                 }
@@ -150,10 +169,11 @@ public class Main {
         }
     }
 
-    private static EmbeddingWriter getWriter(Embedding embedding, Configuration config) {
+    private static Writer getWriter(Embedding embedding, Configuration config) {
         return switch (config.getIntermediateOutput().getEmbedding().getWriterEnum()) {
             case GLOVE -> new GloVeWriter(embedding, config);
             case WORD2VEC -> new Word2VecWriter(embedding, config);
+            case BINARY -> new BinaryEmbeddingWriter(embedding, config);
         };
     }
 
@@ -0,0 +1,106 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.concurrent.*;
+
+/**
+ * Candidate generation between a source and a target set of entities. The HNSW index only holds the target entities
+ * and is queried by the source entities, so every pair links a source to a target entity.
+ */
+public class BipartiteCandidatePairs implements CandidateGenerator {
+
+    private final static Logger logger = Logger.getLogger(BipartiteCandidatePairs.class);
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final Embedding embedding;
+    private final int[] sources;
+    private final int[] targets;
+    private final HnswGraph graph;
+    private final int threads;
+
+    public BipartiteCandidatePairs(Embedding embedding, int[] sources, int[] targets, Configuration config) {
+        final ClusterConfiguration.Candidates candidates = config.getClustering().getCandidates();
+        this.embedding = embedding;
+        this.sources = sources;
+        this.targets = targets;
+        this.threads = config.getThreads();
+
+        logger.info("Adding " + targets.length + " target entities to approximate nearest neighbor index with m = "
+                + candidates.getM() + " and ef = " + candidates.getEf());
+
+        final String[] keys = new String[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            keys[i] = embedding.getKeys()[targets[i]];
+        }
+        final long start = System.nanoTime();
+        this.graph = HnswGraph.build(targets.length, keys, (a, b) -> embedding.cosineSimilarity(targets[a], targets[b]),
+                candidates.getM(), candidates.getEf(), candidates.getEfConstruction(), threads);
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Built index of " + targets.length + " entities in " + String.format("%.2f", seconds) + " s");
+    }
+
+    public HnswGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Find the k approximate nearest target entities of every source entity
+     */
+    @Override
+    public EdgeList getCandidatePairs(int k, float theta) {
+
+        final int n = sources.length;
+        // The query is an entity, the node is a target
+        final HnswGraph.Similarity similarity = (query, node) -> embedding.cosineSimilarity(query, targets[node]);
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<EdgeList> completionService = new ExecutorCompletionService<>(es);
+
+        final ThreadLocal<HnswGraph.Search> searches = graph.searches();
+        final int batches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+        for (int batch = 0; batch < batches; batch++) {
+            final int from = batch * BATCH_SIZE;
+            final int to = Math.min(n, from + BATCH_SIZE);
+            completionService.submit(() -> {
+                final HnswGraph.Search search = searches.get();
+                final TopK nearest = new TopK(k);
+                final EdgeList pairs = new EdgeList((to - from) * k);
+                for (int i = from; i < to; i++) {
+                    final int a = sources[i];
+                    graph.search(a, similarity, search, nearest);
+                    for (int h = 0; h < nearest.size(); h++) {
+                        final float s = nearest.score(h);
+                        if(s >= theta) pairs.add(a, targets[nearest.index(h)], s);
+                    }
+                }
+                return pairs;
+            });
+        }
+
+        // Every pair is found once, from its source entity
+        final EdgeList pairs = new EdgeList(n);
+        try (ProgressBar pb = Progress.progressBar("Bipartite Nearest Neighbors", n, "entities")) {
+            for (int received = 0; received < batches; received++) {
+                pairs.addAll(completionService.take().get());
+                pb.stepTo(Math.min(n, (long) (received + 1) * BATCH_SIZE));
+                pb.setExtraMessage(Integer.toString(pairs.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving nearest neighbors", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not retrieve nearest neighbors", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,14 @@
+package org.uu.nl.disembed.clustering;
+
+/**
+ * Finds the pairs of entities that are similar enough to end up in the same component
+ */
+public interface CandidateGenerator {
+
+    /**
+     * @param k The number of neighbors of each entity, for generators that search for nearest neighbors
+     * @param theta The minimum similarity of a pair
+     * @return The unique candidate pairs with their cosine similarity
+     */
+    EdgeList getCandidatePairs(int k, float theta);
+}
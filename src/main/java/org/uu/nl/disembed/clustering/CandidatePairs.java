@@ -1,139 +1,216 @@
 package org.uu.nl.disembed.clustering;
 
-import com.github.jelmerk.knn.DistanceFunctions;
-import com.github.jelmerk.knn.hnsw.HnswIndex;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.log4j.Logger;
 import org.uu.nl.disembed.embedding.opt.Embedding;
-import org.uu.nl.disembed.embedding.opt.Optimizer;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
 import org.uu.nl.disembed.util.config.Configuration;
 import org.uu.nl.disembed.util.progress.Progress;
 
-import java.util.HashSet;
-import java.util.Objects;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
-public class CandidatePairs {
+public class CandidatePairs implements CandidateGenerator {
 
     private final static Logger logger = Logger.getLogger(CandidatePairs.class);
 
-    public static final int M = 16;
-    public static final int EF = 200;
-    public static final int EF_CONSTRUCTION = 200;
+    /**
+     * Number of entities searched by a single task
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private final Embedding embedding;
+    private final HnswGraph graph;
+    /**
+     * The entity of each node of the graph, null if the nodes are in the order of the embedding
+     */
+    private final int[] entities;
+    /**
+     * Only the nodes from this node on are queried, the nodes added to a loaded graph in incremental mode
+     */
+    private final int queryFrom;
+    /**
+     * Whether the graph was built or extended, a loaded graph that is not changed does not have to be written again
+     */
+    private final boolean modified;
+    private final Configuration config;
 
-    record Pair(int a, int b) {
+    public CandidatePairs(Embedding embedding, Configuration config) {
+        final ClusterConfiguration.Candidates candidates = config.getClustering().getCandidates();
+        int m = candidates.getM();
+        int ef = candidates.getEf();
+        if(candidates.isTune()) {
+            final HnswTuner.Setting setting = new HnswTuner(embedding, config).tune(config.getClustering().getK());
+            m = setting.m();
+            ef = setting.ef();
+        }
+        this.embedding = embedding;
+        this.entities = null;
+        this.queryFrom = 0;
+        this.modified = true;
+        this.config = config;
 
-        Pair(int a, int b) {
-            if (a > b) {
-                this.a = b;
-                this.b = a;
-            } else {
-                this.a = a;
-                this.b = b;
+        logger.info("Adding embedded entities to approximate nearest neighbor index with m = " + m + " and ef = " + ef
+                + " using " + config.getThreads() + " threads");
+
+        final int n = embedding.getSize();
+        final long start = System.nanoTime();
+        this.graph = HnswGraph.build(n, embedding.getKeys(), embedding::cosineSimilarity, m, ef, candidates.getEfConstruction(), config.getThreads());
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Built index of " + n + " entities with " + graph.levels() + " levels in " + String.format("%.2f", seconds) + " s ("
+                + String.format("%.0f", n / seconds) + " entities/s)");
+    }
+
+    /**
+     * Use a loaded graph, of which the nodes are matched with the entities of the embedding by their keys. In
+     * incremental mode the entities that are not part of the graph are inserted, and only they are queried.
+     */
+    public CandidatePairs(Embedding embedding, HnswGraph graph, Configuration config) {
+        final int n = embedding.getSize();
+        final boolean incremental = config.getClustering().isIncremental();
+        this.embedding = embedding;
+        this.config = config;
+
+        if(graph.keys() == null || Arrays.equals(graph.keys(), embedding.getKeys())) {
+            if(graph.size() != n) {
+                throw new IllegalArgumentException("The HNSW index of " + graph.size() + " entities does not match the embedding of "
+                        + n + " entities" + (graph.keys() == null ? ", the index has no keys to match them" : ""));
             }
+            this.graph = graph;
+            this.entities = null;
+            this.queryFrom = incremental ? n : 0;
+            this.modified = false;
+            return;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Pair pair = (Pair) o;
-            return a == pair.a && b == pair.b;
+        final Map<String, Integer> index = Util.keyIndex(embedding.getKeys());
+        final int[] entities = new int[n];
+        final boolean[] indexed = new boolean[n];
+        for (int node = 0; node < graph.size(); node++) {
+            final Integer entity = index.get(graph.keys()[node]);
+            if(entity == null) {
+                throw new IllegalStateException("Entity " + graph.keys()[node] + " of the HNSW index is not part of the embedding, the index has to be rebuilt");
+            }
+            entities[node] = entity;
+            indexed[entity] = true;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(a, b);
+        final int added = n - graph.size();
+        if(added > 0 && !incremental) {
+            throw new IllegalArgumentException("The HNSW index does not contain " + added + " entities of the embedding, use incremental clustering to add them");
         }
-    }
-
-    private final HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float> index;
-    private final Configuration config;
-
-    public CandidatePairs(Embedding embedding, Configuration config) {
-        int dim = embedding.getDimension();
-        int n = embedding.getSize();
-        this.index = HnswIndex
-                .newBuilder(dim, DistanceFunctions.FLOAT_INNER_PRODUCT, n)
-                .withM(M)
-                .withEf(EF)
-                .withEfConstruction(EF_CONSTRUCTION)
-                .build();
-        this.config = config;
 
-        logger.info("Adding embedded entities to approximate nearest neighbor index");
-        try (ProgressBar pb = Progress.progressBar("Added", embedding.getSize(), "entities")) {
-            for (Optimizer.EmbeddedEntity embeddedEntity : embedding) {
-                add(embeddedEntity);
-                pb.step();
+        int node = graph.size();
+        for (int entity = 0; entity < n; entity++) {
+            if(!indexed[entity]) entities[node++] = entity;
+        }
+        this.entities = entities;
+        this.queryFrom = incremental ? graph.size() : 0;
+        this.modified = added > 0;
+
+        if(added > 0) {
+            final String[] keys = new String[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = embedding.getKeys()[entities[i]];
             }
+            logger.info("Adding " + added + " new entities to the HNSW index of " + graph.size() + " entities");
+            final long start = System.nanoTime();
+            this.graph = graph.extend(n, keys, similarity(), config.getThreads());
+            logger.info("Added " + added + " entities in " + String.format("%.2f", (System.nanoTime() - start) / 1e9) + " s");
+        } else {
+            this.graph = graph;
         }
+    }
 
+    /**
+     * The similarity of two nodes of the graph
+     */
+    private HnswGraph.Similarity similarity() {
+        if(entities == null) return embedding::cosineSimilarity;
+        return (a, b) -> embedding.cosineSimilarity(entities[a], entities[b]);
     }
 
-    public CandidatePairs(Embedding embedding, HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float> index, Configuration config) {
-        this.index = index;
-        this.config = config;
+    /**
+     * @return The entities that are queried, in incremental mode those that were added to the loaded graph
+     */
+    public int[] getQueried() {
+        final int[] queried = new int[graph.size() - queryFrom];
+        for (int node = queryFrom; node < graph.size(); node++) {
+            queried[node - queryFrom] = entities == null ? node : entities[node];
+        }
+        return queried;
+    }
+
+    public HnswGraph getGraph() {
+        return graph;
     }
 
-    public HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float> getIndex() {
-        return index;
+    public boolean isModified() {
+        return modified;
     }
 
-    public void add(Optimizer.EmbeddedEntity entity) {
-        index.add(entity);
+    private int entity(int node) {
+        return entities == null ? node : entities[node];
     }
 
-    public int[][] getNearestNeighborPairs(Embedding embedding, int k, float theta) {
+    /**
+     * Find the k approximate nearest neighbors of every queried entity in the index. Each task collects the pairs of a
+     * batch of entities in its own edge list, the merged list is deduplicated with a parallel sort.
+     */
+    @Override
+    public EdgeList getCandidatePairs(int k, float theta) {
 
-        // Use a set to remove duplicate pairs
-        final Set<Pair> tempIndex = new HashSet<>();
+        final int n = graph.size() - queryFrom;
+        final HnswGraph.Similarity similarity = similarity();
 
         final ExecutorService es = Executors.newWorkStealingPool(config.getThreads());
-        CompletionService<Set<Pair>> completionService = new ExecutorCompletionService<>(es);
-
-        // The index is thread safe, so find nearest neighbors in parallel
-        for(Optimizer.EmbeddedEntity entity : index.items()) {
-            final int a = entity.index();
-            completionService.submit(() -> index
-                    .findNeighbors(entity.id(), k) // The entity itself is not included
-                    .stream()
-                    .filter(result -> { // Remove pairs with too low similarity
-                        final int b = result.item().index();
-                        return Util.cosineSimilarity(embedding.getVectors()[a], embedding.getVectors()[b]) >= theta;
-                    }).map(result -> new Pair(a, result.item().index())) // Map to pairs for removal of duplicates later
-                    .collect(Collectors.toSet())
-            );
+        final CompletionService<EdgeList> completionService = new ExecutorCompletionService<>(es);
+
+        // The graph is read-only, so find nearest neighbors in parallel
+        final ThreadLocal<HnswGraph.Search> searches = graph.searches();
+        final int batches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+        for(int batch = 0; batch < batches; batch++) {
+            final int from = queryFrom + batch * BATCH_SIZE;
+            final int to = Math.min(graph.size(), from + BATCH_SIZE);
+            completionService.submit(() -> {
+                final HnswGraph.Search search = searches.get();
+                final TopK nearest = new TopK(k);
+                final EdgeList pairs = new EdgeList((to - from) * k);
+                for(int a = from; a < to; a++) {
+                    // The entity itself is not included
+                    graph.nearest(a, similarity, search, nearest);
+                    for(int h = 0; h < nearest.size(); h++) {
+                        final float s = nearest.score(h);
+                        final int b = nearest.index(h);
+                        // Remove pairs with too low similarity
+                        if(s >= theta) pairs.add(entity(a), entity(b), s);
+                    }
+                }
+                return pairs;
+            });
         }
 
-        int received = 0;
-        try(ProgressBar pb = Progress.progressBar("Approximate Nearest Neighbors", embedding.getSize(), "entities")) {
-
-            while(received < index.size()) {
-                try {
-                    tempIndex.addAll(completionService.take().get());  // Removes duplicate pairs
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                } finally {
-                    pb.step();
-                    pb.setExtraMessage(Integer.toString(tempIndex.size()));
-                    received++;
-                }
+        final EdgeList pairs = new EdgeList(n);
+        try(ProgressBar pb = Progress.progressBar("Approximate Nearest Neighbors", n, "entities")) {
+            for(int received = 0; received < batches; received++) {
+                final EdgeList batch = completionService.take().get();
+                pairs.addAll(batch);
+                pb.stepTo(Math.min(n, (long) (received + 1) * BATCH_SIZE));
+                pb.setExtraMessage(Integer.toString(pairs.size()));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving nearest neighbors", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not retrieve nearest neighbors", e.getCause());
         } finally {
-            es.shutdown();
+            es.shutdownNow();
         }
 
-        int nPairs = tempIndex.size();
-        int[][] candidatePairs = new int[nPairs][2];
-        int i = 0;
-        for(Pair p : tempIndex) {
-            candidatePairs[i][0] = p.a;
-            candidatePairs[i][1] = p.b;
-            i++;
-        }
-        return candidatePairs;
+        // Both entities of a pair may find each other
+        pairs.sortUnique(config.getThreads());
+        return pairs;
     }
 }
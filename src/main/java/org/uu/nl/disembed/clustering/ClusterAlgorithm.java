@@ -2,6 +2,7 @@ package org.uu.nl.disembed.clustering;
 
 import com.carrotsearch.hppc.IntArrayList;
 import org.uu.nl.disembed.clustering.rules.RuleChecker;
+import org.uu.nl.disembed.embedding.opt.Embedding;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -13,18 +14,80 @@ public abstract  class ClusterAlgorithm implements Callable<ClusterAlgorithm.Clu
     protected final int index;
     protected final int[] component;
     protected final RuleChecker ruleChecker;
-    protected final float[][] vectors;
+    protected final Embedding embedding;
     protected final float theta, epsilon;
+    /**
+     * Whether each entity is part of the source set in bipartite mode, otherwise null
+     */
+    protected final boolean[] source;
 
-    public ClusterAlgorithm(int index, int[] component, RuleChecker ruleChecker, float[][] vectors, float theta, float epsilon, int threads) {
+    public ClusterAlgorithm(int index, int[] component, RuleChecker ruleChecker, Embedding embedding, float theta, float epsilon, int threads, boolean[] source) {
         int n = component.length;
         this.threads = threads;
         this.index = index;
         this.component = component;
         this.ruleChecker = ruleChecker;
-        this.vectors = vectors;
+        this.embedding = embedding;
         this.theta = theta;
         this.epsilon = epsilon;
+        this.source = source;
+    }
+
+    /**
+     * The weight of clustering two entities together. In bipartite mode entities of the same set are never compared
+     * during candidate generation, so there is no evidence for or against clustering them together.
+     */
+    protected float weight(int a, int b, float penalty) {
+        if(source != null && source[a] == source[b]) return 0;
+        return Util.weight(a, b, embedding, theta, epsilon, penalty);
+    }
+
+    /**
+     * @return The weights of all pairs of the component in row-major order of the upper triangle, the same order as
+     * the penalties of the rule checker
+     */
+    protected float[] weights(float[] penalties) {
+        final int n = component.length;
+        final float[] weights = new SimilarityKernel(embedding, component).similarities(threads);
+        for(int i = 0, e = 0; i < n; i++) {
+            for(int j = i + 1; j < n; j++) {
+                weights[e] = weight(i, j, weights[e], penalties != null ? penalties[e] : 0);
+                e++;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Replace the similarities of entity i with the entities before it by their weights
+     */
+    protected void rowWeights(int i, float[] row, float[] penalties) {
+        final int n = component.length;
+        for(int j = 0; j < i; j++) {
+            row[j] = weight(j, i, row[j], penalties != null ? penalties[Util.combinationToIndex(i, j, n)] : 0);
+        }
+    }
+
+    /**
+     * The weight of the entities at positions i and j of the component with the given similarity
+     */
+    private float weight(int i, int j, float similarity, float penalty) {
+        if(source != null && source[component[i]] == source[component[j]]) return 0;
+        return Util.weight(similarity, theta, epsilon, penalty);
+    }
+
+    /**
+     * @return The sum of the weights of the pairs in the same cluster, which correlation clustering maximizes
+     */
+    public static double objective(int n, float[] weights, int[] clustering) {
+        double objective = 0;
+        for(int i = 0, e = 0; i < n; i++) {
+            for(int j = i + 1; j < n; j++) {
+                if(clustering[i] == clustering[j]) objective += weights[e];
+                e++;
+            }
+        }
+        return objective;
     }
 
     protected boolean usingRules() {
@@ -45,7 +108,7 @@ public abstract  class ClusterAlgorithm implements Callable<ClusterAlgorithm.Clu
         if(n == 1) return new ClusterResult(index, new int[][] {component});
         if(n == 2) {
             float penalty = penalties == null ? 0f : penalties[0];
-            if(Util.weight(component[0], component[1], vectors, theta, epsilon, penalty) > 0)
+            if(weight(component[0], component[1], penalty) > 0)
                 return new ClusterResult(index, new int[][] {{component[0],component[1]}});
             else return new ClusterResult(index, new int[][] {{component[0]},{component[1]}});
         }
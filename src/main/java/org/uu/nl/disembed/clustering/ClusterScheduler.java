@@ -0,0 +1,228 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.clustering.rules.RuleChecker;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Schedules the clustering of all components on the configured number of threads. Components are started from the
+ * largest to the smallest, so the slowest jobs do not start last. A job that solves in parallel takes as many permits
+ * of the thread budget as it uses threads, so parallel solvers do not oversubscribe the CPU. Components of one or two
+ * entities are clustered directly in batches, instead of one task each. The entities of a component that cannot be
+ * clustered are kept as singleton clusters, so every component has a result.
+ */
+public class ClusterScheduler {
+
+    private final static Logger logger = Logger.getLogger(ClusterScheduler.class);
+
+    /**
+     * Components of at most this size need no clustering algorithm, see {@link ClusterAlgorithm#skip(int, float[])}
+     */
+    private static final int TINY_SIZE = 2;
+    private static final int TINY_BATCH_SIZE = 4096;
+    /**
+     * The most threads a single solver uses
+     */
+    private static final int MAX_SOLVER_THREADS = 4;
+    /**
+     * Correlation clustering of smaller components is fast enough on a single thread
+     */
+    private static final int PARALLEL_CORRELATION_SIZE = 50;
+
+    private final Configuration config;
+    private final RuleChecker ruleChecker;
+    private final Embedding embedding;
+    private final float theta, epsilon;
+    private final boolean[] source;
+    private final int threads;
+    private final Semaphore budget;
+
+    public ClusterScheduler(Configuration config, RuleChecker ruleChecker, Embedding embedding, float theta, float epsilon, boolean[] source) {
+        this.config = config;
+        this.ruleChecker = ruleChecker;
+        this.embedding = embedding;
+        this.theta = theta;
+        this.epsilon = epsilon;
+        this.source = source;
+        this.threads = config.getThreads();
+        // Fair, so a large job waiting for several permits is not overtaken by smaller jobs
+        this.budget = new Semaphore(threads, true);
+    }
+
+    /**
+     * @return The clusters of every component, in the order of the components
+     */
+    public int[][][] cluster(int[][] components) {
+
+        final int n = components.length;
+
+        // Sort by descending size, then by index
+        final long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) -components[i].length << 32) | i;
+        }
+        Arrays.parallelSort(order);
+
+        // A fixed pool runs the tasks in the order they are submitted
+        final ExecutorService es = Executors.newFixedThreadPool(threads);
+        final CompletionService<ClusterAlgorithm.ClusterResult[]> completionService = new ExecutorCompletionService<>(es);
+
+        final long[] nanos = new long[n];
+        int ccJobs = 0, pJobs = 0, vJobs = 0, tiny = 0, tasks = 0;
+        for (int o = 0; o < n; ) {
+            final int i = (int) order[o];
+            final int size = components[i].length;
+
+            if(size <= TINY_SIZE) {
+                // The rest of the components are tiny as well
+                final int[] batch = new int[Math.min(TINY_BATCH_SIZE, n - o)];
+                for (int b = 0; b < batch.length; b++) {
+                    batch[b] = (int) order[o + b];
+                }
+                completionService.submit(() -> run(components, batch, 1, nanos));
+                tiny += batch.length;
+                o += batch.length;
+            } else {
+                final int solverThreads = solverThreads(size);
+                completionService.submit(() -> run(components, new int[]{i}, solverThreads, nanos));
+                if(size <= config.getClustering().getMaxCorrelationClusteringSize()) ccJobs++;
+                else if(size <= config.getClustering().getPivot().getMaxSize()) pJobs++;
+                else vJobs++;
+                o++;
+            }
+            tasks++;
+        }
+
+        logger.info("Submitted " + ccJobs + " correlation clustering jobs");
+        logger.info("Submitted " + pJobs + " pivot clustering jobs");
+        logger.info("Submitted " + vJobs + " vote clustering jobs");
+        logger.info("Submitted " + tiny + " components of at most " + TINY_SIZE + " entities in batches");
+        if(n > 0) logger.info("Largest component: " + components[(int) order[0]].length + " entities");
+
+        final int[][][] clusters = new int[n][][];
+        try (ProgressBar pb = Progress.progressBar("Clustering", n, "components")) {
+            for (int received = 0; received < tasks; received++) {
+                try {
+                    for (ClusterAlgorithm.ClusterResult result : completionService.take().get()) {
+                        clusters[result.index()] = result.cluster();
+                        pb.step();
+                    }
+                } catch (ExecutionException e) {
+                    logger.error("Could not cluster a batch of components", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while clustering components", e);
+        } finally {
+            es.shutdownNow();
+        }
+
+        int failed = 0;
+        for (int i = 0; i < n; i++) {
+            if(clusters[i] == null) {
+                clusters[i] = singletons(components[i]);
+                failed++;
+            }
+        }
+        if(failed > 0) logger.warn("Kept the entities of " + failed + " components that could not be clustered as singletons");
+
+        logTimes(components, nanos);
+        return clusters;
+    }
+
+    /**
+     * The number of threads of the solver of a component, which it takes from the budget while it runs
+     */
+    private int solverThreads(int size) {
+        final ClusterConfiguration clustering = config.getClustering();
+        if(size <= clustering.getMaxCorrelationClusteringSize()) {
+            return size < PARALLEL_CORRELATION_SIZE ? 1 : Math.min(MAX_SOLVER_THREADS, threads);
+        }
+        if(size <= clustering.getPivot().getMaxSize()) {
+            return Math.min(Math.min(MAX_SOLVER_THREADS, clustering.getPivot().getRestarts()), threads);
+        }
+        // Vote clustering computes the similarities in parallel
+        return Math.min(MAX_SOLVER_THREADS, threads);
+    }
+
+    private ClusterAlgorithm.ClusterResult[] run(int[][] components, int[] batch, int solverThreads, long[] nanos) throws InterruptedException {
+
+        budget.acquire(solverThreads);
+        try {
+            final ClusterAlgorithm.ClusterResult[] results = new ClusterAlgorithm.ClusterResult[batch.length];
+            for (int b = 0; b < batch.length; b++) {
+                final long start = System.nanoTime();
+                final int[] component = components[batch[b]];
+                try {
+                    results[b] = create(batch[b], component, solverThreads).cluster();
+                } catch (RuntimeException e) {
+                    if(Thread.currentThread().isInterrupted()) throw e;
+                    logger.error("Could not cluster component " + batch[b] + " of " + component.length
+                            + " entities, keeping its entities as singletons", e);
+                    results[b] = new ClusterAlgorithm.ClusterResult(batch[b], singletons(component));
+                }
+                nanos[batch[b]] = System.nanoTime() - start;
+            }
+            return results;
+        } finally {
+            budget.release(solverThreads);
+        }
+    }
+
+    private static int[][] singletons(int[] component) {
+        final int[][] singletons = new int[component.length][];
+        for (int j = 0; j < component.length; j++) {
+            singletons[j] = new int[] {component[j]};
+        }
+        return singletons;
+    }
+
+    private ClusterAlgorithm create(int i, int[] component, int solverThreads) {
+
+        final ClusterConfiguration clustering = config.getClustering();
+        final int size = component.length;
+        final ClusterConfiguration.Pivot pivot = clustering.getPivot();
+
+        if(size <= clustering.getMaxCorrelationClusteringSize()) {
+            return new CorrelationClustering(i, component, ruleChecker, embedding, theta, epsilon, solverThreads, source,
+                    pivot.isCompare() ? pivot : null, clustering.getSeconds(), clustering.getIterations());
+        }
+        if(size <= pivot.getMaxSize()) {
+            return new PivotClustering(i, component, ruleChecker, embedding, theta, epsilon, solverThreads, source,
+                    pivot.getRestarts(), pivot.getSeconds());
+        }
+        return new VoteClustering(i, component, ruleChecker, embedding, theta, epsilon, solverThreads, source);
+    }
+
+    /**
+     * Log the number of components, and the total and maximum time to cluster them, per power of two of their size
+     */
+    private static void logTimes(int[][] components, long[] nanos) {
+
+        final int[] count = new int[32];
+        final long[] total = new long[32];
+        final long[] max = new long[32];
+        for (int i = 0; i < components.length; i++) {
+            final int bucket = 31 - Integer.numberOfLeadingZeros(components[i].length);
+            count[bucket]++;
+            total[bucket] += nanos[i];
+            max[bucket] = Math.max(max[bucket], nanos[i]);
+        }
+
+        logger.info("Clustering time per component size:");
+        for (int bucket = 0; bucket < 32; bucket++) {
+            if(count[bucket] == 0) continue;
+            logger.info(String.format("  size %8d - %8d: %8d components, %10.2f s total, %8.3f s mean, %8.3f s max",
+                    1L << bucket, (1L << (bucket + 1)) - 1, count[bucket], total[bucket] / 1e9,
+                    total[bucket] / 1e9 / count[bucket], max[bucket] / 1e9));
+        }
+    }
+}
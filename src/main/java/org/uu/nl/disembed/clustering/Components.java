@@ -0,0 +1,190 @@
+package org.uu.nl.disembed.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Concurrent union-find over the vertices 0 to n. A root is always linked below a root with a smaller index with a
+ * compare-and-set, so concurrent unions cannot create cycles, and finds compress the path by halving it. After all
+ * unions, the root of every set is its smallest vertex.
+ */
+public class Components {
+
+    /**
+     * Number of edges or vertices processed by a single task
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final AtomicIntegerArray parent;
+
+    public Components(int n) {
+        this.parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+    }
+
+    /**
+     * Union the vertices of all edges, in parallel chunks of the edge list
+     */
+    public static Components of(int n, EdgeList edges, int threads) {
+        final Components components = new Components(n);
+        forEachChunk(edges.size(), threads, (from, to) -> {
+            for (int e = from; e < to; e++) {
+                components.union(edges.a(e), edges.b(e));
+            }
+        });
+        return components;
+    }
+
+    public int size() {
+        return parent.length();
+    }
+
+    public int find(int v) {
+        int p = parent.get(v);
+        while (p != v) {
+            final int grandparent = parent.get(p);
+            // Another thread may have changed the parent, which only makes the path shorter
+            if(grandparent != p) parent.compareAndSet(v, p, grandparent);
+            v = grandparent;
+            p = parent.get(v);
+        }
+        return v;
+    }
+
+    /**
+     * @return Whether the vertices were in different sets
+     */
+    public boolean union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if(a == b) return false;
+            if(a > b) {
+                final int t = a;
+                a = b;
+                b = t;
+            }
+            // Fails if b is no longer a root, then try again from the new roots
+            if(parent.compareAndSet(b, b, a)) return true;
+        }
+    }
+
+    /**
+     * Group the vertices by their set in parallel. Sets are ordered by their smallest vertex, and the vertices of a set
+     * are in ascending order.
+     * @param minSize The minimum number of vertices of a set to include it
+     */
+    public Groups group(int minSize, int threads) {
+
+        final int n = size();
+        final int[] root = new int[n];
+        final AtomicIntegerArray counts = new AtomicIntegerArray(n);
+        forEachChunk(n, threads, (from, to) -> {
+            for (int v = from; v < to; v++) {
+                root[v] = find(v);
+                counts.incrementAndGet(root[v]);
+            }
+        });
+
+        // Number the sets that are large enough, a root is the smallest vertex of its set
+        final int[] group = new int[n];
+        int groups = 0;
+        for (int v = 0; v < n; v++) {
+            group[v] = root[v] == v && counts.get(v) >= minSize ? groups++ : -1;
+        }
+        final int[] offsets = new int[groups + 1];
+        for (int v = 0, g = 0; v < n; v++) {
+            if(group[v] != -1) {
+                offsets[g + 1] = offsets[g] + counts.get(v);
+                g++;
+            }
+        }
+
+        final int[] members = new int[offsets[groups]];
+        final AtomicIntegerArray next = new AtomicIntegerArray(Arrays.copyOf(offsets, groups));
+        forEachChunk(n, threads, (from, to) -> {
+            for (int v = from; v < to; v++) {
+                final int g = group[root[v]];
+                if(g != -1) members[next.getAndIncrement(g)] = v;
+            }
+        });
+        // The chunks fill the groups in any order
+        forEachChunk(groups, threads, (from, to) -> {
+            for (int g = from; g < to; g++) {
+                Arrays.sort(members, offsets[g], offsets[g + 1]);
+            }
+        });
+
+        return new Groups(offsets, members);
+    }
+
+    /**
+     * The sets in compressed sparse row form, the vertices of set i are members[offsets[i]] to members[offsets[i + 1]]
+     */
+    public record Groups(int[] offsets, int[] members) {
+
+        public int count() {
+            return offsets.length - 1;
+        }
+
+        public int size(int i) {
+            return offsets[i + 1] - offsets[i];
+        }
+
+        public int[] get(int i) {
+            return Arrays.copyOfRange(members, offsets[i], offsets[i + 1]);
+        }
+
+        public int[][] toArrays() {
+            final int[][] arrays = new int[count()][];
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = get(i);
+            }
+            return arrays;
+        }
+    }
+
+    private interface Range {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Apply the body to chunks of the range 0 to size, on the calling thread if there is only one chunk or thread
+     */
+    private static void forEachChunk(int size, int threads, Range body) {
+
+        final int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if(chunks <= 1 || threads <= 1) {
+            body.apply(0, size);
+            return;
+        }
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = c * CHUNK_SIZE;
+            final int to = Math.min(size, from + CHUNK_SIZE);
+            tasks.add(() -> {
+                body.apply(from, to);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : es.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while finding connected components", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not find connected components", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package org.uu.nl.disembed.clustering;
 
 import com.carrotsearch.hppc.IntArrayList;
-import org.ojalgo.concurrent.Parallelism;
+import org.apache.log4j.Logger;
 import org.ojalgo.optimisation.ExpressionsBasedModel;
 import org.ojalgo.optimisation.Optimisation;
 import org.ojalgo.optimisation.Variable;
 import org.ojalgo.optimisation.integer.IntegerStrategy;
 import org.uu.nl.disembed.clustering.rules.RuleChecker;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
 
 import java.math.BigDecimal;
 import java.util.HashMap;
@@ -14,10 +16,22 @@ import java.util.Map;
 
 public class CorrelationClustering extends ClusterAlgorithm {
 
-    public static final int MAX_SIZE = 100;
+    private final static Logger logger = Logger.getLogger(CorrelationClustering.class);
 
-    public CorrelationClustering(int index, int[] component, RuleChecker ruleChecker, float[][] vectors, float theta, float epsilon, int threads) {
-        super(index, component, ruleChecker, vectors, theta, epsilon, threads);
+    public static final int MAX_SIZE = 200;
+
+    /**
+     * If not null, the component is also clustered with pivot clustering to compare the objective values
+     */
+    private final ClusterConfiguration.Pivot compare;
+    private final long nanos;
+    private final int iterations;
+
+    public CorrelationClustering(int index, int[] component, RuleChecker ruleChecker, Embedding embedding, float theta, float epsilon, int threads, boolean[] source, ClusterConfiguration.Pivot compare, float seconds, int iterations) {
+        super(index, component, ruleChecker, embedding, theta, epsilon, threads, source);
+        this.compare = compare;
+        this.nanos = (long) (seconds * 1e9);
+        this.iterations = iterations;
     }
 
     @Override
@@ -29,9 +43,13 @@ public class CorrelationClustering extends ClusterAlgorithm {
         final float[] penalties = usingRules() ? ruleChecker.checkComponent(component) : null;
         if(n < 3) return skip(n, penalties);
 
+        final long start = System.nanoTime();
+        final float[] weights = weights(penalties);
+
         final ExpressionsBasedModel model = new ExpressionsBasedModel();
-        // Suggested by the author of ojalgo library to prevent concurrency bug
-        model.options.integer(IntegerStrategy.newConfigurable().withParallelism(Parallelism.FOUR));
+        // The scheduler budgets the threads, at most four as suggested by the author of ojalgo library to prevent
+        // concurrency bug
+        model.options.integer(IntegerStrategy.newConfigurable().withParallelism(() -> threads));
 
         // Set up binary variables (one for each edge) with weights
         final Variable[] vars = new Variable[edges];
@@ -42,72 +60,156 @@ public class CorrelationClustering extends ClusterAlgorithm {
                         .integer() // constrain to binary
                         .lower(0)  // constrain to binary
                         .upper(1)  // constrain to binary
-                        .weight(Util.weight(component[i], component[j], vectors, theta, epsilon, penalties != null ? penalties[e] : 0));
+                        .weight(weights[e]);
                 vars[e] = x;
                 e++;
             }
         }
 
-        // Add 3 constraints for every triangle in this component
-        for(int[] triangle : Util.triangles(n)) {
+        // Vote clustering gives a clustering to start the solver from, and to fall back to if it stops early
+        int[] clustering = VoteClustering.vote(n, (i, row) -> {
+            for(int j = 0; j < i; j++) row[j] = weights[edgeIndex(j, i, n)];
+        });
+        double lower = objective(n, weights, clustering);
+        // Without triangle constraints, every pair with a positive weight is clustered together
+        double upper = 0;
+        for(float weight : weights) {
+            if(weight > 0) upper += weight;
+        }
+
+        // Start without triangle constraints, and add only those the solution violates until it is a clustering.
+        // Most triangles have at most one positive edge and never constrain the solution.
+        final long deadline = start + nanos;
+        final boolean[] solution = new boolean[edges];
+        boolean optimal = false;
+        while (System.nanoTime() < deadline) {
+            startFrom(vars, clustering, n);
+            // The solver stops at the time or iteration limit with the best solution found so far
+            model.options.time_abort = Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+            model.options.iterations_abort = iterations;
+            Optimisation.Result result = model.maximise();
+            if(!result.getState().isFeasible()) break;
+            // With fewer constraints than the full problem, the optimum of a round bounds the optimum of the clustering
+            if(result.getState().isOptimal()) upper = Math.min(upper, result.getValue());
+
+            // The solution is an array with false for no edge and true for an edge
+            for(int e = 0; e < edges; e++) {
+                solution[e] = result.doubleValue(e) > 0.5;
+            }
 
-            model.addExpression().upper(1)
-                    .set(vars[triangle[0]], 1)
-                    .set(vars[triangle[1]], 1)
-                    .set(vars[triangle[2]], -1);
+            // The components of a solution that violates triangles are a clustering as well
+            final int[] components = components(solution, n);
+            final double objective = objective(n, weights, components);
+            if(objective > lower) {
+                lower = objective;
+                clustering = components;
+            }
 
-            model.addExpression().upper(1)
-                    .set(vars[triangle[0]], 1)
-                    .set(vars[triangle[1]], -1)
-                    .set(vars[triangle[2]], 1);
+            if(addViolatedTriangles(model, vars, solution, n) == 0) {
+                optimal = result.getState().isOptimal();
+                break;
+            }
+        }
 
-            model.addExpression().upper(1)
-                    .set(vars[triangle[0]], -1)
-                    .set(vars[triangle[1]], 1)
-                    .set(vars[triangle[2]], 1);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if(optimal) {
+            logger.debug(String.format("Solved correlation clustering of %d entities in %.2f s", n, seconds));
+        } else {
+            // The vote clustering has a non-negative objective, so the bound is positive if it is larger
+            final double gap = upper <= lower ? 0 : (upper - lower) / upper;
+            logger.info(String.format("Stopped correlation clustering of %d entities after %.2f s with objective %.4f, " +
+                    "bound %.4f and optimality gap %.2f%%", n, seconds, lower, upper, 100 * gap));
         }
 
+        if(compare != null) compare(weights, clustering, System.nanoTime() - start);
+
+        return new ClusterResult(index, toClusterArrays(clustering));
+    }
+
+    private void compare(float[] weights, int[] clustering, long nanos) {
+
+        final int n = component.length;
+        final long start = System.nanoTime();
+        final int[] pivot = PivotClustering.solve(n, weights, compare.getRestarts(),
+                start + (long) (compare.getSeconds() * 1e9), 1, index);
+        final long pivotNanos = System.nanoTime() - start;
+
+        final double exact = objective(n, weights, clustering);
+        final double heuristic = objective(n, weights, pivot);
+        logger.info(String.format("Component of %d entities: correlation clustering objective %.4f in %.2f s, " +
+                        "pivot clustering objective %.4f (%.2f%%) in %.2f s", n, exact, nanos / 1e9,
+                heuristic, exact == 0 ? 100 : 100 * heuristic / exact, pivotNanos / 1e9));
+    }
 
-        Optimisation.Result result = model.maximise();
-        // The solution is an array with false for no edge and true for an edge
-        boolean[] solution = new boolean[edges];
-        int solutionEdges = 0;
-        for(int e = 0; e < edges; e++) {
-            solution[e] = result.get(e).equals(BigDecimal.ONE);
-            if(solution[e]) {
-                solutionEdges++;
+    /**
+     * Set the values of the variables to the given clustering, the solver starts from it
+     */
+    private static void startFrom(Variable[] vars, int[] clustering, int n) {
+        for(int i = 0, e = 0; i < n; i++) {
+            for(int j = i + 1; j < n; j++) {
+                vars[e++].setValue(clustering[i] == clustering[j] ? BigDecimal.ONE : BigDecimal.ZERO);
             }
         }
+    }
 
-        // We have to find the components (clusters) in our solution
-        // Components are guaranteed to be cliques due to the constraints above
-        int[][] pairs = new int[solutionEdges][2];
-        for(int i = 0, e = 0, k = 0; i < n ; i++) {
+    /**
+     * Find the components (clusters) in the solution. Two entities are in the same cluster if they have the same
+     * number, for example [0, 1, 0, 1, 4] clusters the first and third, and the second and fourth entity together,
+     * and the fifth entity is a singleton cluster.
+     */
+    private static int[] components(boolean[] solution, int n) {
+
+        EdgeList pairs = new EdgeList();
+        for(int i = 0, e = 0; i < n ; i++) {
             for(int j = i + 1; j < n; j++) {
-                if(solution[e]) {
-                    pairs[k][0] = i;
-                    pairs[k][1] = j;
-                    k++;
-                }
+                if(solution[e]) pairs.add(i, j, 1);
                 e++;
             }
         }
-        int[][] solutionComponents = Util.connectedComponents(n, pairs);
-
-        // Convert the components in the solution to a clustering of each entity
-        // Two entities are in the same cluster if they have the same number
-        // For example: component = [0, 1, 2, 3, 4]
-        //              clustering = [0, 1, 0, 1, 4]
-        // First and third entities are clustered together
-        // Second and fourth entities are clustered together
-        // Fifth element is in singleton cluster
-        int[] clustering = component.clone();
-        for (int[] c : solutionComponents) {
+
+        int[] clustering = new int[n];
+        for(int i = 0; i < n; i++) {
+            clustering[i] = i;
+        }
+        for (int[] c : Util.connectedComponents(n, pairs, 1)) {
             for (int i : c) {
-                clustering[i] = component[c[0]];
+                clustering[i] = c[0];
+            }
+        }
+        return clustering;
+    }
+
+    /**
+     * Add the transitivity constraint of every triangle with exactly two edges in the solution
+     * @return The number of added constraints
+     */
+    private static int addViolatedTriangles(ExpressionsBasedModel model, Variable[] vars, boolean[] solution, int n) {
+
+        int added = 0;
+        for(int i = 0; i < n; i++) {
+            for(int j = i + 1; j < n; j++) {
+                final int ij = edgeIndex(i, j, n);
+                for(int k = j + 1; k < n; k++) {
+                    final int ik = edgeIndex(i, k, n), jk = edgeIndex(j, k, n);
+                    final boolean a = solution[ij], b = solution[ik], c = solution[jk];
+                    if((a ? 1 : 0) + (b ? 1 : 0) + (c ? 1 : 0) != 2) continue;
+
+                    // The missing edge has a negative coefficient
+                    model.addExpression().upper(1)
+                            .set(vars[ij], a ? 1 : -1)
+                            .set(vars[ik], b ? 1 : -1)
+                            .set(vars[jk], c ? 1 : -1);
+                    added++;
+                }
             }
         }
+        return added;
+    }
 
-        return new ClusterResult(index, toClusterArrays(clustering));
+    /**
+     * @return The index of the edge between i and j, with i smaller than j, in row-major order
+     */
+    private static int edgeIndex(int i, int j, int n) {
+        return i * n - i * (i + 1) / 2 + j - i - 1;
     }
 }
@@ -0,0 +1,220 @@
+package org.uu.nl.disembed.clustering;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Growable list of undirected edges with a similarity value. Every edge is packed into a single long with the smaller
+ * vertex in the upper half, so a list sorted on the packed values is sorted lexicographically on (a, b).
+ */
+public class EdgeList {
+
+    /**
+     * Ranges smaller than this are sorted on a single thread
+     */
+    private static final int SEQUENTIAL_SORT = 1 << 13;
+    private static final int INSERTION_SORT = 16;
+
+    private long[] edges;
+    private float[] similarities;
+    private int size;
+
+    public EdgeList() {
+        this(16);
+    }
+
+    public EdgeList(int initialCapacity) {
+        this.edges = new long[Math.max(1, initialCapacity)];
+        this.similarities = new float[edges.length];
+    }
+
+    public static long pack(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    public void add(int a, int b, float similarity) {
+        ensureCapacity(size + 1);
+        edges[size] = pack(a, b);
+        similarities[size] = similarity;
+        size++;
+    }
+
+    public void addAll(EdgeList other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.edges, 0, edges, size, other.size);
+        System.arraycopy(other.similarities, 0, similarities, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * @return The smaller vertex of the i-th edge
+     */
+    public int a(int i) {
+        return (int) (edges[i] >>> 32);
+    }
+
+    /**
+     * @return The larger vertex of the i-th edge
+     */
+    public int b(int i) {
+        return (int) edges[i];
+    }
+
+    public float similarity(int i) {
+        return similarities[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove the edges for which removed is true, preserving the order of the others
+     */
+    public void remove(boolean[] removed) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if(!removed[i]) {
+                edges[j] = edges[i];
+                similarities[j] = similarities[i];
+                j++;
+            }
+        }
+        size = j;
+    }
+
+    /**
+     * Sort the edges in parallel and remove duplicates. Duplicate edges are assumed to have the same similarity.
+     */
+    public void sortUnique(int threads) {
+
+        if(size > SEQUENTIAL_SORT) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new MergeSort(edges, similarities, new long[size], new float[size], 0, size));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            quickSort(edges, similarities, 0, size);
+        }
+
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if(j == 0 || edges[i] != edges[j - 1]) {
+                edges[j] = edges[i];
+                similarities[j] = similarities[i];
+                j++;
+            }
+        }
+        size = j;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if(minCapacity > edges.length) {
+            final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(minCapacity, 2L * edges.length));
+            edges = Arrays.copyOf(edges, capacity);
+            similarities = Arrays.copyOf(similarities, capacity);
+        }
+    }
+
+    private static class MergeSort extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] keys, tempKeys;
+        private final float[] values, tempValues;
+        private final int from, to;
+
+        MergeSort(long[] keys, float[] values, long[] tempKeys, float[] tempValues, int from, int to) {
+            this.keys = keys;
+            this.values = values;
+            this.tempKeys = tempKeys;
+            this.tempValues = tempValues;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= SEQUENTIAL_SORT) {
+                quickSort(keys, values, from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new MergeSort(keys, values, tempKeys, tempValues, from, mid),
+                    new MergeSort(keys, values, tempKeys, tempValues, mid, to));
+
+            if(keys[mid - 1] <= keys[mid]) return; // Already in order
+
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                if(keys[i] <= keys[j]) {
+                    tempKeys[k] = keys[i];
+                    tempValues[k++] = values[i++];
+                } else {
+                    tempKeys[k] = keys[j];
+                    tempValues[k++] = values[j++];
+                }
+            }
+            while (i < mid) {
+                tempKeys[k] = keys[i];
+                tempValues[k++] = values[i++];
+            }
+            // The remainder of the right half is already in place
+            System.arraycopy(tempKeys, from, keys, from, k - from);
+            System.arraycopy(tempValues, from, values, from, k - from);
+        }
+    }
+
+    /**
+     * Sorts keys[from, to) and moves the values along
+     */
+    private static void quickSort(long[] keys, float[] values, int from, int to) {
+        while (to - from > INSERTION_SORT) {
+            final int mid = (from + to) >>> 1;
+            final long pivot = median(keys[from], keys[mid], keys[to - 1]);
+
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if(i <= j) swap(keys, values, i++, j--);
+            }
+            // Recurse into the smaller part to bound the stack depth
+            if(j - from < to - i) {
+                quickSort(keys, values, from, j + 1);
+                from = i;
+            } else {
+                quickSort(keys, values, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            final long key = keys[i];
+            final float value = values[i];
+            int j = i - 1;
+            while (j >= from && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static long median(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(long[] keys, float[] values, int i, int j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final float value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
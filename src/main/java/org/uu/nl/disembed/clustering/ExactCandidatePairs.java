@@ -0,0 +1,172 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.concurrent.*;
+
+/**
+ * Exact similarity join that computes the dot product of all pairs of normalized vectors. The vectors are copied into
+ * tiles of contiguous memory, and every task compares one tile with the other tiles, so both tiles stay in cache.
+ * For embeddings of up to a few hundred thousand entities this is faster than building an approximate index, and it
+ * gives the exact result to measure the recall of the approximate methods against.
+ */
+public class ExactCandidatePairs implements CandidateGenerator {
+
+    private final static Logger logger = Logger.getLogger(ExactCandidatePairs.class);
+
+    /**
+     * Number of vectors in a tile
+     */
+    public static final int TILE_SIZE = 256;
+
+    private final int n;
+    private final int dimension;
+    private final float[][] tiles;
+    private final boolean topK;
+    private final int threads;
+
+    public ExactCandidatePairs(Embedding embedding, Configuration config) {
+        this.n = embedding.getSize();
+        this.dimension = embedding.getDimension();
+        this.topK = config.getClustering().getCandidates().isTopK();
+        this.threads = config.getThreads();
+
+        this.tiles = new float[(n + TILE_SIZE - 1) / TILE_SIZE][];
+        final float[] vector = new float[dimension];
+        for (int t = 0; t < tiles.length; t++) {
+            final int from = t * TILE_SIZE;
+            final int to = Math.min(n, from + TILE_SIZE);
+            tiles[t] = new float[(to - from) * dimension];
+            for (int i = from; i < to; i++) {
+                embedding.copyVector(i, vector);
+                if(!embedding.isNormalized()) Embedding.normalize(vector);
+                System.arraycopy(vector, 0, tiles[t], (i - from) * dimension, dimension);
+            }
+        }
+    }
+
+    @Override
+    public EdgeList getCandidatePairs(int k, float theta) {
+
+        final int nTiles = tiles.length;
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<EdgeList> completionService = new ExecutorCompletionService<>(es);
+
+        logger.info("Computing the similarity of all " + ((long) n * (n - 1) / 2) + " pairs in " + nTiles + " tiles, keeping "
+                + (topK ? "the " + k + " most similar candidates of each entity" : "all pairs")
+                + " with a similarity of at least " + theta);
+
+        for (int t = 0; t < nTiles; t++) {
+            final int tile = t;
+            completionService.submit(() -> topK ? nearest(tile, k, theta) : threshold(tile, theta));
+        }
+
+        final long start = System.nanoTime();
+        final EdgeList pairs = new EdgeList(n);
+        try (ProgressBar pb = Progress.progressBar("Exact similarity join", nTiles, "tiles")) {
+            for (int received = 0; received < nTiles; received++) {
+                pairs.addAll(completionService.take().get());
+                pb.step();
+                pb.setExtraMessage(Integer.toString(pairs.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing exact similarities", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not compute exact similarities", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+
+        // Only the top k pairs can be found from both sides
+        if(topK) pairs.sortUnique(threads);
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Found " + pairs.size() + (topK ? " top " + k + " pairs in " : " pairs in ") + String.format("%.2f", seconds) + " s ("
+                + String.format("%.0f", (double) n * (n - 1) / 2 / seconds) + " pairs/s)");
+        return pairs;
+    }
+
+    /**
+     * All pairs of the given tile with itself and the tiles after it with a similarity of at least theta
+     */
+    private EdgeList threshold(int tile, float theta) {
+
+        final EdgeList pairs = new EdgeList();
+        final float[] a = tiles[tile];
+        final int rowsA = a.length / dimension;
+
+        for (int other = tile; other < tiles.length; other++) {
+            final float[] b = tiles[other];
+            final int rowsB = b.length / dimension;
+
+            for (int i = 0; i < rowsA; i++) {
+                // Within the same tile, only compare with the vectors after it
+                for (int j = other == tile ? i + 1 : 0; j < rowsB; j++) {
+                    final float similarity = dot(a, i * dimension, b, j * dimension, dimension);
+                    if(similarity >= theta) {
+                        pairs.add(tile * TILE_SIZE + i, other * TILE_SIZE + j, similarity);
+                    }
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * The k most similar entities of each entity of the given tile, if their similarity is at least theta
+     */
+    private EdgeList nearest(int tile, int k, float theta) {
+
+        final float[] a = tiles[tile];
+        final int rowsA = a.length / dimension;
+
+        final TopK[] nearest = new TopK[rowsA];
+        for (int i = 0; i < rowsA; i++) {
+            nearest[i] = new TopK(k);
+        }
+
+        for (int other = 0; other < tiles.length; other++) {
+            final float[] b = tiles[other];
+            final int rowsB = b.length / dimension;
+
+            for (int i = 0; i < rowsA; i++) {
+                for (int j = 0; j < rowsB; j++) {
+                    if(other == tile && i == j) continue;
+                    final float similarity = dot(a, i * dimension, b, j * dimension, dimension);
+                    if(similarity >= theta) nearest[i].offer(other * TILE_SIZE + j, similarity);
+                }
+            }
+        }
+
+        final EdgeList pairs = new EdgeList(rowsA * k);
+        for (int i = 0; i < rowsA; i++) {
+            for (int h = 0; h < nearest[i].size(); h++) {
+                pairs.add(tile * TILE_SIZE + i, nearest[i].index(h), nearest[i].score(h));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Dot product with four independent sums, so the loop is not limited by the latency of a single addition
+     */
+    static float dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int d = 0;
+        for (; d + 3 < length; d += 4) {
+            s0 += a[offsetA + d] * b[offsetB + d];
+            s1 += a[offsetA + d + 1] * b[offsetB + d + 1];
+            s2 += a[offsetA + d + 2] * b[offsetB + d + 2];
+            s3 += a[offsetA + d + 3] * b[offsetB + d + 3];
+        }
+        for (; d < length; d++) {
+            s0 += a[offsetA + d] * b[offsetB + d];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
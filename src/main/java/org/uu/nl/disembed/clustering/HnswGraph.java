@@ -0,0 +1,617 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.uu.nl.disembed.util.array.BigIntBuffer;
+import org.uu.nl.disembed.util.array.BigLongBuffer;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Hierarchical navigable small world graph over the entities of an embedding. The graph only holds the links between
+ * entities, similarities are computed on the original vectors, so the graph does not duplicate the embedding.
+ * The links of each level are stored in compressed sparse row form: the offsets of the links of each node followed by
+ * the concatenated links. Level 0 holds all entities, the higher levels also hold the sorted ids of their nodes.
+ * The arrays are chunked buffers indexed by a long, so a graph that was written to disk can be memory-mapped as is,
+ * even if a level has more than 2^31 links.
+ */
+public class HnswGraph {
+
+    /**
+     * Similarity of two nodes of the graph, or of a query and a node, higher is more similar
+     */
+    public interface Similarity {
+        float similarity(int a, int b);
+    }
+
+    private interface Links {
+        /**
+         * Copy the links of the node at the given level into the buffer
+         * @return The number of links
+         */
+        int neighbors(int level, int node, int[] buffer);
+    }
+
+    private static final long SEED = 42;
+    private static final int BATCH_SIZE = 1024;
+
+    private final int size, m, efConstruction, entryPoint, maxDegree;
+    private int ef;
+    /**
+     * The keys of the entities of the nodes, null if unknown
+     */
+    private final String[] keys;
+    /**
+     * The ids of the nodes of each level, null for level 0 which holds all nodes
+     */
+    private final IntBuffer[] nodes;
+    private final BigLongBuffer[] offsets;
+    private final BigIntBuffer[] links;
+
+    public HnswGraph(int size, String[] keys, int m, int ef, int efConstruction, int entryPoint,
+                     IntBuffer[] nodes, BigLongBuffer[] offsets, BigIntBuffer[] links) {
+        this.size = size;
+        this.keys = keys;
+        this.m = m;
+        this.ef = ef;
+        this.efConstruction = efConstruction;
+        this.entryPoint = entryPoint;
+        this.nodes = nodes;
+        this.offsets = offsets;
+        this.links = links;
+        // Nodes link to at most m nodes at the levels above 0, and 2m at level 0
+        this.maxDegree = 2 * m;
+    }
+
+    /**
+     * Build a graph of the given number of nodes, inserting batches of nodes in parallel. Every node links to at most
+     * m nodes at the levels above 0 and 2m nodes at level 0, chosen with the neighbor selection heuristic of Malkov
+     * and Yashunin.
+     */
+    public static HnswGraph build(int size, String[] keys, Similarity similarity, int m, int ef, int efConstruction, int threads) {
+        final Builder builder = new Builder(size, similarity, m, efConstruction);
+        if(size == 0) return builder.freeze(keys, ef);
+        builder.randomLevels(0);
+        // The first node is the entry point of the others
+        builder.insert(0, new Search(size, 2 * m));
+        insert(builder, 1, size, threads);
+        return builder.freeze(keys, ef);
+    }
+
+    /**
+     * @return A copy of this graph with the nodes from the current size up to the given size inserted
+     */
+    public HnswGraph extend(int size, String[] keys, Similarity similarity, int threads) {
+        final Builder builder = new Builder(size, similarity, m, efConstruction);
+        builder.thaw(this);
+        builder.randomLevels(this.size);
+        insert(builder, this.size, size, threads);
+        return builder.freeze(keys, ef);
+    }
+
+    /**
+     * Insert batches of nodes in parallel
+     */
+    private static void insert(Builder builder, int from, int to, int threads) {
+
+        final int size = builder.graph.length;
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+
+        // One search per worker thread, so the visited array is not allocated for every batch
+        final ThreadLocal<Search> searches = ThreadLocal.withInitial(() -> new Search(size, 2 * builder.m));
+        final int batches = (to - from + BATCH_SIZE - 1) / BATCH_SIZE;
+        for (int batch = 0; batch < batches; batch++) {
+            final int start = from + batch * BATCH_SIZE;
+            final int end = Math.min(to, start + BATCH_SIZE);
+            completionService.submit(() -> {
+                final Search search = searches.get();
+                for (int i = start; i < end; i++) {
+                    builder.insert(i, search);
+                }
+                return end - start;
+            });
+        }
+
+        try (ProgressBar pb = Progress.progressBar("Added", to - from, "entities")) {
+            for (int received = 0; received < batches; received++) {
+                pb.stepBy(completionService.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the approximate nearest neighbor index", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build the approximate nearest neighbor index", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * The reusable state of the searches of a single thread
+     */
+    public static final class Search {
+        private final int[] visited;
+        private int stamp;
+        private final int[] buffer;
+        private int[] frontier = new int[64];
+        private float[] frontierSimilarity = new float[64];
+        private int frontierSize;
+
+        private Search(int size, int maxDegree) {
+            this.visited = new int[size];
+            this.buffer = new int[maxDegree];
+        }
+
+        private void reset() {
+            if(++stamp == 0) {
+                Arrays.fill(visited, 0);
+                stamp = 1;
+            }
+            frontierSize = 0;
+        }
+
+        /**
+         * @return Whether the node was not visited before
+         */
+        private boolean visit(int node) {
+            if(visited[node] == stamp) return false;
+            visited[node] = stamp;
+            return true;
+        }
+
+        /**
+         * Add to the max-heap of nodes to expand
+         */
+        private void push(int node, float similarity) {
+            if(frontierSize == frontier.length) {
+                frontier = Arrays.copyOf(frontier, frontierSize * 2);
+                frontierSimilarity = Arrays.copyOf(frontierSimilarity, frontierSize * 2);
+            }
+            int position = frontierSize++;
+            while (position > 0) {
+                final int parent = (position - 1) >>> 1;
+                if(frontierSimilarity[parent] >= similarity) break;
+                frontier[position] = frontier[parent];
+                frontierSimilarity[position] = frontierSimilarity[parent];
+                position = parent;
+            }
+            frontier[position] = node;
+            frontierSimilarity[position] = similarity;
+        }
+
+        /**
+         * Remove the most similar node from the heap
+         */
+        private void pop() {
+            final int node = frontier[--frontierSize];
+            final float similarity = frontierSimilarity[frontierSize];
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if(child >= frontierSize) break;
+                if(child + 1 < frontierSize && frontierSimilarity[child + 1] > frontierSimilarity[child]) child++;
+                if(frontierSimilarity[child] <= similarity) break;
+                frontier[position] = frontier[child];
+                frontierSimilarity[position] = frontierSimilarity[child];
+                position = child;
+            }
+            frontier[position] = node;
+            frontierSimilarity[position] = similarity;
+        }
+    }
+
+    public Search search() {
+        return new Search(size, maxDegree);
+    }
+
+    /**
+     * @return A search per thread, to reuse the visited array of a search for all tasks that run on the same thread
+     */
+    public ThreadLocal<Search> searches() {
+        return ThreadLocal.withInitial(this::search);
+    }
+
+    /**
+     * Find the nodes most similar to the given node of the graph, excluding the node itself. As the node is part of
+     * the graph, the search starts at its own links instead of descending from the entry point.
+     * @param nearest Receives at most its capacity of nodes
+     */
+    public void nearest(int query, Similarity similarity, Search search, TopK nearest) {
+        final TopK results = new TopK(Math.max(ef, nearest.capacity()));
+        searchLayer(this::neighbors, similarity, query, query, new int[] {query}, 1, 0, search, results);
+        nearest.clear();
+        for (int h = 0; h < results.size(); h++) {
+            nearest.offer(results.index(h), results.score(h));
+        }
+    }
+
+    /**
+     * Find the nodes most similar to a query that is not part of the graph, descending from the entry point
+     * @param query Passed to the similarity as its first argument
+     * @param nearest Receives at most its capacity of nodes
+     */
+    public void search(int query, Similarity similarity, Search search, TopK nearest) {
+        nearest.clear();
+        // An empty graph has no entry point
+        if(entryPoint == -1) return;
+        int current = entryPoint;
+        for (int level = levels() - 1; level > 0; level--) {
+            current = greedy(this::neighbors, similarity, query, current, level, search.buffer);
+        }
+        final TopK results = new TopK(Math.max(ef, nearest.capacity()));
+        searchLayer(this::neighbors, similarity, query, -1, new int[] {current}, 1, 0, search, results);
+        for (int h = 0; h < results.size(); h++) {
+            nearest.offer(results.index(h), results.score(h));
+        }
+    }
+
+    private int neighbors(int level, int node, int[] buffer) {
+        final int position = level == 0 ? node : binarySearch(nodes[level], node);
+        final long from = offsets[level].get(position);
+        final int count = (int) (offsets[level].get(position + 1) - from);
+        for (int i = 0; i < count; i++) {
+            buffer[i] = links[level].get(from + i);
+        }
+        return count;
+    }
+
+    private static int binarySearch(IntBuffer buffer, int key) {
+        int low = 0, high = buffer.limit() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int value = buffer.get(mid);
+            if(value < key) low = mid + 1;
+            else if(value > key) high = mid - 1;
+            else return mid;
+        }
+        throw new IllegalArgumentException("Node " + key + " is not part of the level");
+    }
+
+    /**
+     * Move to the most similar neighbor until no neighbor is more similar
+     */
+    private static int greedy(Links links, Similarity similarity, int query, int current, int level, int[] buffer) {
+        float best = similarity.similarity(query, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int count = links.neighbors(level, current, buffer);
+            for (int i = 0; i < count; i++) {
+                final float s = similarity.similarity(query, buffer[i]);
+                if(s > best) {
+                    best = s;
+                    current = buffer[i];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of a single level, starting at the entry points. The excluded node is expanded when it is
+     * reached, but is not part of the results.
+     * @param exclude The node of the query if it is part of the graph, otherwise -1
+     * @param results Receives the most similar nodes, at most its capacity
+     */
+    private static void searchLayer(Links links, Similarity similarity, int query, int exclude, int[] entry, int entryCount,
+                                    int level, Search search, TopK results) {
+        search.reset();
+        for (int i = 0; i < entryCount; i++) {
+            if(!search.visit(entry[i])) continue;
+            final float s = similarity.similarity(query, entry[i]);
+            search.push(entry[i], s);
+            if(entry[i] != exclude) results.offer(entry[i], s);
+        }
+
+        final int[] buffer = search.buffer;
+        while (search.frontierSize > 0) {
+            final int current = search.frontier[0];
+            if(search.frontierSimilarity[0] < results.threshold()) break;
+            search.pop();
+
+            final int count = links.neighbors(level, current, buffer);
+            for (int i = 0; i < count; i++) {
+                final int neighbor = buffer[i];
+                if(!search.visit(neighbor)) continue;
+                final float s = similarity.similarity(query, neighbor);
+                if(s > results.threshold()) {
+                    search.push(neighbor, s);
+                    if(neighbor != exclude) results.offer(neighbor, s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the candidates, ordered from most to least similar to the base node, that are more similar to the base node
+     * than to any candidate kept before them. The kept candidates are moved to the front.
+     * @return The number of kept candidates, at most limit
+     */
+    private static int select(Similarity similarity, int[] candidates, float[] candidateSimilarity, int count, int limit) {
+        int selected = 0;
+        next:
+        for (int i = 0; i < count && selected < limit; i++) {
+            for (int j = 0; j < selected; j++) {
+                if(similarity.similarity(candidates[i], candidates[j]) > candidateSimilarity[i]) continue next;
+            }
+            candidates[selected] = candidates[i];
+            candidateSimilarity[selected] = candidateSimilarity[i];
+            selected++;
+        }
+        return selected;
+    }
+
+    /**
+     * Sort the candidates from most to least similar, insertion sort as there are at most a few hundred
+     */
+    private static void sortDescending(int[] candidates, float[] candidateSimilarity, int count) {
+        for (int i = 1; i < count; i++) {
+            final int node = candidates[i];
+            final float s = candidateSimilarity[i];
+            int j = i - 1;
+            while (j >= 0 && candidateSimilarity[j] < s) {
+                candidates[j + 1] = candidates[j];
+                candidateSimilarity[j + 1] = candidateSimilarity[j];
+                j--;
+            }
+            candidates[j + 1] = node;
+            candidateSimilarity[j + 1] = s;
+        }
+    }
+
+    /**
+     * The mutable graph during construction. The links of a node are guarded by the lock of its link arrays, the first
+     * element of each link array is the number of links.
+     */
+    private static final class Builder implements Links {
+
+        private final Similarity similarity;
+        private final int m, efConstruction;
+        private final int[] levels;
+        private final int[][][] graph;
+        private final Object lock = new Object();
+        private int entryPoint = -1, top = -1;
+
+        private Builder(int size, Similarity similarity, int m, int efConstruction) {
+            this.similarity = similarity;
+            this.m = m;
+            this.efConstruction = efConstruction;
+            this.levels = new int[size];
+            this.graph = new int[size][][];
+        }
+
+        /**
+         * Draw the levels of the nodes from the given node on from an exponential distribution
+         */
+        private void randomLevels(int from) {
+            final Random random = new Random(SEED + from);
+            final double normalization = 1 / Math.log(m);
+            for (int i = from; i < levels.length; i++) {
+                levels[i] = (int) (-Math.log(1 - random.nextDouble()) * normalization);
+                allocate(i);
+            }
+        }
+
+        private void allocate(int node) {
+            graph[node] = new int[levels[node] + 1][];
+            for (int level = 0; level <= levels[node]; level++) {
+                graph[node][level] = new int[maxDegree(level) + 1];
+            }
+        }
+
+        /**
+         * Copy the nodes and links of a frozen graph
+         */
+        private void thaw(HnswGraph base) {
+            for (int level = 1; level < base.levels(); level++) {
+                final IntBuffer levelNodes = base.nodes[level];
+                for (int p = 0; p < levelNodes.limit(); p++) {
+                    levels[levelNodes.get(p)] = level;
+                }
+            }
+            for (int i = 0; i < base.size; i++) {
+                allocate(i);
+            }
+            for (int level = 0; level < base.levels(); level++) {
+                final BigLongBuffer levelOffsets = base.offsets[level];
+                final BigIntBuffer levelLinks = base.links[level];
+                for (int p = 0; p + 1 < levelOffsets.size(); p++) {
+                    final int node = level == 0 ? p : base.nodes[level].get(p);
+                    final int[] l = graph[node][level];
+                    final long from = levelOffsets.get(p);
+                    l[0] = (int) Math.min(levelOffsets.get(p + 1) - from, l.length - 1);
+                    for (int i = 0; i < l[0]; i++) {
+                        l[i + 1] = levelLinks.get(from + i);
+                    }
+                }
+            }
+            this.entryPoint = base.entryPoint;
+            this.top = base.levels() - 1;
+        }
+
+        private int maxDegree(int level) {
+            return level == 0 ? 2 * m : m;
+        }
+
+        @Override
+        public int neighbors(int level, int node, int[] buffer) {
+            final int[][] nodeLinks = graph[node];
+            synchronized (nodeLinks) {
+                final int[] l = nodeLinks[level];
+                System.arraycopy(l, 1, buffer, 0, l[0]);
+                return l[0];
+            }
+        }
+
+        private void insert(int node, Search search) {
+            final int entry, top;
+            synchronized (lock) {
+                entry = this.entryPoint;
+                top = this.top;
+            }
+            final int level = levels[node];
+
+            if(entry >= 0) {
+                int current = entry;
+                for (int lc = top; lc > level; lc--) {
+                    current = greedy(this, similarity, node, current, lc, search.buffer);
+                }
+
+                int[] entryPoints = {current};
+                int entryCount = 1;
+                final TopK results = new TopK(efConstruction);
+                for (int lc = Math.min(top, level); lc >= 0; lc--) {
+                    results.clear();
+                    searchLayer(this, similarity, node, node, entryPoints, entryCount, lc, search, results);
+
+                    final int count = results.size();
+                    final int[] candidates = new int[count];
+                    final float[] candidateSimilarity = new float[count];
+                    for (int h = 0; h < count; h++) {
+                        candidates[h] = results.index(h);
+                        candidateSimilarity[h] = results.score(h);
+                    }
+                    sortDescending(candidates, candidateSimilarity, count);
+
+                    // The candidates are the entry points of the next level, before selection reorders them
+                    entryPoints = candidates.clone();
+                    entryCount = count;
+
+                    final int selected = select(similarity, candidates, candidateSimilarity, count, m);
+                    final int[][] nodeLinks = graph[node];
+                    synchronized (nodeLinks) {
+                        nodeLinks[lc][0] = selected;
+                        System.arraycopy(candidates, 0, nodeLinks[lc], 1, selected);
+                    }
+                    for (int i = 0; i < selected; i++) {
+                        connect(candidates[i], node, candidateSimilarity[i], lc);
+                    }
+                }
+            }
+
+            if(level > top) {
+                synchronized (lock) {
+                    if(level > this.top) {
+                        this.top = level;
+                        this.entryPoint = node;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add a link from the node to the new node, if the node has too many links keep the best ones
+         */
+        private void connect(int node, int added, float s, int level) {
+            final int[][] nodeLinks = graph[node];
+            synchronized (nodeLinks) {
+                final int[] l = nodeLinks[level];
+                final int count = l[0];
+                if(count + 1 < l.length) {
+                    l[count + 1] = added;
+                    l[0] = count + 1;
+                    return;
+                }
+
+                final int[] candidates = new int[count + 1];
+                final float[] candidateSimilarity = new float[count + 1];
+                for (int i = 0; i < count; i++) {
+                    candidates[i] = l[i + 1];
+                    candidateSimilarity[i] = similarity.similarity(node, l[i + 1]);
+                }
+                candidates[count] = added;
+                candidateSimilarity[count] = s;
+                sortDescending(candidates, candidateSimilarity, count + 1);
+
+                final int selected = select(similarity, candidates, candidateSimilarity, count + 1, count);
+                l[0] = selected;
+                System.arraycopy(candidates, 0, l, 1, selected);
+            }
+        }
+
+        private HnswGraph freeze(String[] keys, int ef) {
+            final int size = graph.length;
+            final IntBuffer[] nodes = new IntBuffer[top + 1];
+            final BigLongBuffer[] offsets = new BigLongBuffer[top + 1];
+            final BigIntBuffer[] links = new BigIntBuffer[top + 1];
+
+            for (int level = 0; level <= top; level++) {
+                int count = 0;
+                long linkCount = 0;
+                for (int i = 0; i < size; i++) {
+                    if(levels[i] < level) continue;
+                    count++;
+                    linkCount += graph[i][level][0];
+                }
+                final int[] levelNodes = level == 0 ? null : new int[count];
+                final BigLongBuffer levelOffsets = BigLongBuffer.allocate(count + 1);
+                final BigIntBuffer levelLinks = BigIntBuffer.allocate(linkCount);
+
+                int position = 0;
+                long offset = 0;
+                for (int i = 0; i < size; i++) {
+                    if(levels[i] < level) continue;
+                    final int[] l = graph[i][level];
+                    if(levelNodes != null) levelNodes[position] = i;
+                    for (int j = 1; j <= l[0]; j++) {
+                        levelLinks.put(offset++, l[j]);
+                    }
+                    levelOffsets.put(++position, offset);
+                }
+                nodes[level] = levelNodes == null ? null : IntBuffer.wrap(levelNodes);
+                offsets[level] = levelOffsets;
+                links[level] = levelLinks;
+            }
+            return new HnswGraph(size, keys, m, ef, efConstruction, entryPoint, nodes, offsets, links);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String[] keys() {
+        return keys;
+    }
+
+    public int levels() {
+        return offsets.length;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEf() {
+        return ef;
+    }
+
+    public void setEf(int ef) {
+        this.ef = ef;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    public int getEntryPoint() {
+        return entryPoint;
+    }
+
+    public IntBuffer nodes(int level) {
+        return nodes[level];
+    }
+
+    public BigLongBuffer offsets(int level) {
+        return offsets[level];
+    }
+
+    public BigIntBuffer links(int level) {
+        return links[level];
+    }
+}
@@ -0,0 +1,201 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Chooses m and ef of the HNSW index by measuring the recall of the k nearest neighbors. An index is built for every
+ * m of the grid on a random sample of the entities, and searched with increasing ef for a number of query entities
+ * of which the exact nearest neighbors within the sample are known. The setting with the lowest time to build the
+ * sample index and search all of its entities that reaches the target recall is chosen.
+ */
+public class HnswTuner {
+
+    private final static Logger logger = Logger.getLogger(HnswTuner.class);
+
+    public static final int[] M_GRID = {8, 12, 16, 24, 32, 48};
+    public static final int[] EF_GRID = {16, 32, 64, 128, 256, 512};
+    public static final int SAMPLE_SIZE = 100_000;
+    public static final int QUERIES = 2_000;
+    private static final long SEED = 42;
+
+    private final Embedding embedding;
+    private final float recall;
+    private final int efConstruction;
+    private final int threads;
+
+    public HnswTuner(Embedding embedding, Configuration config) {
+        this.embedding = embedding;
+        this.recall = config.getClustering().getCandidates().getRecall();
+        this.efConstruction = config.getClustering().getCandidates().getEfConstruction();
+        this.threads = config.getThreads();
+    }
+
+    /**
+     * A measured point of the grid
+     * @param seconds The time to build the sample index and search all of its entities
+     */
+    public record Setting(int m, int ef, double recall, double queriesPerSecond, double buildSeconds, double seconds) { }
+
+    public Setting tune(int k) {
+
+        final int n = embedding.getSize();
+        final Random random = new Random(SEED);
+        final int[] sample = IvfPqIndex.sample(n, Math.min(n, SAMPLE_SIZE), random);
+        final int[] queries = Arrays.copyOf(sample, Math.min(sample.length, QUERIES));
+        k = Math.min(k, sample.length - 1);
+
+        logger.info("Tuning HNSW parameters for recall@" + k + " of " + recall + " with " + queries.length
+                + " queries on a sample of " + sample.length + " entities");
+
+        final int[][] exact = exactNeighbors(sample, queries, k);
+        final HnswGraph.Similarity similarity = (a, b) -> embedding.cosineSimilarity(sample[a], sample[b]);
+
+        final List<Setting> settings = new ArrayList<>();
+        for (int m : M_GRID) {
+            final long start = System.nanoTime();
+            final HnswGraph graph = HnswGraph.build(sample.length, null, similarity, m, efConstruction, efConstruction, threads);
+            final double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+            int previous = 0;
+            for (int grid : EF_GRID) {
+                // The search needs at least k candidates
+                final int ef = Math.max(grid, k);
+                if(ef == previous) continue;
+                previous = ef;
+                graph.setEf(ef);
+                final Setting setting = measure(graph, similarity, sample, queries.length, exact, k, m, ef, buildSeconds);
+                settings.add(setting);
+                // A larger ef only makes the search slower
+                if(setting.recall() >= recall) break;
+            }
+        }
+
+        logger.info(String.format("%6s %6s %10s %12s %10s %10s", "m", "ef", "recall", "queries/s", "build s", "total s"));
+        for (Setting s : settings) {
+            logger.info(String.format("%6d %6d %10.4f %12.0f %10.2f %10.2f", s.m(), s.ef(), s.recall(), s.queriesPerSecond(), s.buildSeconds(), s.seconds()));
+        }
+
+        Setting best = null;
+        for (Setting s : settings) {
+            if(s.recall() >= recall && (best == null || s.seconds() < best.seconds())) best = s;
+        }
+        if(best == null) {
+            for (Setting s : settings) {
+                if(best == null || s.recall() > best.recall()) best = s;
+            }
+            logger.warn("No setting reaches a recall of " + recall + ", using the highest recall of " + String.format("%.4f", best.recall()));
+        }
+        logger.info("Chose m = " + best.m() + " and ef = " + best.ef() + " with a recall of " + String.format("%.4f", best.recall()));
+        return best;
+    }
+
+    /**
+     * Search the graph of the sample for all queries in parallel, the queries are the first nodes of the graph
+     */
+    private Setting measure(HnswGraph graph, HnswGraph.Similarity similarity, int[] sample, int queries,
+                            int[][] exact, int k, int m, int ef, double buildSeconds) {
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final List<Callable<Integer>> tasks = new ArrayList<>();
+        final int batchSize = (queries + threads - 1) / threads;
+        for (int from = 0; from < queries; from += batchSize) {
+            final int start = from, end = Math.min(queries, from + batchSize);
+            tasks.add(() -> {
+                final HnswGraph.Search search = graph.search();
+                final TopK nearest = new TopK(k);
+                int found = 0;
+                for (int q = start; q < end; q++) {
+                    final int[] neighbors = exact[q];
+                    graph.nearest(q, similarity, search, nearest);
+                    for (int h = 0; h < nearest.size(); h++) {
+                        final int b = sample[nearest.index(h)];
+                        for (int neighbor : neighbors) {
+                            if(neighbor == b) {
+                                found++;
+                                break;
+                            }
+                        }
+                    }
+                }
+                return found;
+            });
+        }
+
+        final long start = System.nanoTime();
+        long found = 0, total = 0;
+        try {
+            for (Future<Integer> future : es.invokeAll(tasks)) {
+                found += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while measuring the recall", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not measure the recall", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+        final double queriesPerSecond = queries / ((System.nanoTime() - start) / 1e9);
+
+        for (int[] neighbors : exact) total += neighbors.length;
+        final double measured = total == 0 ? 1 : (double) found / total;
+        return new Setting(m, ef, measured, queriesPerSecond, buildSeconds, buildSeconds + sample.length / queriesPerSecond);
+    }
+
+    /**
+     * @return The k most similar entities of the sample for every query, excluding the query itself
+     */
+    private int[][] exactNeighbors(int[] sample, int[] queries, int k) {
+
+        final int dimension = embedding.getDimension();
+        final float[] vectors = new float[sample.length * dimension];
+        final float[] vector = new float[dimension];
+        for (int i = 0; i < sample.length; i++) {
+            IvfPqIndex.unitVector(embedding, sample[i], vector);
+            System.arraycopy(vector, 0, vectors, i * dimension, dimension);
+        }
+
+        final int[][] exact = new int[queries.length][];
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+        for (int q = 0; q < queries.length; q++) {
+            final int query = q;
+            completionService.submit(() -> {
+                // The queries are the first entities of the sample
+                final TopK nearest = new TopK(k);
+                for (int j = 0; j < sample.length; j++) {
+                    if(j == query) continue;
+                    nearest.offer(sample[j], ExactCandidatePairs.dot(vectors, query * dimension, vectors, j * dimension, dimension));
+                }
+                exact[query] = new int[nearest.size()];
+                for (int h = 0; h < nearest.size(); h++) exact[query][h] = nearest.index(h);
+                return query;
+            });
+        }
+
+        try (ProgressBar pb = Progress.progressBar("Exact neighbors", queries.length, "queries")) {
+            for (int received = 0; received < queries.length; received++) {
+                completionService.take().get();
+                pb.step();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing exact neighbors", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not compute exact neighbors", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+        return exact;
+    }
+}
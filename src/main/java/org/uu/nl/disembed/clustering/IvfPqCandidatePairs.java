@@ -0,0 +1,122 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.concurrent.*;
+
+/**
+ * Candidate generation with an {@link IvfPqIndex}. For every entity a shortlist of the entities with the highest
+ * approximate similarity is retrieved from the index, which is re-ranked with the exact similarity of the original
+ * vectors to find the k nearest neighbors.
+ */
+public class IvfPqCandidatePairs implements CandidateGenerator {
+
+    private final static Logger logger = Logger.getLogger(IvfPqCandidatePairs.class);
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final Embedding embedding;
+    private final IvfPqIndex index;
+    private final int probes;
+    private final int rerank;
+    private final int threads;
+
+    public IvfPqCandidatePairs(Embedding embedding, Configuration config) {
+        this(embedding, IvfPqIndex.build(embedding,
+                config.getClustering().getCandidates().getLists(),
+                config.getClustering().getCandidates().getSubspaces(),
+                config.getThreads()), config);
+    }
+
+    public IvfPqCandidatePairs(Embedding embedding, IvfPqIndex index, Configuration config) {
+        if(index.size() != embedding.getSize() || index.dimension() != embedding.getDimension()) {
+            throw new IllegalArgumentException("The IVF-PQ index of " + index.size() + " vectors of dimension " + index.dimension()
+                    + " does not match the embedding of " + embedding.getSize() + " vectors of dimension " + embedding.getDimension());
+        }
+        final ClusterConfiguration.Candidates candidates = config.getClustering().getCandidates();
+        this.embedding = embedding;
+        this.index = index;
+        this.probes = Math.min(candidates.getProbes(), index.lists());
+        this.rerank = candidates.getRerank();
+        this.threads = config.getThreads();
+    }
+
+    public IvfPqIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public EdgeList getCandidatePairs(int k, float theta) {
+
+        final int n = embedding.getSize();
+        final int dimension = embedding.getDimension();
+        // The entity itself is usually part of the shortlist
+        final int shortlistSize = (k + 1) * rerank;
+
+        logger.info("Searching " + probes + " of " + index.lists() + " lists, re-ranking " + shortlistSize + " entities per query");
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<EdgeList> completionService = new ExecutorCompletionService<>(es);
+
+        final int batches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+        for (int batch = 0; batch < batches; batch++) {
+            final int from = batch * BATCH_SIZE;
+            final int to = Math.min(n, from + BATCH_SIZE);
+            completionService.submit(() -> {
+                final float[] query = new float[dimension];
+                final float[] table = new float[index.tableSize()];
+                final TopK probed = new TopK(probes);
+                final TopK shortlist = new TopK(shortlistSize);
+                final TopK nearest = new TopK(k);
+                final EdgeList pairs = new EdgeList((to - from) * k);
+
+                for (int a = from; a < to; a++) {
+                    IvfPqIndex.unitVector(embedding, a, query);
+                    index.search(query, table, probed, shortlist);
+
+                    nearest.clear();
+                    for (int h = 0; h < shortlist.size(); h++) {
+                        final int b = shortlist.index(h);
+                        if(b == a) continue;
+                        final float similarity = embedding.cosineSimilarity(a, b);
+                        if(similarity >= theta) nearest.offer(b, similarity);
+                    }
+                    for (int h = 0; h < nearest.size(); h++) {
+                        pairs.add(a, nearest.index(h), nearest.score(h));
+                    }
+                }
+                return pairs;
+            });
+        }
+
+        final long start = System.nanoTime();
+        final EdgeList pairs = new EdgeList(n);
+        try (ProgressBar pb = Progress.progressBar("IVF-PQ Nearest Neighbors", n, "entities")) {
+            for (int received = 0; received < batches; received++) {
+                pairs.addAll(completionService.take().get());
+                pb.stepTo(Math.min(n, (long) (received + 1) * BATCH_SIZE));
+                pb.setExtraMessage(Integer.toString(pairs.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching the IVF-PQ index", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not search the IVF-PQ index", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Searched " + n + " entities in " + String.format("%.2f", seconds) + " s ("
+                + String.format("%.0f", n / seconds) + " queries/s)");
+
+        // Both entities of a pair may find each other
+        pairs.sortUnique(threads);
+        return pairs;
+    }
+}
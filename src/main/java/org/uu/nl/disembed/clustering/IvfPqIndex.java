@@ -0,0 +1,406 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.array.BigByteBuffer;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Inverted file index with product quantization. A coarse k-means quantizer divides the normalized vectors over
+ * inverted lists, and the residual of every vector to its list centroid is encoded in one byte per subspace. The
+ * inner product of a query with an encoded vector is the inner product with the centroid plus the sum of a lookup
+ * table of inner products with the codewords, so the vectors themselves are not kept in the index.
+ */
+public class IvfPqIndex {
+
+    private final static Logger logger = Logger.getLogger(IvfPqIndex.class);
+
+    public static final int CODEBOOK_SIZE = 256;
+    /**
+     * Number of training vectors per centroid
+     */
+    private static final int TRAIN_PER_CENTROID = 64;
+    private static final int ITERATIONS = 15;
+    private static final int BATCH_SIZE = 1024;
+    private static final long SEED = 42;
+
+    private final int dimension, lists, subspaces, subDimension, codebookSize;
+    /**
+     * Centroid vectors of the inverted lists, lists x dimension
+     */
+    private final float[] centroids;
+    /**
+     * Codewords of the subspaces, subspaces x codebookSize x subDimension
+     */
+    private final float[] codebooks;
+    /**
+     * The entities of list l are ids[listStart[l]] to ids[listStart[l + 1]]
+     */
+    private final int[] listStart;
+    private final int[] ids;
+    /**
+     * The codes of ids[p] are codes[p * subspaces] to codes[(p + 1) * subspaces], indexed by a long
+     */
+    private final BigByteBuffer codes;
+
+    public IvfPqIndex(int dimension, int lists, int subspaces, int codebookSize,
+                      float[] centroids, float[] codebooks, int[] listStart, int[] ids, BigByteBuffer codes) {
+        this.dimension = dimension;
+        this.lists = lists;
+        this.subspaces = subspaces;
+        this.subDimension = dimension / subspaces;
+        this.codebookSize = codebookSize;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+        this.listStart = listStart;
+        this.ids = ids;
+        this.codes = codes;
+    }
+
+    /**
+     * @param lists The number of inverted lists, or 0 for four times the square root of the number of entities
+     * @param subspaces The number of subspaces, which must divide the dimension, or 0 for subspaces of about 4 dimensions
+     */
+    public static IvfPqIndex build(Embedding embedding, int lists, int subspaces, int threads) {
+
+        final int n = embedding.getSize();
+        final int dimension = embedding.getDimension();
+        if(lists <= 0) lists = (int) Math.max(1, Math.round(4 * Math.sqrt(n)));
+        lists = Math.min(lists, n);
+        if(subspaces <= 0) subspaces = defaultSubspaces(dimension);
+        if(dimension % subspaces != 0) {
+            throw new IllegalArgumentException("The number of subspaces " + subspaces + " does not divide the dimension " + dimension);
+        }
+        final int subDimension = dimension / subspaces;
+        // The centroids and the training sample are float arrays of vectors
+        final int maxVectors = Integer.MAX_VALUE / dimension;
+        if(lists > maxVectors) {
+            throw new IllegalArgumentException("The centroids of " + lists + " lists of dimension " + dimension + " do not fit in an array");
+        }
+
+        final Random random = new Random(SEED);
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final long start = System.nanoTime();
+
+        try {
+            // Train on a random sample of the normalized vectors
+            final int sampleSize = (int) Math.min(Math.min(n, maxVectors), (long) Math.max(lists, CODEBOOK_SIZE) * TRAIN_PER_CENTROID);
+            final int[] sampleIds = sample(n, sampleSize, random);
+            final float[] sample = new float[sampleSize * dimension];
+            final float[] vector = new float[dimension];
+            for (int i = 0; i < sampleSize; i++) {
+                unitVector(embedding, sampleIds[i], vector);
+                System.arraycopy(vector, 0, sample, i * dimension, dimension);
+            }
+
+            logger.info("Training coarse quantizer of " + lists + " lists on " + sampleSize + " vectors");
+            final float[] centroids = kMeans(sample, sampleSize, dimension, lists, random, es);
+
+            // The product quantizer is trained on the residuals of the sample
+            final int codebookSize = Math.min(CODEBOOK_SIZE, sampleSize);
+            for (int i = 0; i < sampleSize; i++) {
+                final int list = nearest(sample, i * dimension, centroids, lists, dimension);
+                for (int d = 0; d < dimension; d++) {
+                    sample[i * dimension + d] -= centroids[list * dimension + d];
+                }
+            }
+
+            logger.info("Training " + subspaces + " codebooks of " + codebookSize + " codewords of dimension " + subDimension);
+            final float[] codebooks = new float[subspaces * codebookSize * subDimension];
+            final float[] subSample = new float[sampleSize * subDimension];
+            for (int s = 0; s < subspaces; s++) {
+                for (int i = 0; i < sampleSize; i++) {
+                    System.arraycopy(sample, i * dimension + s * subDimension, subSample, i * subDimension, subDimension);
+                }
+                final float[] codebook = kMeans(subSample, sampleSize, subDimension, codebookSize, random, es);
+                System.arraycopy(codebook, 0, codebooks, s * codebookSize * subDimension, codebook.length);
+            }
+
+            // Assign all entities to their list in parallel
+            final int[] assignment = new int[n];
+            final int finalLists = lists, finalSubspaces = subspaces;
+            final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+            final int batches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+            for (int batch = 0; batch < batches; batch++) {
+                final int from = batch * BATCH_SIZE;
+                final int to = Math.min(n, from + BATCH_SIZE);
+                completionService.submit(() -> {
+                    final float[] v = new float[dimension];
+                    for (int i = from; i < to; i++) {
+                        unitVector(embedding, i, v);
+                        assignment[i] = nearest(v, 0, centroids, finalLists, dimension);
+                    }
+                    return to - from;
+                });
+            }
+            try (ProgressBar pb = Progress.progressBar("Assigning", n, "entities")) {
+                for (int received = 0; received < batches; received++) {
+                    pb.stepBy(completionService.take().get());
+                }
+            }
+
+            // Group the entities by list
+            final int[] listStart = new int[lists + 1];
+            for (int i = 0; i < n; i++) {
+                listStart[assignment[i] + 1]++;
+            }
+            for (int l = 0; l < lists; l++) {
+                listStart[l + 1] += listStart[l];
+            }
+            final int[] next = listStart.clone();
+            final int[] ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                ids[next[assignment[i]]++] = i;
+            }
+
+            // Encode the residuals in parallel, directly at their position in the inverted lists
+            final BigByteBuffer codes = BigByteBuffer.allocate((long) n * subspaces);
+            for (int batch = 0; batch < batches; batch++) {
+                final int from = batch * BATCH_SIZE;
+                final int to = Math.min(n, from + BATCH_SIZE);
+                completionService.submit(() -> {
+                    final float[] v = new float[dimension];
+                    for (int p = from; p < to; p++) {
+                        final int i = ids[p];
+                        final int list = assignment[i];
+                        unitVector(embedding, i, v);
+                        for (int d = 0; d < dimension; d++) {
+                            v[d] -= centroids[list * dimension + d];
+                        }
+                        for (int s = 0; s < finalSubspaces; s++) {
+                            final int code = nearest(v, s * subDimension, codebooks, s * codebookSize, codebookSize, subDimension);
+                            codes.put((long) p * finalSubspaces + s, (byte) code);
+                        }
+                    }
+                    return to - from;
+                });
+            }
+            try (ProgressBar pb = Progress.progressBar("Encoding", n, "entities")) {
+                for (int received = 0; received < batches; received++) {
+                    pb.stepBy(completionService.take().get());
+                }
+            }
+
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info("Built IVF-PQ index of " + n + " entities in " + String.format("%.2f", seconds) + " s, "
+                    + subspaces + " bytes per entity instead of " + (4 * dimension));
+
+            return new IvfPqIndex(dimension, lists, subspaces, codebookSize, centroids, codebooks, listStart, ids, codes);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the IVF-PQ index", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build the IVF-PQ index", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Find the entities with the highest approximate inner product with the query in the most similar lists
+     * @param query A vector of unit length
+     * @param table Buffer for the lookup table, of length {@link #tableSize()}
+     * @param probed Heap with the capacity of the number of lists to search
+     * @param shortlist Heap with the capacity of the number of entities to return
+     */
+    public void search(float[] query, float[] table, TopK probed, TopK shortlist) {
+
+        probed.clear();
+        shortlist.clear();
+        for (int l = 0; l < lists; l++) {
+            probed.offer(l, ExactCandidatePairs.dot(query, 0, centroids, l * dimension, dimension));
+        }
+
+        for (int s = 0; s < subspaces; s++) {
+            for (int c = 0; c < codebookSize; c++) {
+                table[s * codebookSize + c] = ExactCandidatePairs.dot(query, s * subDimension,
+                        codebooks, (s * codebookSize + c) * subDimension, subDimension);
+            }
+        }
+
+        for (int h = 0; h < probed.size(); h++) {
+            final int list = probed.index(h);
+            final float base = probed.score(h);
+            for (int p = listStart[list]; p < listStart[list + 1]; p++) {
+                float score = base;
+                final long offset = (long) p * subspaces;
+                for (int s = 0; s < subspaces; s++) {
+                    score += table[s * codebookSize + (codes.get(offset + s) & 0xFF)];
+                }
+                shortlist.offer(ids[p], score);
+            }
+        }
+    }
+
+    public int tableSize() {
+        return subspaces * codebookSize;
+    }
+
+    /**
+     * Copy the vector of entity i and scale it to unit length
+     */
+    public static void unitVector(Embedding embedding, int i, float[] vector) {
+        embedding.copyVector(i, vector);
+        if(!embedding.isNormalized()) Embedding.normalize(vector);
+    }
+
+    /**
+     * @return The number of subspaces such that each subspace has the smallest dimension of at least 4 that divides the dimension
+     */
+    public static int defaultSubspaces(int dimension) {
+        for (int subDimension = 4; subDimension < dimension; subDimension++) {
+            if(dimension % subDimension == 0) return dimension / subDimension;
+        }
+        return 1;
+    }
+
+    /**
+     * Lloyd's algorithm with squared Euclidean distance, initialized with k distinct data points
+     * @return The centroids, k x dimension
+     */
+    private static float[] kMeans(float[] data, int count, int dimension, int k, Random random, ExecutorService es)
+            throws InterruptedException, ExecutionException {
+
+        final float[] centroids = new float[k * dimension];
+        final int[] initial = sample(count, k, random);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(data, initial[c] * dimension, centroids, c * dimension, dimension);
+        }
+
+        final int[] assignment = new int[count];
+        Arrays.fill(assignment, -1);
+        final int rangeSize = Math.max(BATCH_SIZE, (count + 63) / 64);
+
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+
+            final List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int from = 0; from < count; from += rangeSize) {
+                final int start = from, end = Math.min(count, from + rangeSize);
+                tasks.add(() -> {
+                    int changed = 0;
+                    for (int i = start; i < end; i++) {
+                        final int c = nearest(data, i * dimension, centroids, k, dimension);
+                        if(c != assignment[i]) changed++;
+                        assignment[i] = c;
+                    }
+                    return changed;
+                });
+            }
+            int changed = 0;
+            for (Future<Integer> future : es.invokeAll(tasks)) {
+                changed += future.get();
+            }
+            if(changed == 0) break;
+
+            final double[] sums = new double[k * dimension];
+            final int[] sizes = new int[k];
+            for (int i = 0; i < count; i++) {
+                final int c = assignment[i];
+                sizes[c]++;
+                for (int d = 0; d < dimension; d++) {
+                    sums[c * dimension + d] += data[i * dimension + d];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if(sizes[c] == 0) {
+                    // Restart an empty cluster at a random data point
+                    System.arraycopy(data, random.nextInt(count) * dimension, centroids, c * dimension, dimension);
+                } else {
+                    for (int d = 0; d < dimension; d++) {
+                        centroids[c * dimension + d] = (float) (sums[c * dimension + d] / sizes[c]);
+                    }
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] vector, int offset, float[] centroids, int k, int dimension) {
+        return nearest(vector, offset, centroids, 0, k, dimension);
+    }
+
+    /**
+     * @param first Index of the first of the k centroids
+     * @return The index of the centroid closest to the vector, relative to the first
+     */
+    private static int nearest(float[] vector, int offset, float[] centroids, int first, int k, int dimension) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            final int centroid = (first + c) * dimension;
+            float distance = 0;
+            for (int d = 0; d < dimension; d++) {
+                final float diff = vector[offset + d] - centroids[centroid + d];
+                distance += diff * diff;
+            }
+            if(distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return k distinct random integers smaller than n
+     */
+    static int[] sample(int n, int k, Random random) {
+        final int[] all = new int[n];
+        for (int i = 0; i < n; i++) all[i] = i;
+        for (int i = 0; i < k; i++) {
+            final int j = i + random.nextInt(n - i);
+            final int swap = all[i];
+            all[i] = all[j];
+            all[j] = swap;
+        }
+        return Arrays.copyOf(all, k);
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int lists() {
+        return lists;
+    }
+
+    public int subspaces() {
+        return subspaces;
+    }
+
+    public int codebookSize() {
+        return codebookSize;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public float[] centroids() {
+        return centroids;
+    }
+
+    public float[] codebooks() {
+        return codebooks;
+    }
+
+    public int[] listStart() {
+        return listStart;
+    }
+
+    public int[] ids() {
+        return ids;
+    }
+
+    public BigByteBuffer codes() {
+        return codes;
+    }
+}
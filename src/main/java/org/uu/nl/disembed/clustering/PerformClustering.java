@@ -1,18 +1,23 @@
 package org.uu.nl.disembed.clustering;
 
-import me.tongfei.progressbar.ProgressBar;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ResIterator;
+import org.apache.jena.vocabulary.RDF;
 import org.apache.log4j.Logger;
 import org.uu.nl.disembed.clustering.rules.RuleChecker;
 import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
 import org.uu.nl.disembed.util.config.Configuration;
-import org.uu.nl.disembed.util.progress.Progress;
+import org.uu.nl.disembed.util.config.InvalidConfigException;
+import org.uu.nl.disembed.util.read.ClusterReader;
 import org.uu.nl.disembed.util.read.HnswIndexReader;
+import org.uu.nl.disembed.util.read.IvfPqIndexReader;
 import org.uu.nl.disembed.util.write.HnswIndexWriter;
+import org.uu.nl.disembed.util.write.IvfPqIndexWriter;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.*;
+import java.util.*;
 
 public record PerformClustering(Configuration config) {
 
@@ -32,40 +37,62 @@ public record PerformClustering(Configuration config) {
             final boolean usingRules = config.getClustering().getRules() != null;
             RuleChecker ruleChecker = usingRules ? new RuleChecker(model, embedding.getKeys(), config.getClustering()) : null;
 
+            // In bipartite mode, which entities belong to the source set
+            final Partition partition = config.getClustering().getBipartite() == null ? null : partition(model, embedding);
+            final boolean[] source = partition == null ? null : partition.source();
+
             int[][] components;
+            // In incremental mode, the clusters of the previous run that no new entity is linked to
+            int[][] kept = null;
 
             {
-                CandidatePairs cp;
-                if(config.getIntermediateInput() != null && config.getIntermediateInput().getHnsw() != null) {
-                    logger.info("Loading pre-computed HNSW index...");
-                    HnswIndexReader reader = new HnswIndexReader();
-                    cp = new CandidatePairs(embedding, reader.load(config.getIntermediateInput().getHnsw().getImportFile()), config);
-                } else {
-                    cp = new CandidatePairs(embedding, config);
-                    if(config.getIntermediateOutput().getHnsw() != null) {
-                        HnswIndexWriter writer = new HnswIndexWriter(cp.getIndex(), config);
-                        writer.write();
-                    }
-                }
+                final CandidateGenerator candidateGenerator = partition == null ?
+                        createCandidateGenerator(embedding) :
+                        new BipartiteCandidatePairs(embedding, partition.sources(), partition.targets(), config);
 
-                logger.info("Retrieving " + k + " approximate nearest neighbors");
+                logger.info("Retrieving candidate pairs with a similarity of at least " + theta);
 
-                int[][] candidatePairs = cp.getNearestNeighborPairs(embedding, k, theta);
+                EdgeList candidatePairs = candidateGenerator.getCandidatePairs(k, theta);
 
                 if (usingRules && config.getClustering().getRules().hasDefiniteRules()) {
                     candidatePairs = ruleChecker.pruneCandidatePairs(model, candidatePairs, maxQuerySize);
                 }
 
+                if (config.getClustering().getCandidates().isMutual()) {
+                    logger.info("Component sizes before mutual nearest neighbor filtering:");
+                    logComponentSizes(Util.connectedComponents(n, candidatePairs, numThreads));
+                    final int removed = Util.mutualNearestNeighbors(n, candidatePairs, k);
+                    logger.info("Removed " + removed + " candidate pairs that are not mutual nearest neighbors, "
+                            + candidatePairs.size() + " remain");
+                }
+
+                if (config.getClustering().isIncremental()) {
+                    kept = mergePreviousClusters(embedding, candidatePairs);
+                }
+
                 logger.info("Finding connected components...");
-                components = Util.connectedComponents(n, candidatePairs);
-                logger.info("Found " + components.length + " components");
+                components = Util.connectedComponents(n, candidatePairs, numThreads);
+                logComponentSizes(components);
 
-                int largestComponentSize = 0;
+                final int maxComponentSize = config.getClustering().getMaxComponentSize();
+                int fitting = 0;
+                long oversized = 0;
                 for (int[] component : components) {
-                    largestComponentSize = Math.max(component.length, largestComponentSize);
+                    if(component.length > maxComponentSize) oversized += component.length;
+                    else fitting++;
+                }
+                if (oversized > 0) {
+                    logger.info("Splitting " + (components.length - fitting) + " components larger than " + maxComponentSize
+                            + " at their weakest candidate pairs...");
+                    // The pieces follow the components that fit
+                    components = Util.splitComponents(n, candidatePairs, components, maxComponentSize);
+                    long recovered = 0;
+                    for (int i = fitting; i < components.length; i++) {
+                        recovered += components[i].length;
+                    }
+                    logger.info("Recovered " + recovered + " of " + oversized + " entities of oversized components in "
+                            + (components.length - fitting) + " pieces, which were skipped before");
                 }
-
-                logger.info("Largest component is size " + largestComponentSize);
 
                 System.gc();
             }
@@ -76,87 +103,202 @@ public record PerformClustering(Configuration config) {
                 logger.warn("Only 1 connected component found, consider increasing value of theta > " + theta);
             }
 
-            final ExecutorService es = Executors.newWorkStealingPool(numThreads);
-            CompletionService<ClusterAlgorithm.ClusterResult> completionService = new ExecutorCompletionService<>(es);
+            final ClusterScheduler scheduler = new ClusterScheduler(config, ruleChecker, embedding, theta, EPSILON, source);
+            int[][][] clusters = scheduler.cluster(components);
 
-            int ccJobs = 0;
-            int vJobs = 0;
-            int maxSize = 0;
-            int skipped = 0;
+            // The kept clusters of the previous run are the last group
+            if (kept != null) {
+                clusters = Arrays.copyOf(clusters, nComponents + 1);
+                clusters[nComponents] = kept;
+            }
 
-            for (int i = 0, j = 0; i < nComponents; i++) {
-                int size = components[i].length;
+            return new ClusteringResult(clusters);
+        } finally {
+            model.close();
+        }
+    }
+
+    /**
+     * Log the number of components and their entities per power of two of the component size
+     */
+    private void logComponentSizes(int[][] components) {
+
+        final int[] count = new int[32];
+        final long[] entities = new long[32];
+        int largest = 0;
+        for (int[] component : components) {
+            final int bucket = 31 - Integer.numberOfLeadingZeros(component.length);
+            count[bucket]++;
+            entities[bucket] += component.length;
+            largest = Math.max(component.length, largest);
+        }
+
+        logger.info("Found " + components.length + " components, largest component is size " + largest);
+        final int maxComponentSize = config.getClustering().getMaxComponentSize();
+        for (int bucket = 0; bucket < 32; bucket++) {
+            if(count[bucket] == 0) continue;
+            final long from = 1L << bucket;
+            final long to = (1L << (bucket + 1)) - 1;
+            logger.info(String.format("  size %8d - %8d: %8d components, %10d entities%s", from, to, count[bucket],
+                    entities[bucket], from > maxComponentSize ? " (split)" : ""));
+        }
+    }
+
+    /**
+     * Add the clusters of the previous run that share an entity with the pairs of the new entities to the pairs, so
+     * their components are clustered again together with the new entities
+     * @return The other clusters of the previous run, which are kept as they are
+     */
+    private int[][] mergePreviousClusters(Embedding embedding, EdgeList pairs) throws IOException {
+
+        if(config.getIntermediateInput() == null || config.getIntermediateInput().getClusters() == null) {
+            logger.warn("No clusters of a previous run configured, only the new entities are clustered");
+            return null;
+        }
+        final List<String[]> previous = new ClusterReader().load(config.getIntermediateInput().getClusters().getImportFile());
+        final Map<String, Integer> index = Util.keyIndex(embedding.getKeys());
+
+        final boolean[] linked = new boolean[embedding.getSize()];
+        for (int i = 0; i < pairs.size(); i++) {
+            linked[pairs.a(i)] = true;
+            linked[pairs.b(i)] = true;
+        }
 
-                if(size > config.getClustering().getMaxComponentSize()) {
-                    skipped++;
+        final List<int[]> kept = new ArrayList<>();
+        int touched = 0, missing = 0;
+        for (String[] keys : previous) {
+            final int[] cluster = new int[keys.length];
+            int size = 0;
+            boolean isTouched = false;
+            for (String key : keys) {
+                final Integer entity = index.get(key);
+                if(entity == null) {
+                    missing++;
                     continue;
                 }
+                cluster[size++] = entity;
+                isTouched |= linked[entity];
+            }
+            if(size == 0) continue;
 
-                maxSize = Math.max(size, maxSize);
-
-                if(size <= config.getClustering().getMaxCorrelationClusteringSize()) {
-                    ccJobs++;
-                    completionService.submit(
-                            new CorrelationClustering(
-                                    j,
-                                    components[i],
-                                    ruleChecker,
-                                    embedding.getVectors(),
-                                    theta,
-                                    EPSILON,
-                                    config.getThreads())
-                    );
-                } else {
-                    vJobs++;
-                    completionService.submit(
-                            new VoteClustering(
-                                    j,
-                                    components[i],
-                                    ruleChecker,
-                                    embedding.getVectors(),
-                                    theta,
-                                    EPSILON,
-                                    config.getThreads())
-                    );
+            if(isTouched) {
+                touched++;
+                // Connect the members, the similarity is not used by the components
+                for (int i = 1; i < size; i++) {
+                    pairs.add(cluster[0], cluster[i], 1);
                 }
-                j++;
+            } else {
+                kept.add(Arrays.copyOf(cluster, size));
             }
+        }
+        if(missing > 0) logger.warn(missing + " entities of the previous clusters are not part of the embedding");
+        logger.info("Clustering " + touched + " previous clusters again, keeping " + kept.size() + " clusters");
+
+        return kept.toArray(new int[0][]);
+    }
 
-            final int totalJobs = ccJobs + vJobs;
+    /**
+     * Divide the entities into the source and the target set of the bipartite configuration, by key prefix or by RDF
+     * type. An entity of both sets is a source, an entity of neither set is not linked at all.
+     */
+    private Partition partition(Model model, Embedding embedding) {
+
+        final ClusterConfiguration.Bipartite bipartite = config.getClustering().getBipartite();
+        final String[] keys = embedding.getKeys();
+        final int n = embedding.getSize();
+
+        final boolean[] isSource = new boolean[n];
+        final boolean[] isTarget = new boolean[n];
+        if(bipartite.byPrefix()) {
+            for (int i = 0; i < n; i++) {
+                isSource[i] = keys[i].startsWith(bipartite.getSourcePrefix());
+                isTarget[i] = !isSource[i] && keys[i].startsWith(bipartite.getTargetPrefix());
+            }
+        } else {
+            final Map<String, Integer> index = Util.keyIndex(keys);
+            markType(model, bipartite.getTargetType(), index, isTarget);
+            markType(model, bipartite.getSourceType(), index, isSource);
+            for (int i = 0; i < n; i++) {
+                if(isSource[i]) isTarget[i] = false;
+            }
+        }
 
-            logger.info("Submitted " + ccJobs + " correlation clustering jobs");
-            logger.info("Submitted " + vJobs + " vote clustering jobs");
-            logger.info("Skipped " + skipped + " components that were too large");
-            logger.info("Largest valid component: " + maxSize + " entities");
+        int nSources = 0, nTargets = 0;
+        for (int i = 0; i < n; i++) {
+            if(isSource[i]) nSources++;
+            else if(isTarget[i]) nTargets++;
+        }
+        final int[] sources = new int[nSources];
+        final int[] targets = new int[nTargets];
+        for (int i = 0, s = 0, t = 0; i < n; i++) {
+            if(isSource[i]) sources[s++] = i;
+            else if(isTarget[i]) targets[t++] = i;
+        }
+        logger.info("Linking " + nSources + " source entities to " + nTargets + " target entities, "
+                + (n - nSources - nTargets) + " entities belong to neither");
+        if(nSources == 0 || nTargets == 0) {
+            throw new InvalidConfigException("Error: bipartite linking needs both source and target entities, no entity is a "
+                    + (nSources == 0 ? "source" : "target") + (bipartite.byPrefix() ? ", check the prefixes" : ", check the types"));
+        }
 
-            // We don't know how many clusters we will find, so we use a ragged array for each valid component (i.e. job)
-            int[][][] clusters = new int[totalJobs][][];
+        return new Partition(sources, targets, isSource);
+    }
 
-            try (ProgressBar pb = Progress.progressBar("Clustering", totalJobs, "components")) {
+    private static void markType(Model model, String type, Map<String, Integer> index, boolean[] marked) {
+        final ResIterator subjects = model.listSubjectsWithProperty(RDF.type, model.createResource(type));
+        try {
+            while (subjects.hasNext()) {
+                final Integer entity = index.get(subjects.nextResource().getURI());
+                if(entity != null) marked[entity] = true;
+            }
+        } finally {
+            subjects.close();
+        }
+    }
 
-                // Retrieve the futures after computation (auto wait for it)
-                int received = 0;
+    private record Partition(int[] sources, int[] targets, boolean[] source) { }
 
-                while (received < totalJobs) {
+    private CandidateGenerator createCandidateGenerator(Embedding embedding) throws IOException {
 
-                    try {
-                        ClusterAlgorithm.ClusterResult clusterResult = completionService.take().get();
-                        clusters[clusterResult.index()] = clusterResult.cluster();
-                    } catch (ExecutionException | InterruptedException e) {
-                        e.printStackTrace();
-                    } finally {
-                        pb.step();
-                        received++;
+        return switch (config.getClustering().getCandidates().getMethodEnum()) {
+            case EXACT -> new ExactCandidatePairs(embedding, config);
+            case SIMHASH -> new SimHashCandidatePairs(embedding, config);
+            case IVFPQ -> {
+                if(config.getIntermediateInput() != null && config.getIntermediateInput().getIvfpq() != null) {
+                    logger.info("Loading pre-computed IVF-PQ index...");
+                    IvfPqIndexReader reader = new IvfPqIndexReader();
+                    yield new IvfPqCandidatePairs(embedding, reader.load(config.getIntermediateInput().getIvfpq().getImportFile()), config);
+                }
+                final IvfPqCandidatePairs cp = new IvfPqCandidatePairs(embedding, config);
+                if(config.getIntermediateOutput().getIvfpq() != null) {
+                    IvfPqIndexWriter writer = new IvfPqIndexWriter(cp.getIndex(), config);
+                    writer.write();
+                }
+                yield cp;
+            }
+            case HNSW -> {
+                final CandidatePairs cp;
+                if(config.getIntermediateInput() != null && config.getIntermediateInput().getHnsw() != null) {
+                    logger.info("Loading pre-computed HNSW index...");
+                    HnswIndexReader reader = new HnswIndexReader();
+                    cp = new CandidatePairs(embedding, reader.load(config.getIntermediateInput().getHnsw().getImportFile()), config);
+                    if(config.getClustering().isIncremental()) {
+                        logger.info("Linking " + cp.getQueried().length + " new entities");
+                    }
+                } else {
+                    if(config.getClustering().isIncremental()) {
+                        logger.warn("No HNSW index configured to link new entities to, building it for all entities");
                     }
+                    cp = new CandidatePairs(embedding, config);
                 }
-            } finally {
-                es.shutdown();
+                // In incremental mode the index includes the new entities, an unchanged loaded index is not written again
+                if(config.getIntermediateOutput().getHnsw() != null && cp.isModified()) {
+                    HnswIndexWriter writer = new HnswIndexWriter(cp.getGraph(), config);
+                    writer.write();
+                }
+                yield cp;
             }
-
-            return new ClusteringResult(clusters);
-        } finally {
-            model.close();
-        }
+        };
     }
 
     public record ClusteringResult(int[][][] clusters) { }
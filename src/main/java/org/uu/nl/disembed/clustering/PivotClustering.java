@@ -0,0 +1,302 @@
+package org.uu.nl.disembed.clustering;
+
+import org.uu.nl.disembed.clustering.rules.RuleChecker;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Heuristic correlation clustering for components that are too large for the exact integer program. Randomized pivot
+ * clustering (KwikCluster) picks an unclustered entity at random and clusters it with all unclustered entities it has
+ * a positive weight with. Every restart uses another random order, and improves its clustering with local search by
+ * moving single entities to another cluster and merging clusters, until no move improves the objective or the time
+ * budget is spent. The restarts run in parallel on the common pool, the clustering with the highest objective is kept.
+ */
+public class PivotClustering extends ClusterAlgorithm {
+
+    /**
+     * Improvements smaller than this are ignored, so rounding errors cannot make the local search cycle
+     */
+    private static final float MIN_GAIN = 1e-6f;
+
+    private final int restarts;
+    private final long nanos;
+
+    public PivotClustering(int index, int[] component, RuleChecker ruleChecker, Embedding embedding, float theta, float epsilon, int threads, boolean[] source, int restarts, float seconds) {
+        super(index, component, ruleChecker, embedding, theta, epsilon, threads, source);
+        this.restarts = restarts;
+        this.nanos = (long) (seconds * 1e9);
+    }
+
+    @Override
+    public ClusterResult cluster() {
+
+        final int n = component.length;
+
+        final float[] penalties = usingRules() ? ruleChecker.checkComponent(component) : null;
+        if(n < 3) return skip(n, penalties);
+
+        final int[] clustering = solve(n, weights(penalties), restarts, System.nanoTime() + nanos, threads, index);
+        return new ClusterResult(index, toClusterArrays(clustering));
+    }
+
+    /**
+     * @param weights The weights of all pairs in row-major order of the upper triangle
+     * @param deadline The value of {@link System#nanoTime()} after which the local search stops, restarts that have
+     *                 not started by then are skipped
+     * @return The cluster of every entity
+     */
+    public static int[] solve(int n, float[] weights, int restarts, long deadline, int threads, long seed) {
+
+        final int tasks = Math.max(1, restarts);
+        Solution best = null;
+
+        if(threads <= 1 || tasks == 1) {
+            for (int r = 0; r < tasks; r++) {
+                best = better(best, r == 0 || System.nanoTime() < deadline ? new Search(n, weights, seed * tasks + r).run(deadline) : null);
+            }
+            return best.clustering();
+        }
+
+        // The calling thread and at most threads - 1 tasks of the common pool take restarts in turn
+        final AtomicInteger next = new AtomicInteger();
+        final Supplier<Solution> worker = () -> {
+            Solution own = null;
+            for (int r = next.getAndIncrement(); r < tasks; r = next.getAndIncrement()) {
+                own = better(own, r == 0 || System.nanoTime() < deadline ? new Search(n, weights, seed * tasks + r).run(deadline) : null);
+            }
+            return own;
+        };
+
+        final List<Future<Solution>> futures = new ArrayList<>();
+        for (int t = 1; t < Math.min(threads, tasks); t++) {
+            futures.add(ForkJoinPool.commonPool().submit(worker::get));
+        }
+        try {
+            best = worker.get();
+            for (Future<Solution> future : futures) {
+                best = better(best, future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running pivot clustering", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not run pivot clustering", e.getCause());
+        } finally {
+            for (Future<Solution> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return best.clustering();
+    }
+
+    private static Solution better(Solution a, Solution b) {
+        if(a == null) return b;
+        if(b == null) return a;
+        return b.objective() > a.objective() ? b : a;
+    }
+
+    private record Solution(int[] clustering, double objective) { }
+
+    /**
+     * A single restart. Clusters are labeled with a vertex, the label of an empty cluster can be reused.
+     */
+    private static class Search {
+
+        private final int n;
+        private final float[] weights;
+        private final Random random;
+        /**
+         * The weight of (i, j) with i < j is at row[i] + j
+         */
+        private final int[] row;
+
+        private final int[] label;
+        private final int[] size;
+        private final int[] free;
+        private int freeCount;
+
+        // Scratch space to sum the weights of a vertex or cluster per cluster
+        private final float[] sums;
+        private final boolean[] touched;
+        private final int[] touchedLabels;
+        private int touchedCount;
+
+        Search(int n, float[] weights, long seed) {
+            this.n = n;
+            this.weights = weights;
+            this.random = new Random(seed);
+            this.row = new int[n];
+            for (int i = 0; i < n; i++) {
+                row[i] = i * n - i * (i + 1) / 2 - i - 1;
+            }
+            this.label = new int[n];
+            this.size = new int[n];
+            this.free = new int[n];
+            this.sums = new float[n];
+            this.touched = new boolean[n];
+            this.touchedLabels = new int[n];
+        }
+
+        Solution run(long deadline) {
+            pivot();
+            while (System.nanoTime() < deadline) {
+                boolean improved = relocate(deadline);
+                improved |= merge();
+                if(!improved) break;
+            }
+            return new Solution(label, objective(n, weights, label));
+        }
+
+        private float weight(int i, int j) {
+            return i < j ? weights[row[i] + j] : weights[row[j] + i];
+        }
+
+        private void pivot() {
+
+            final int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+
+            Arrays.fill(label, -1);
+            for (int p : order) {
+                if(label[p] != -1) continue;
+                label[p] = p;
+                size[p]++;
+                for (int v = 0; v < n; v++) {
+                    if(label[v] == -1 && weight(p, v) > 0) {
+                        label[v] = p;
+                        size[p]++;
+                    }
+                }
+            }
+            for (int l = 0; l < n; l++) {
+                if(size[l] == 0) free[freeCount++] = l;
+            }
+        }
+
+        /**
+         * Move every vertex to the cluster, or a new singleton cluster, that improves the objective the most
+         * @return Whether any vertex was moved
+         */
+        private boolean relocate(long deadline) {
+
+            boolean moved = false;
+            for (int v = 0; v < n && System.nanoTime() < deadline; v++) {
+                for (int u = 0; u < n; u++) {
+                    if(u != v) add(label[u], weight(u, v));
+                }
+
+                final int own = label[v];
+                final float current = sums[own];
+                float bestGain = MIN_GAIN;
+                int best = -1;
+                for (int t = 0; t < touchedCount; t++) {
+                    final int c = touchedLabels[t];
+                    if(c != own && sums[c] - current > bestGain) {
+                        bestGain = sums[c] - current;
+                        best = c;
+                    }
+                }
+                if(size[own] > 1 && -current > bestGain) {
+                    best = free[--freeCount];
+                }
+                reset();
+
+                if(best != -1) {
+                    label[v] = best;
+                    size[best]++;
+                    if(--size[own] == 0) free[freeCount++] = own;
+                    moved = true;
+                }
+            }
+            return moved;
+        }
+
+        /**
+         * Merge every cluster with the cluster it has the highest positive total weight with. A cluster that changed
+         * is not considered again in the same pass, so the totals of the other clusters stay valid.
+         * @return Whether any clusters were merged
+         */
+        private boolean merge() {
+
+            // Sort the vertices by cluster
+            final int[] start = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                start[label[v] + 1]++;
+            }
+            for (int l = 0; l < n; l++) {
+                start[l + 1] += start[l];
+            }
+            final int[] members = new int[n];
+            final int[] next = Arrays.copyOf(start, n);
+            for (int v = 0; v < n; v++) {
+                members[next[label[v]]++] = v;
+            }
+
+            final boolean[] changed = new boolean[n];
+            boolean merged = false;
+            for (int a = 0; a < n; a++) {
+                if(size[a] == 0 || changed[a]) continue;
+
+                for (int i = start[a]; i < start[a + 1]; i++) {
+                    final int u = members[i];
+                    for (int v = 0; v < n; v++) {
+                        if(label[v] != a) add(label[v], weight(u, v));
+                    }
+                }
+                float bestGain = MIN_GAIN;
+                int best = -1;
+                for (int t = 0; t < touchedCount; t++) {
+                    final int c = touchedLabels[t];
+                    if(!changed[c] && sums[c] > bestGain) {
+                        bestGain = sums[c];
+                        best = c;
+                    }
+                }
+                reset();
+
+                if(best != -1) {
+                    for (int i = start[a]; i < start[a + 1]; i++) {
+                        label[members[i]] = best;
+                    }
+                    size[best] += size[a];
+                    size[a] = 0;
+                    free[freeCount++] = a;
+                    changed[a] = changed[best] = true;
+                    merged = true;
+                }
+            }
+            return merged;
+        }
+
+        private void add(int c, float weight) {
+            if(!touched[c]) {
+                touched[c] = true;
+                touchedLabels[touchedCount++] = c;
+            }
+            sums[c] += weight;
+        }
+
+        private void reset() {
+            for (int t = 0; t < touchedCount; t++) {
+                sums[touchedLabels[t]] = 0;
+                touched[touchedLabels[t]] = false;
+            }
+            touchedCount = 0;
+        }
+    }
+}
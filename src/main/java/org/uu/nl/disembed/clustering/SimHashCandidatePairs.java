@@ -0,0 +1,400 @@
+package org.uu.nl.disembed.clustering;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.array.BigLongBuffer;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Threshold similarity join with random hyperplane locality sensitive hashing. Every band hashes a vector to r bits,
+ * one for each side of a random hyperplane. Two vectors with cosine similarity s agree on a bit with probability
+ * p = 1 - arccos(s) / pi, so they share the bucket of at least one of b bands with probability 1 - (1 - p^r)^b.
+ * The number of bits and bands are chosen from theta such that pairs with a similarity of theta are found with the
+ * configured recall, at the lowest expected cost. Candidates are verified with their exact similarity.
+ * The normalized vectors are hashed relative to their mean, otherwise a dominant common direction puts most entities on
+ * the same side of every hyperplane and into the same buckets. A bucket larger than the configured maximum fails the
+ * join, instead of verifying a quadratic number of pairs. The signatures are packed per entity in as many bits as
+ * the bands need, in chunks indexed by a long.
+ */
+public class SimHashCandidatePairs implements CandidateGenerator {
+
+    private final static Logger logger = Logger.getLogger(SimHashCandidatePairs.class);
+
+    /**
+     * The signature of a band must fit in an int
+     */
+    public static final int MAX_BITS = 32;
+    public static final int MAX_BANDS = 256;
+    private static final long SEED = 42;
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * Number of entities of which the centered vectors are sampled to tune the number of bits and bands
+     */
+    private static final int SAMPLE_SIZE = 1000;
+    /**
+     * Fraction of the entities closest to the mean for which the recall at theta is not guaranteed
+     */
+    private static final double NORM_QUANTILE = 0.01;
+
+    private final Embedding embedding;
+    private final float recall;
+    private final int maxBucketSize;
+    private final int threads;
+
+    public SimHashCandidatePairs(Embedding embedding, Configuration config) {
+        this.embedding = embedding;
+        this.recall = config.getClustering().getCandidates().getRecall();
+        this.maxBucketSize = config.getClustering().getCandidates().getMaxBucketSize();
+        this.threads = config.getThreads();
+    }
+
+    private record BandResult(EdgeList pairs, long verified, int largestBucket) { }
+
+    /**
+     * @param k Not used, all pairs with a similarity of at least theta are searched for
+     */
+    @Override
+    public EdgeList getCandidatePairs(int k, float theta) {
+
+        final int n = embedding.getSize();
+        final float[] mean = mean();
+        final float[][] sample = sample(mean);
+        final float centeredTheta = centeredTheta(theta, sample);
+        final int[] tuning = tune(centeredTheta, recall, n, similarities(sample));
+        final int bits = tuning[0], bands = tuning[1];
+
+        logger.info("Hashing " + n + " centered entities with " + bands + " bands of " + bits + " bits, theta "
+                + String.format("%.4f", theta) + " is at least " + String.format("%.4f", centeredTheta)
+                + " after centering, expected recall at theta " + String.format("%.4f", expectedRecall(centeredTheta, bits, bands)));
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final long start = System.nanoTime();
+
+        try {
+            final Signatures signatures = signatures(es, mean, bits, bands);
+
+            final CompletionService<BandResult> completionService = new ExecutorCompletionService<>(es);
+            for (int band = 0; band < bands; band++) {
+                final int b = band;
+                completionService.submit(() -> join(signatures, b, theta));
+            }
+
+            final EdgeList pairs = new EdgeList(n);
+            long verified = 0;
+            int largestBucket = 0;
+            try (ProgressBar pb = Progress.progressBar("SimHash join", bands, "bands")) {
+                for (int received = 0; received < bands; received++) {
+                    final BandResult result = completionService.take().get();
+                    pairs.addAll(result.pairs());
+                    verified += result.verified();
+                    largestBucket = Math.max(largestBucket, result.largestBucket());
+                    pb.step();
+                    pb.setExtraMessage(Integer.toString(pairs.size()));
+                }
+            }
+
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info("Found " + pairs.size() + " pairs by verifying " + verified + " candidates in "
+                    + String.format("%.2f", seconds) + " s, largest bucket has " + largestBucket + " entities");
+            return pairs;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during SimHash join", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not complete SimHash join", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Copy the normalized vector of the entity minus the mean
+     */
+    private void centered(int i, float[] mean, float[] vector) {
+        embedding.copyVector(i, vector);
+        if(!embedding.isNormalized()) Embedding.normalize(vector);
+        for (int d = 0; d < vector.length; d++) {
+            vector[d] -= mean[d];
+        }
+    }
+
+    /**
+     * @return The mean of the normalized vectors
+     */
+    private float[] mean() {
+        final int n = embedding.getSize();
+        final int dimension = embedding.getDimension();
+        final double[] sum = new double[dimension];
+        final float[] vector = new float[dimension];
+        for (int i = 0; i < n; i++) {
+            embedding.copyVector(i, vector);
+            if(!embedding.isNormalized()) Embedding.normalize(vector);
+            for (int d = 0; d < dimension; d++) {
+                sum[d] += vector[d];
+            }
+        }
+        final float[] mean = new float[dimension];
+        for (int d = 0; d < dimension && n > 0; d++) {
+            mean[d] = (float) (sum[d] / n);
+        }
+        return mean;
+    }
+
+    /**
+     * @return The centered vectors of a random sample of the entities
+     */
+    private float[][] sample(float[] mean) {
+        final int n = embedding.getSize();
+        final Random random = new Random(SEED);
+        final float[][] sample = new float[Math.min(n, SAMPLE_SIZE)][embedding.getDimension()];
+        for (int s = 0; s < sample.length; s++) {
+            centered(n <= SAMPLE_SIZE ? s : random.nextInt(n), mean, sample[s]);
+        }
+        return sample;
+    }
+
+    /**
+     * Two unit vectors with a similarity of theta are at a distance of sqrt(2 - 2 theta), which centering does not
+     * change, so the cosine similarity of the centered vectors is at least 1 - (1 - theta) / (|x - mean| |y - mean|).
+     * @return The bound for entities of which the centered norm is at least a low quantile of the sampled norms
+     * @throws IllegalStateException If that quantile of the entities coincides with the mean, so hyperplanes through the
+     * mean cannot separate them
+     */
+    private static float centeredTheta(float theta, float[][] sample) {
+        if(sample.length == 0) return theta;
+        final double[] norms = new double[sample.length];
+        for (int s = 0; s < sample.length; s++) {
+            norms[s] = Math.sqrt(ExactCandidatePairs.dot(sample[s], 0, sample[s], 0, sample[s].length));
+        }
+        Arrays.sort(norms);
+        final double norm = norms[(int) (NORM_QUANTILE * (norms.length - 1))];
+        if(norm == 0) {
+            throw new IllegalStateException("At least " + String.format("%.0f", NORM_QUANTILE * 100)
+                    + "% of the sampled entities are at the mean of the embedding, SimHash cannot separate them, use another candidate method");
+        }
+        return (float) Math.max(-1, Math.min(1, 1 - (1 - theta) / (norm * norm)));
+    }
+
+    /**
+     * @return The cosine similarities of all pairs of the sample
+     */
+    private static float[] similarities(float[][] sample) {
+        final float[] norms = new float[sample.length];
+        for (int s = 0; s < sample.length; s++) {
+            norms[s] = (float) Math.sqrt(ExactCandidatePairs.dot(sample[s], 0, sample[s], 0, sample[s].length));
+        }
+        final float[] similarities = new float[Util.nEdges(sample.length)];
+        int e = 0;
+        for (int i = 0; i < sample.length; i++) {
+            for (int j = i + 1; j < sample.length; j++) {
+                final float norm = norms[i] * norms[j];
+                similarities[e++] = norm == 0 ? 0 : ExactCandidatePairs.dot(sample[i], 0, sample[j], 0, sample[i].length) / norm;
+            }
+        }
+        return similarities;
+    }
+
+    /**
+     * The signatures of all bands of all entities. Each entity starts at a new long, so batches of entities can be
+     * written concurrently.
+     */
+    private static final class Signatures {
+
+        private final int bits;
+        private final long mask;
+        private final int words;
+        private final BigLongBuffer packed;
+
+        private Signatures(int n, int bits, int bands) {
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+            this.words = (bits * bands + Long.SIZE - 1) / Long.SIZE;
+            this.packed = BigLongBuffer.allocate((long) n * words);
+        }
+
+        /**
+         * Only to be called once per entity and band, the bits of a band are or-ed into place
+         */
+        private void set(int i, int band, int signature) {
+            final long bit = (long) band * bits;
+            final long word = (long) i * words + (bit >>> 6);
+            final int shift = (int) (bit & 63);
+            final long value = signature & mask;
+            packed.put(word, packed.get(word) | value << shift);
+            if(shift + bits > Long.SIZE) {
+                packed.put(word + 1, packed.get(word + 1) | value >>> (Long.SIZE - shift));
+            }
+        }
+
+        private int get(int i, int band) {
+            final long bit = (long) band * bits;
+            final long word = (long) i * words + (bit >>> 6);
+            final int shift = (int) (bit & 63);
+            long value = packed.get(word) >>> shift;
+            if(shift + bits > Long.SIZE) {
+                value |= packed.get(word + 1) << (Long.SIZE - shift);
+            }
+            return (int) (value & mask);
+        }
+    }
+
+    /**
+     * @return The signatures of the centered vectors of all entities per band, computed in parallel batches of entities
+     */
+    private Signatures signatures(ExecutorService es, float[] mean, int bits, int bands) throws InterruptedException, ExecutionException {
+
+        final int n = embedding.getSize();
+        final int dimension = embedding.getDimension();
+
+        // The hyperplanes of a band are stored contiguously
+        final Random random = new Random(SEED);
+        final float[][] planes = new float[bands][bits * dimension];
+        for (float[] band : planes) {
+            for (int d = 0; d < band.length; d++) {
+                band[d] = (float) random.nextGaussian();
+            }
+        }
+
+        final Signatures signatures = new Signatures(n, bits, bands);
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+        final int batches = (n + BATCH_SIZE - 1) / BATCH_SIZE;
+        for (int batch = 0; batch < batches; batch++) {
+            final int from = batch * BATCH_SIZE;
+            final int to = Math.min(n, from + BATCH_SIZE);
+            completionService.submit(() -> {
+                final float[] vector = new float[dimension];
+                for (int i = from; i < to; i++) {
+                    centered(i, mean, vector);
+                    for (int band = 0; band < bands; band++) {
+                        int signature = 0;
+                        for (int bit = 0; bit < bits; bit++) {
+                            if(ExactCandidatePairs.dot(vector, 0, planes[band], bit * dimension, dimension) >= 0) {
+                                signature |= 1 << bit;
+                            }
+                        }
+                        signatures.set(i, band, signature);
+                    }
+                }
+                return to - from;
+            });
+        }
+
+        try (ProgressBar pb = Progress.progressBar("SimHash signatures", n, "entities")) {
+            for (int received = 0; received < batches; received++) {
+                pb.stepBy(completionService.take().get());
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Verify all pairs in the same bucket of the given band. A pair that also shares a bucket in an earlier band is
+     * skipped, as it is verified there, so every pair is verified and reported only once.
+     * @throws IllegalStateException If a bucket has more than the maximum number of entities
+     */
+    private BandResult join(Signatures signatures, int band, float theta) {
+
+        final int n = embedding.getSize();
+
+        // Sort on signature, then on index
+        final long[] buckets = new long[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = ((signatures.get(i, band) & 0xFFFFFFFFL) << 32) | i;
+        }
+        Arrays.sort(buckets);
+
+        final EdgeList pairs = new EdgeList();
+        long verified = 0;
+        int largestBucket = 0;
+
+        for (int from = 0; from < n; ) {
+            int to = from + 1;
+            while (to < n && (buckets[to] >>> 32) == (buckets[from] >>> 32)) to++;
+            largestBucket = Math.max(largestBucket, to - from);
+            if(to - from > maxBucketSize) {
+                throw new IllegalStateException("SimHash bucket of " + (to - from) + " entities in band " + band
+                        + " exceeds the maximum bucket size of " + maxBucketSize + ", raise theta or the maximum bucket size");
+            }
+
+            for (int x = from; x < to; x++) {
+                final int i = (int) buckets[x];
+                next:
+                for (int y = x + 1; y < to; y++) {
+                    final int j = (int) buckets[y];
+                    for (int earlier = 0; earlier < band; earlier++) {
+                        if(signatures.get(i, earlier) == signatures.get(j, earlier)) continue next;
+                    }
+                    verified++;
+                    final float similarity = embedding.cosineSimilarity(i, j);
+                    if(similarity >= theta) pairs.add(i, j, similarity);
+                }
+            }
+            from = to;
+        }
+        return new BandResult(pairs, verified, largestBucket);
+    }
+
+    /**
+     * Choose the number of bits per band and the number of bands with the lowest expected cost, such that a pair with
+     * a similarity of theta is found with at least the given recall. The cost is the number of hyperplanes per entity
+     * plus the number of candidates to verify, of which the collision probability is estimated from the similarities
+     * of a sample of pairs, or of orthogonal pairs if there is no sample. If no combination reaches the recall, the one
+     * with the highest recall is used, with a warning.
+     * @return The number of bits and the number of bands
+     */
+    public static int[] tune(float theta, float recall, int n, float[] sample) {
+
+        final double p = agreement(theta);
+        final double[] agreements = new double[sample.length];
+        for (int e = 0; e < sample.length; e++) {
+            agreements[e] = agreement(sample[e]);
+        }
+        int bestBits = 1, bestBands = MAX_BANDS;
+        double bestCost = Double.MAX_VALUE;
+
+        for (int bits = 1; bits <= MAX_BITS; bits++) {
+            final double collision = Math.pow(p, bits);
+            final int bands = collision >= 1 ? 1 : (int) Math.ceil(Math.log(1 - recall) / Math.log(1 - collision));
+            if(bands < 1 || bands > MAX_BANDS) continue;
+
+            double pairCollision = Math.pow(0.5, bits);
+            if(agreements.length > 0) {
+                pairCollision = 0;
+                for (double agreement : agreements) {
+                    pairCollision += Math.pow(agreement, bits);
+                }
+                pairCollision /= agreements.length;
+            }
+            final double cost = bands * ((double) bits * n + (double) n * (n - 1) / 2 * pairCollision);
+            if(cost < bestCost) {
+                bestCost = cost;
+                bestBits = bits;
+                bestBands = bands;
+            }
+        }
+        if(bestCost == Double.MAX_VALUE) {
+            logger.warn("No combination of at most " + MAX_BANDS + " bands reaches a recall of " + recall + " at a similarity of "
+                    + String.format("%.4f", theta) + ", using " + bestBands + " bands of " + bestBits + " bit with an expected recall of "
+                    + String.format("%.4f", expectedRecall(theta, bestBits, bestBands)));
+        }
+        return new int[] {bestBits, bestBands};
+    }
+
+    public static double expectedRecall(float theta, int bits, int bands) {
+        return 1 - Math.pow(1 - Math.pow(agreement(theta), bits), bands);
+    }
+
+    /**
+     * @return The probability that a random hyperplane does not separate two vectors with the given cosine similarity
+     */
+    private static double agreement(float similarity) {
+        return 1 - Math.acos(Math.max(-1, Math.min(1, similarity))) / Math.PI;
+    }
+}
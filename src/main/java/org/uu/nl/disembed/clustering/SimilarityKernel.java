@@ -0,0 +1,134 @@
+package org.uu.nl.disembed.clustering;
+
+import org.uu.nl.disembed.embedding.opt.Embedding;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cosine similarities of the entities of a component. The normalized vectors of the component are gathered into one
+ * contiguous block once, so a similarity is the dot product of two rows of the block, and the pairs are computed in
+ * tiles of rows that fit in cache together. Tiles are computed in parallel for large components.
+ */
+public class SimilarityKernel {
+
+    /**
+     * Number of rows in a tile, two tiles of vectors of a few hundred dimensions fit in the L2 cache
+     */
+    private static final int TILE_SIZE = 64;
+    /**
+     * Smaller components are computed on the calling thread
+     */
+    private static final int PARALLEL_SIZE = 512;
+
+    private final int n;
+    private final int dimension;
+    private final float[] block;
+
+    public SimilarityKernel(Embedding embedding, int[] component) {
+        this.n = component.length;
+        this.dimension = embedding.getDimension();
+        this.block = new float[n * dimension];
+
+        final float[] vector = new float[dimension];
+        for (int i = 0; i < n; i++) {
+            embedding.copyVector(component[i], vector);
+            if(!embedding.isNormalized()) Embedding.normalize(vector);
+            System.arraycopy(vector, 0, block, i * dimension, dimension);
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return The similarities of all pairs in row-major order of the upper triangle
+     */
+    public float[] similarities(int threads) {
+
+        final float[] similarities = new float[Util.nEdges(n)];
+        forEachTile(0, n, threads, (from, to) -> {
+            for (int other = from; other < n; other += TILE_SIZE) {
+                final int otherTo = Math.min(n, other + TILE_SIZE);
+                for (int i = from; i < to; i++) {
+                    // The index of (i, j) is offset + j
+                    final int offset = i * n - i * (i + 1) / 2 - i - 1;
+                    for (int j = Math.max(other, i + 1); j < otherTo; j++) {
+                        similarities[offset + j] = ExactCandidatePairs.dot(block, i * dimension, block, j * dimension, dimension);
+                    }
+                }
+            }
+        });
+        return similarities;
+    }
+
+    /**
+     * Compute the similarities of the entities from to to with the entities before them, rows[i - from][j] is the
+     * similarity of i and j for all j smaller than i
+     */
+    public void rows(int from, int to, float[][] rows, int threads) {
+
+        forEachTile(from, to, threads, (tileFrom, tileTo) -> {
+            for (int other = 0; other < tileTo - 1; other += TILE_SIZE) {
+                final int otherTo = Math.min(tileTo - 1, other + TILE_SIZE);
+                for (int i = Math.max(tileFrom, other + 1); i < tileTo; i++) {
+                    final float[] row = rows[i - from];
+                    for (int j = other, end = Math.min(otherTo, i); j < end; j++) {
+                        row[j] = ExactCandidatePairs.dot(block, i * dimension, block, j * dimension, dimension);
+                    }
+                }
+            }
+        });
+    }
+
+    private interface Tile {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Apply the body to tiles of the rows from to to, in parallel if there are enough rows. The calling thread and at
+     * most threads - 1 tasks of the common pool take tiles in turn, so a solver uses no more threads than it has
+     * taken from the budget of the {@link ClusterScheduler}, and no pool is created per component.
+     */
+    private void forEachTile(int from, int to, int threads, Tile body) {
+
+        final int tiles = (to - from + TILE_SIZE - 1) / TILE_SIZE;
+        if(threads <= 1 || n < PARALLEL_SIZE || tiles <= 1) {
+            for (int tile = from; tile < to; tile += TILE_SIZE) {
+                body.apply(tile, Math.min(to, tile + TILE_SIZE));
+            }
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = () -> {
+            for (int tile = next.getAndIncrement(); tile < tiles; tile = next.getAndIncrement()) {
+                final int tileFrom = from + tile * TILE_SIZE;
+                body.apply(tileFrom, Math.min(to, tileFrom + TILE_SIZE));
+            }
+        };
+
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 1; t < Math.min(threads, tiles); t++) {
+            futures.add(ForkJoinPool.commonPool().submit(worker));
+        }
+        try {
+            worker.run();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing similarities", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not compute similarities", e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
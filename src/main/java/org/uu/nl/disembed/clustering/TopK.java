@@ -0,0 +1,87 @@
+package org.uu.nl.disembed.clustering;
+
+/**
+ * Keeps the k entities with the highest score in a min-heap of primitive arrays, the root is the lowest of them.
+ * The entities are not in order of score.
+ */
+public class TopK {
+
+    private final int[] index;
+    private final float[] score;
+    private int size;
+
+    public TopK(int k) {
+        this.index = new int[k];
+        this.score = new float[k];
+    }
+
+    /**
+     * @return Whether the entity is one of the k highest so far
+     */
+    public boolean offer(int entity, float value) {
+        if(size < index.length) {
+            siftUp(size++, entity, value);
+            return true;
+        }
+        if(index.length == 0 || value <= score[0]) return false;
+        siftDown(entity, value);
+        return true;
+    }
+
+    /**
+     * @return The lowest score of the k highest, or negative infinity while there are fewer than k
+     */
+    public float threshold() {
+        return size < index.length ? Float.NEGATIVE_INFINITY : score[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return index.length;
+    }
+
+    public int index(int i) {
+        return index[i];
+    }
+
+    public float score(int i) {
+        return score[i];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void siftUp(int position, int entity, float value) {
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if(score[parent] <= value) break;
+            index[position] = index[parent];
+            score[position] = score[parent];
+            position = parent;
+        }
+        index[position] = entity;
+        score[position] = value;
+    }
+
+    /**
+     * Replace the root
+     */
+    private void siftDown(int entity, float value) {
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if(child >= size) break;
+            if(child + 1 < size && score[child + 1] < score[child]) child++;
+            if(score[child] >= value) break;
+            index[position] = index[child];
+            score[position] = score[child];
+            position = child;
+        }
+        index[position] = entity;
+        score[position] = value;
+    }
+}
@@ -1,10 +1,10 @@
 package org.uu.nl.disembed.clustering;
 
-import com.carrotsearch.hppc.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
 import org.apache.commons.math.util.FastMath;
+import org.uu.nl.disembed.embedding.opt.Embedding;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,8 +24,12 @@ public class Util {
         return (float) (sumOfProducts(a, b) / (FastMath.sqrt(sumOfProducts(a,a)) * FastMath.sqrt(sumOfProducts(b,b))));
     }
 
-    public static float weight(int i, int j, float[][] vectors, float theta, float epsilon, float penalty) {
-        float sim = cosineSimilarity(vectors[i], vectors[j]) - theta - penalty;
+    public static float weight(int i, int j, Embedding embedding, float theta, float epsilon, float penalty) {
+        return weight(embedding.cosineSimilarity(i, j), theta, epsilon, penalty);
+    }
+
+    public static float weight(float similarity, float theta, float epsilon, float penalty) {
+        float sim = similarity - theta - penalty;
         return (sim == 0) ? epsilon : sim;
     }
 
@@ -35,33 +39,6 @@ public class Util {
         else return ((a - 1) * n - a * (a + 1) / 2 + b) - 1; // Subtract 1 to revert to 0-indexing
     }
 
-    public static List<int[]> choose(int n, int r) {
-
-        final List<int[]> combinations = new ArrayList<>();
-        int[] combination = new int[r];
-
-        // Initialize with the lowest lexicographic combination
-        for (int i = 0; i < r; i++) {
-            combination[i] = i;
-        }
-
-        while (combination[r - 1] < n) {
-            combinations.add(combination.clone());
-
-            // Generate next combination in lexicographic order
-            int t = r - 1;
-            while (t != 0 && combination[t] == n - r + t) {
-                t--;
-            }
-            combination[t]++;
-            for (int i = t + 1; i < r; i++) {
-                combination[i] = combination[i - 1] + 1;
-            }
-        }
-
-        return combinations;
-    }
-
     public static int[][] possiblePairs(int[] input) {
 
         final int k = 2;
@@ -106,121 +83,154 @@ public class Util {
         return result;
     }
 
-    private static IntArrayList[] adjacencyList(int n, int[][] index) {
-
-        int nEdges = index.length;
-        boolean[] processed = new boolean[n];
-        IntArrayList[] adjList = new IntArrayList[n];
-
-        for (int[] pair : index) {
-
-            int u = pair[0];
-            int v = pair[1];
-
-            if (processed[u]) {
-                adjList[u].add(v);
-            } else {
-                IntArrayList adj = new IntArrayList();
-                adj.add(v);
-                adjList[u] = adj;
+    /**
+     * Keep only the edges of which both vertices are among the k most similar neighbors of each other. The incident
+     * edges of every vertex are gathered in compressed sparse row form, and its k most similar ones are selected in a
+     * heap, so only primitive arrays are allocated.
+     * @return The number of removed edges
+     */
+    public static int mutualNearestNeighbors(int n, EdgeList edges, int k) {
+
+        final int m = edges.size();
+        final int[] start = new int[n + 1];
+        for(int e = 0; e < m; e++) {
+            start[edges.a(e) + 1]++;
+            start[edges.b(e) + 1]++;
+        }
+        for(int i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        final int[] incident = new int[start[n]];
+        final int[] next = Arrays.copyOf(start, n);
+        for(int e = 0; e < m; e++) {
+            incident[next[edges.a(e)]++] = e;
+            incident[next[edges.b(e)]++] = e;
+        }
 
-                processed[u] = true;
+        // The number of vertices of an edge that have it among their k most similar edges
+        final byte[] ranked = new byte[m];
+        final TopK nearest = new TopK(k);
+        for(int i = 0; i < n; i++) {
+            if(start[i + 1] - start[i] <= k) {
+                for(int j = start[i]; j < start[i + 1]; j++) ranked[incident[j]]++;
+                continue;
             }
-
-            if (processed[v]) {
-                adjList[v].add(u);
-            } else {
-                IntArrayList adj = new IntArrayList();
-                adj.add(u);
-                adjList[v] = adj;
-
-                processed[v] = true;
+            nearest.clear();
+            for(int j = start[i]; j < start[i + 1]; j++) {
+                nearest.offer(incident[j], edges.similarity(incident[j]));
             }
+            for(int h = 0; h < nearest.size(); h++) ranked[nearest.index(h)]++;
         }
-        return adjList;
-    }
 
-    private static IntArrayList bfs(int v, IntArrayList[] adjlist, boolean[] visited) {
-
-        IntArrayFIFOQueue q = new IntArrayFIFOQueue();
-        IntArrayList component = new IntArrayList();
-        q.enqueue(v);
-        visited[v] = true;
-
-        while (!q.isEmpty()) {
-            int u = q.dequeueInt();
-            component.add(u);
-            if(adjlist[u] == null) {
-                adjlist[u] = new IntArrayList();
-            }
-            IntArrayList adjV = adjlist[u];
-            int n = adjV.size();
-
-            for (int i = 0; i < n; i++) {
-                int nextVertex = adjV.get(i);
-                if (!visited[nextVertex]) {
-                    q.enqueue(nextVertex);
-                    visited[nextVertex] = true;
-                }
+        final boolean[] removed = new boolean[m];
+        int count = 0;
+        for(int e = 0; e < m; e++) {
+            if(ranked[e] < 2) {
+                removed[e] = true;
+                count++;
             }
-
         }
-        return component;
+        edges.remove(removed);
+        return count;
     }
 
-    public static int[][] connectedComponents(int n, int[][] index) {
+    /**
+     * Find the connected components with a concurrent union-find over the edges
+     * @return The components of more than one vertex, ordered by their smallest vertex
+     */
+    public static int[][] connectedComponents(int n, EdgeList edges, int threads) {
+        return Components.of(n, edges, threads).group(2, threads).toArrays();
+    }
 
-        final IntArrayList[] adjList = adjacencyList(n, index);
+    /**
+     * Split the components of more than maxSize vertices by single linkage with a size cap: their edges are added from
+     * the most to the least similar with a union-find, unless the union would exceed maxSize vertices. This removes the
+     * weakest edges of a component until every piece fits, as if its threshold was raised locally piece by piece.
+     * @return The components that fit and the pieces of more than one vertex of the others
+     */
+    public static int[][] splitComponents(int n, EdgeList edges, int[][] components, int maxSize) {
+
+        final boolean[] oversized = new boolean[n];
+        final List<int[]> result = new ArrayList<>(components.length);
+        for(int[] component : components) {
+            if(component.length <= maxSize) result.add(component);
+            else for(int v : component) oversized[v] = true;
+        }
+        if(result.size() == components.length) return components;
 
-        boolean[] visited = new boolean[n];
-        List<int[]> components = new ArrayList<>();
+        // The edges of a component are within the component, sort those of the oversized ones by descending similarity
+        int m = 0;
+        final long[] order = new long[edges.size()];
+        for(int e = 0; e < edges.size(); e++) {
+            if(oversized[edges.a(e)]) order[m++] = ((long) sortable(-edges.similarity(e)) << 32) | e;
+        }
+        Arrays.parallelSort(order, 0, m);
 
+        final int[] parent = new int[n];
+        final int[] size = new int[n];
         for(int i = 0; i < n; i++) {
-            if (!visited[i]) {
-                int[] component = bfs(i, adjList, visited).toArray();
-                // Remove singleton components
-                if(component.length > 1) components.add(component);
+            parent[i] = i;
+            size[i] = 1;
+        }
+        for(int i = 0; i < m; i++) {
+            final int e = (int) order[i];
+            final int a = find(parent, edges.a(e)), b = find(parent, edges.b(e));
+            if(a == b || size[a] + size[b] > maxSize) continue;
+            // Union by size
+            if(size[a] < size[b]) {
+                parent[a] = b;
+                size[b] += size[a];
+            } else {
+                parent[b] = a;
+                size[a] += size[b];
             }
         }
 
-        return components.toArray(int[][]::new);
-    }
-
-    public static float[] componentWeights(int[] component, float[][] vectors, float theta, float epsilon, float[] penalties) {
-
-            final int n = component.length;
-
-            float[] weights = new float[((n-1) * n)/2];
-            for(int i = 0, k = 0; i < n ; i++) {
-                for(int j = i + 1; j < n; j++) {
-                    weights[k] = weight(component[i], component[j], vectors, theta, epsilon, penalties[k]);
-                    k++;
+        // Gather the pieces per root in the order of their vertices
+        final int[] piece = new int[n];
+        Arrays.fill(piece, -1);
+        final List<int[]> pieces = new ArrayList<>();
+        final int[] filled = new int[n];
+        for(int[] component : components) {
+            if(component.length <= maxSize) continue;
+            for(int v : component) {
+                final int root = find(parent, v);
+                if(size[root] < 2) continue;
+                if(piece[root] == -1) {
+                    piece[root] = pieces.size();
+                    pieces.add(new int[size[root]]);
                 }
+                pieces.get(piece[root])[filled[root]++] = v;
             }
-            return weights;
+        }
+        result.addAll(pieces);
+        return result.toArray(int[][]::new);
     }
 
-    public static int[][] triangles(int n) {
-
-        final List<int[]> combinations = choose(n, 3);
-        final int nTriangles = combinations.size();
-
-        // Output matrix
-        final int[][] triangles = new int[nTriangles][3];
+    private static int find(int[] parent, int v) {
+        while(parent[v] != v) {
+            // Path halving
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
 
-        for (int i = 0; i < nTriangles; i++) {
-            for (int j = 0; j < 2; j++) {
-                for (int k = j + 1; k < 3; k++) {
+    /**
+     * @return An int with the same order as the float
+     */
+    private static int sortable(float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
 
-                    // Take an edge from the triangle
-                    int a = combinations.get(i)[j];
-                    int b = combinations.get(i)[k];
+    public static float[] componentWeights(int[] component, Embedding embedding, float theta, float epsilon, float[] penalties) {
 
-                    triangles[i][j + k - 1] = combinationToIndex(a, b, n);
-                }
+            final float[] weights = new SimilarityKernel(embedding, component).similarities(1);
+            for(int k = 0; k < weights.length; k++) {
+                weights[k] = weight(weights[k], theta, epsilon, penalties[k]);
             }
-        }
-        return triangles;
+            return weights;
     }
 
     public static boolean isValidCluster(int[] cluster, int minSize, int maxSize) {
@@ -242,6 +252,17 @@ public class Util {
         return validClusterCount;
     }
 
+    /**
+     * @return The index of each key
+     */
+    public static Map<String, Integer> keyIndex(String[] keys) {
+        final Map<String, Integer> index = new HashMap<>(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            index.put(keys[i], i);
+        }
+        return index;
+    }
+
     public static int nEdges(int n) {
         // Cast to long here, so we don't get negative values
         // even though the total number of edges would fit in the integer range
@@ -2,14 +2,21 @@ package org.uu.nl.disembed.clustering;
 
 import com.carrotsearch.hppc.IntArrayList;
 import org.uu.nl.disembed.clustering.rules.RuleChecker;
+import org.uu.nl.disembed.embedding.opt.Embedding;
 
 import java.util.HashMap;
 import java.util.Map;
 
 public class VoteClustering extends ClusterAlgorithm {
 
-    public VoteClustering(int index, int[] component, RuleChecker ruleChecker, float[][] vectors, float theta, float epsilon, int threads) {
-        super(index, component, ruleChecker, vectors, theta, epsilon, threads);
+    /**
+     * The similarities of at most this many rows, and floats in total, are computed ahead of the vote
+     */
+    private static final int ROW_BLOCK_SIZE = 256;
+    private static final int ROW_BLOCK_FLOATS = 1 << 22;
+
+    public VoteClustering(int index, int[] component, RuleChecker ruleChecker, Embedding embedding, float theta, float epsilon, int threads, boolean[] source) {
+        super(index, component, ruleChecker, embedding, theta, epsilon, threads, source);
     }
 
     @Override
@@ -22,16 +29,48 @@ public class VoteClustering extends ClusterAlgorithm {
 
         if(n < 3) return skip(n, penalties);
 
+        // Compute the weights of blocks of rows in parallel, as the vote needs them
+        final SimilarityKernel kernel = new SimilarityKernel(embedding, component);
+        final float[][] rows = new float[Math.max(1, Math.min(ROW_BLOCK_SIZE, ROW_BLOCK_FLOATS / n))][n];
+        final int[] clusters = vote(n, (i, row) -> {
+            // The vote starts at the second row
+            final int offset = i % rows.length;
+            if(offset == 0 || i == 1) {
+                kernel.rows(i - offset, Math.min(n, i - offset + rows.length), rows, threads);
+            }
+            System.arraycopy(rows[offset], 0, row, 0, i);
+            rowWeights(i, row, penalties);
+        });
+
+        return new ClusterResult(index, toClusterArrays(clusters));
+    }
+
+    public interface RowWeights {
+        /**
+         * Fill the row with the weights of entity i and every entity j before it
+         */
+        void weights(int i, float[] row);
+    }
+
+    /**
+     * Add the entities one by one to the cluster of earlier entities they have the highest positive total weight
+     * with, or to a new cluster
+     * @return For every entity the first entity of its cluster
+     */
+    public static int[] vote(int n, RowWeights rowWeights) {
+
         int nClust = 0;
         IntArrayList clusterIndex = new IntArrayList();
         int[] clusters = new int[n];
+        float[] row = new float[n];
 
-        clusters[0] = component[0];
+        clusters[0] = 0;
         clusterIndex.add(nClust++);
 
         for(int i = 1; i < n; i++) {
 
             float[] sums = new float[nClust];
+            rowWeights.weights(i, row);
 
             double bestSum = 0;
             int bestClst = 0;
@@ -39,8 +78,7 @@ public class VoteClustering extends ClusterAlgorithm {
 
             for(int j = 0; j < i; j++) {
 
-                int k = Util.combinationToIndex(i, j, n);
-                sums[clusterIndex.get(j)] += Util.weight(component[i], component[j], vectors, theta, epsilon, penalties != null ? penalties[k] : 0);
+                sums[clusterIndex.get(j)] += row[j];
 
                 if(sums[clusterIndex.get(j)] > bestSum) {
                     bestSum = sums[clusterIndex.get(j)];
@@ -53,11 +91,10 @@ public class VoteClustering extends ClusterAlgorithm {
                 clusters[i] = bestIndex;
                 clusterIndex.add(bestClst);
             } else {
-                clusters[i] = component[i];
+                clusters[i] = i;
                 clusterIndex.add(nClust++);
             }
         }
-
-        return new ClusterResult(index, toClusterArrays(clusters));
+        return clusters;
     }
 }
@@ -4,6 +4,7 @@ import me.tongfei.progressbar.ProgressBar;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.Model;
 import org.apache.log4j.Logger;
+import org.uu.nl.disembed.clustering.EdgeList;
 import org.uu.nl.disembed.clustering.Util;
 import org.uu.nl.disembed.util.config.ClusterConfiguration;
 import org.uu.nl.disembed.util.progress.Progress;
@@ -52,10 +53,10 @@ public class RuleChecker {
         }
     }
 
-    public int[][] pruneCandidatePairs(final Model model, int[][] pairs, int maxQuerySize) {
+    public EdgeList pruneCandidatePairs(final Model model, EdgeList pairs, int maxQuerySize) {
 
         int currentPair = 0;
-        int nPairs = pairs.length;
+        int nPairs = pairs.size();
         int removedCount = 0;
 
         boolean[] removed = new boolean[nPairs];
@@ -103,16 +104,11 @@ public class RuleChecker {
             }
         }
 
-        int[][] cleanPairs = new int[nPairs - removedCount][];
-        for (int i = 0, j = 0; i < nPairs; i++) {
-            if (!removed[i]) {
-                cleanPairs[j++] = pairs[i];
-            }
-        }
+        pairs.remove(removed);
 
         logger.info("Done, pruned " + removedCount + " candidate pairs");
 
-        return cleanPairs;
+        return pairs;
     }
 
     public float[] checkComponent(int[] component) {
@@ -311,9 +307,9 @@ public class RuleChecker {
 
     public record BatchQueryInfo(int currentPair, int currentComponent, int processedPairs, String batchQuery) {}
 
-    public PruneQueryInfo constructPruneQuery(String queryFormat, int[][] pairs, final int maxQuerySize, int currentPair) {
+    public PruneQueryInfo constructPruneQuery(String queryFormat, EdgeList pairs, final int maxQuerySize, int currentPair) {
 
-        final int nPairs = pairs.length;
+        final int nPairs = pairs.size();
 
         StringBuilder builder = new StringBuilder();
 
@@ -327,9 +323,9 @@ public class RuleChecker {
                     .append(" ")
                     .append(i)
                     .append(" <")
-                    .append(dict[pairs[i][0]])
+                    .append(dict[pairs.a(i)])
                     .append("><")
-                    .append(dict[pairs[i][1]])
+                    .append(dict[pairs.b(i)])
                     .append(">)\n");
         }
 
@@ -16,6 +16,7 @@ import org.uu.nl.disembed.util.progress.Progress;
 import org.uu.nl.disembed.util.read.BCAReader;
 import org.uu.nl.disembed.util.rnd.Permutation;
 import org.uu.nl.disembed.util.sparse.RandomAccessSparseMatrix;
+import org.uu.nl.disembed.util.sparse.SparseMatrix;
 
 import java.util.concurrent.*;
 
@@ -24,7 +25,7 @@ import java.util.concurrent.*;
  */
 public class BookmarkColoring implements CoOccurrenceMatrix {
 
-	private final RandomAccessSparseMatrix sparseMatrix;
+	private final SparseMatrix sparseMatrix;
 	private float max;
 	private final int focusVectors, contextVectors;
 	private final Permutation permutation;
@@ -44,13 +45,11 @@ public class BookmarkColoring implements CoOccurrenceMatrix {
 
 		this.sparseMatrix = skeleton.getMatrix();
 
-		int j = 0;
-
-		for(IntCursor c : graph.focusNodes()) {
-			int bookmark = c.value;
+		// Keep the order of the file, so focus indexes and keys line up with the original run
+		for(int j = 0; j < focusVectors; j++) {
+			int bookmark = skeleton.bookmark(j);
 			context2focus.put(bookmark, j);
-			focus2context[j] = j;
-			j++;
+			focus2context[j] = bookmark;
 		}
 
 		this.permutation = new Permutation(sparseMatrix.getNonZero());
@@ -69,7 +68,8 @@ public class BookmarkColoring implements CoOccurrenceMatrix {
 		this.focus2context = new int[focusVectors];
 
 
-		this.sparseMatrix = new RandomAccessSparseMatrix(focusVectors, contextVectors, focusVectors*100);
+		final RandomAccessSparseMatrix sparseMatrix = new RandomAccessSparseMatrix(focusVectors, contextVectors, focusVectors * 100L);
+		this.sparseMatrix = sparseMatrix;
 
 		final int numThreads = config.getThreads();
 
@@ -140,7 +140,7 @@ public class BookmarkColoring implements CoOccurrenceMatrix {
 		permutation = new Permutation(sparseMatrix.getNonZero());
 	}
 
-	public RandomAccessSparseMatrix getSparseMatrix() {
+	public SparseMatrix getSparseMatrix() {
 		return sparseMatrix;
 	}
 
@@ -155,25 +155,25 @@ public class BookmarkColoring implements CoOccurrenceMatrix {
 	 */
 	@Override
 	public double calculateMemoryMegaBytes() {
-		int matrixRAM = sparseMatrix.count32BitNumbers(); // Approx number of 32-bit numbers in graph
-		int mapRAM = (context2focus.size() * 2); // Approx number of 32-bit numbers in maps
+		long matrixRAM = sparseMatrix.count32BitNumbers(); // Approx number of 32-bit numbers in graph
+		long mapRAM = (context2focus.size() * 2L); // Approx number of 32-bit numbers in maps
 		double mb = (matrixRAM + mapRAM) / 262144d;
 		return (double) Math.round(mb * 100) / 100;
 	}
 	@Override
-	public int cIdx_I(int k) {
+	public int cIdx_I(long k) {
 		return contextIndex2Focus(sparseMatrix.getRow(permutation.randomAccess(k)));
 	}
 	@Override
-	public int cIdx_J(int k) {
+	public int cIdx_J(long k) {
 		return this.sparseMatrix.getColumn(permutation.randomAccess(k));
 	}
 	@Override
-	public float cIdx_C(int k) {
+	public float cIdx_C(long k) {
 		return this.sparseMatrix.getValue(permutation.randomAccess(k));
 	}
 	@Override
-	public int coOccurrenceCount() {
+	public long coOccurrenceCount() {
 		return this.sparseMatrix.getNonZero();
 	}
 
@@ -11,10 +11,10 @@ public interface CoOccurrenceMatrix {
 	int nrOfFocusVectors();
 	float max();
 	String getKey(int index);
-	int cIdx_I(int i);
-	int cIdx_J(int j);
-	float cIdx_C(int i);
-	int coOccurrenceCount();
+	int cIdx_I(long i);
+	int cIdx_J(long j);
+	float cIdx_C(long i);
+	long coOccurrenceCount();
 	void shuffle();
 	double calculateMemoryMegaBytes();
 }
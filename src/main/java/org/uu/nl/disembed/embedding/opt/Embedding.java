@@ -1,8 +1,14 @@
 package org.uu.nl.disembed.embedding.opt;
 
+import org.apache.commons.math.util.FastMath;
+
+import java.nio.FloatBuffer;
 import java.util.Iterator;
 
 /**
+ * The vectors of an embedding are either stored as separate arrays, or in chunks of contiguous vectors. Chunks are
+ * backed by large float arrays or by a memory-mapped file. In the latter case the vectors are read directly from
+ * the mapped file, and only copied to the heap when asked for a float array.
  * @author Jurian Baas
  */
 public class Embedding implements Iterable<Optimizer.EmbeddedEntity>{
@@ -11,12 +17,23 @@ public class Embedding implements Iterable<Optimizer.EmbeddedEntity>{
 	private final int dimension;
 	private final String[] keys;
 	private final float[][] vectors;
+	/**
+	 * Contiguous vectors, each chunk holds vectorsPerChunk vectors of fixed stride
+	 */
+	private final FloatBuffer[] chunks;
+	private final int vectorsPerChunk;
+	/**
+	 * Whether all vectors have unit length, in which case the cosine similarity is the dot product
+	 */
+	private boolean normalized;
 
 	public Embedding(int dimension, int size) {
 		this.dimension = dimension;
 		this.size = size;
 		this.keys = new String[size];
 		this.vectors = new float[size][dimension];
+		this.chunks = null;
+		this.vectorsPerChunk = 0;
 	}
 
 	public Embedding(String[] keys, float[][] vectors) {
@@ -24,22 +41,120 @@ public class Embedding implements Iterable<Optimizer.EmbeddedEntity>{
 		this.size = vectors.length;
 		this.keys = keys;
 		this.vectors = vectors;
+		this.chunks = null;
+		this.vectorsPerChunk = 0;
+	}
+
+	public Embedding(String[] keys, int dimension, FloatBuffer[] chunks, int vectorsPerChunk) {
+		this.dimension = dimension;
+		this.size = keys.length;
+		this.keys = keys;
+		this.vectors = null;
+		this.chunks = chunks;
+		this.vectorsPerChunk = vectorsPerChunk;
 	}
 
 	public void setKey(int i, String key) {
 		this.keys[i] = key;
 	}
 
+	/**
+	 * @throws java.nio.ReadOnlyBufferException For a memory-mapped embedding
+	 */
 	public void setVector(int i, float[] vector){
-		this.vectors[i] = vector;
+		if(isChunked()) chunks[i / vectorsPerChunk].put((i % vectorsPerChunk) * dimension, vector, 0, dimension);
+		else this.vectors[i] = vector;
 	}
 
 	public String[] getKeys() {
 		return keys;
 	}
 
-	public float[][] getVectors() {
-		return vectors;
+	public boolean isNormalized() {
+		return normalized;
+	}
+
+	public void setNormalized(boolean normalized) {
+		this.normalized = normalized;
+	}
+
+	private boolean isChunked() {
+		return chunks != null;
+	}
+
+	/**
+	 * @return The vector itself for an embedding stored as separate arrays, or a copy for a chunked embedding
+	 */
+	public float[] getVector(int i) {
+		if(!isChunked()) return vectors[i];
+		final float[] vector = new float[dimension];
+		copyVector(i, vector);
+		return vector;
+	}
+
+	public void copyVector(int i, float[] dest) {
+		if(isChunked()) {
+			chunks[i / vectorsPerChunk].get((i % vectorsPerChunk) * dimension, dest, 0, dimension);
+		} else {
+			System.arraycopy(vectors[i], 0, dest, 0, dimension);
+		}
+	}
+
+	public float get(int i, int d) {
+		if(isChunked()) return chunks[i / vectorsPerChunk].get((i % vectorsPerChunk) * dimension + d);
+		return vectors[i][d];
+	}
+
+	public float dot(int i, int j) {
+		float sum = 0;
+		if(isChunked()) {
+			final FloatBuffer a = chunks[i / vectorsPerChunk], b = chunks[j / vectorsPerChunk];
+			final int offsetA = (i % vectorsPerChunk) * dimension, offsetB = (j % vectorsPerChunk) * dimension;
+			for (int d = 0; d < dimension; d++) {
+				sum += a.get(offsetA + d) * b.get(offsetB + d);
+			}
+		} else {
+			final float[] a = vectors[i], b = vectors[j];
+			for (int d = 0; d < dimension; d++) {
+				sum += a[d] * b[d];
+			}
+		}
+		return sum;
+	}
+
+	public float cosineSimilarity(int i, int j) {
+		if(normalized) return dot(i, j);
+		return (float) (dot(i, j) / (FastMath.sqrt(dot(i, i)) * FastMath.sqrt(dot(j, j))));
+	}
+
+	/**
+	 * The vector of the entity always has unit length, so the inner product distance of the index is 1 - cosine similarity
+	 */
+	public Optimizer.EmbeddedEntity entity(int i) {
+		if(normalized) return new Optimizer.EmbeddedEntity(i, keys[i], getVector(i));
+		final float[] vector = new float[dimension];
+		copyVector(i, vector);
+		normalize(vector);
+		return new Optimizer.EmbeddedEntity(i, keys[i], vector);
+	}
+
+	/**
+	 * Scale the vector to unit length, a zero vector is left as is
+	 */
+	public static void normalize(float[] vector, int offset, int length) {
+		float squaredSum = 0;
+		for (int d = offset; d < offset + length; d++) {
+			squaredSum += vector[d] * vector[d];
+		}
+		if(squaredSum == 0) return;
+		final float magnitude = (float) Math.sqrt(squaredSum);
+		for (int d = offset; d < offset + length; d++) {
+			vector[d] /= magnitude;
+		}
+	}
+
+	public static void normalize(float[] vector) {
+		normalize(vector, 0, vector.length);
 	}
 
 	@Override
@@ -54,14 +169,7 @@ public class Embedding implements Iterable<Optimizer.EmbeddedEntity>{
 
 			@Override
 			public Optimizer.EmbeddedEntity next() {
-				final Optimizer.EmbeddedEntity entity = new Optimizer.EmbeddedEntity(
-						i,
-						keys[i],
-						vectors[i]
-				);
-
-				i++;
-				return entity;
+				return entity(i++);
 			}
 		};
 	}
@@ -0,0 +1,55 @@
+package org.uu.nl.disembed.embedding.opt;
+
+/**
+ * Telemetry of a single training epoch, collected by the {@link Optimizer}
+ * @param epoch Zero-based epoch number
+ * @param cost Average cost over all co-occurrences
+ * @param costDiff Absolute difference with the cost of the previous epoch
+ * @param epochMillis Wall time of the entire epoch, including the shuffle
+ * @param shuffleMillis Time spent shuffling the co-occurrence matrix
+ * @param updatesPerSecond Number of co-occurrences processed per second of job wall time
+ * @param threadMillis Time spent by each job, indexed by job id
+ * @param gradientMean Mean L2 norm of the gradients w.r.t. the focus and context vectors
+ * @param gradientStd Standard deviation of these gradient norms
+ * @param gradientMax Largest of these gradient norms
+ * @param nonFiniteRows Number of focus and context rows (including biases) containing NaN or Inf values
+ */
+public record EpochStatistics(
+		int epoch,
+		double cost,
+		double costDiff,
+		double epochMillis,
+		double shuffleMillis,
+		double updatesPerSecond,
+		double[] threadMillis,
+		double gradientMean,
+		double gradientStd,
+		double gradientMax,
+		long nonFiniteRows) {
+
+	public double minThreadMillis() {
+		double min = Double.POSITIVE_INFINITY;
+		for(double t : threadMillis) min = Math.min(min, t);
+		return threadMillis.length == 0 ? 0 : min;
+	}
+
+	public double maxThreadMillis() {
+		double max = 0;
+		for(double t : threadMillis) max = Math.max(max, t);
+		return max;
+	}
+
+	public double meanThreadMillis() {
+		double sum = 0;
+		for(double t : threadMillis) sum += t;
+		return threadMillis.length == 0 ? 0 : sum / threadMillis.length;
+	}
+
+	/**
+	 * @return Ratio of the slowest job to the average job, 1 means perfectly balanced
+	 */
+	public double threadImbalance() {
+		final double mean = meanThreadMillis();
+		return mean == 0 ? 1 : maxThreadMillis() / mean;
+	}
+}
@@ -0,0 +1,43 @@
+package org.uu.nl.disembed.embedding.opt;
+
+/**
+ * Running statistics of the gradient norms seen by a single optimization job. Each job owns its own instance,
+ * the instances of all jobs are merged after an epoch has finished.
+ */
+public class GradientStatistics {
+
+	private long count;
+	private double sum, sumOfSquares, max;
+
+	public void add(double norm) {
+		count++;
+		sum += norm;
+		sumOfSquares += norm * norm;
+		if(norm > max || Double.isNaN(norm)) max = norm;
+	}
+
+	public void merge(GradientStatistics other) {
+		count += other.count;
+		sum += other.sum;
+		sumOfSquares += other.sumOfSquares;
+		if(other.max > max || Double.isNaN(other.max)) max = other.max;
+	}
+
+	public long count() {
+		return count;
+	}
+
+	public double mean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	public double std() {
+		if(count == 0) return 0;
+		final double mean = mean();
+		return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+	}
+
+	public double max() {
+		return max;
+	}
+}
@@ -1,5 +1,7 @@
 package org.uu.nl.disembed.embedding.opt;
 
+import java.util.List;
+
 /**
  * @author Jurian Baas
  */
@@ -8,4 +10,5 @@ public interface IOptimizer {
 	String getName();
 	OptimizeJob createJob(int id, int iteration);
 	double calculateMemoryMegaBytes();
+	List<EpochStatistics> getStatistics();
 }
@@ -5,4 +5,12 @@ import java.util.concurrent.Callable;
 /**
  * @author Jurian Baas
  */
-public interface OptimizeJob extends Callable<Float> { }
+public interface OptimizeJob extends Callable<OptimizeJob.Result> {
+
+	/**
+	 * Outcome of one job for one epoch
+	 * @param cost The summed cost over all co-occurrences processed by this job
+	 * @param gradients Norms of the gradients w.r.t. the focus and context vectors of each update
+	 */
+	record Result(float cost, GradientStatistics gradients) { }
+}
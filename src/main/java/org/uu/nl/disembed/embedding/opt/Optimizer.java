@@ -10,7 +10,9 @@ import org.uu.nl.disembed.util.progress.Progress;
 import org.uu.nl.disembed.util.rnd.ExtendedRandom;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
@@ -25,14 +27,15 @@ public abstract class Optimizer implements IOptimizer {
 	protected final int dimension;
 	protected final int contextVectors, focusVectors;
 	protected final int numThreads;
-	protected final int coCount;
+	protected final long coCount;
 	protected final float learningRate = 0.05f;
 	protected final float[][] focus, context;
 	protected final float[] fBias, cBias;
-	protected final int[] linesPerThread;
+	protected final long[] linesPerThread;
 	protected final CostFunction costFunction;
 	private final int maxIterations;
 	private final double tolerance;
+	private final List<EpochStatistics> statistics = new ArrayList<>();
 
 	/**
 	 * Estimate RAM usage of this object.
@@ -40,8 +43,8 @@ public abstract class Optimizer implements IOptimizer {
 	 */
 	@Override
 	public double calculateMemoryMegaBytes() {
-		int focusVec_mb = focusVectors * dimension;
-		int contextVec_mb = contextVectors * dimension;
+		long focusVec_mb = (long) focusVectors * dimension;
+		long contextVec_mb = (long) contextVectors * dimension;
 		double mb = (focusVec_mb + contextVec_mb + focusVectors + contextVectors) / 262144d;
 		return (double) Math.round(mb * 100) / 100;
 	}
@@ -87,7 +90,7 @@ public abstract class Optimizer implements IOptimizer {
 			}
 		}
 
-		this.linesPerThread = new int[numThreads];
+		this.linesPerThread = new long[numThreads];
 		for (int i = 0; i < numThreads - 1; i++) {
 			linesPerThread[i] = coCount / numThreads;
 		}
@@ -99,7 +102,8 @@ public abstract class Optimizer implements IOptimizer {
 
 		final Embedding embedding = new Embedding(dimension, focusVectors);
 		final ExecutorService es = Executors.newWorkStealingPool(numThreads);
-		final CompletionService<Float> completionService = new ExecutorCompletionService<>(es);
+		final CompletionService<OptimizeJob.Result> completionService = new ExecutorCompletionService<>(es);
+		final long[] threadNanos = new long[numThreads];
 
 		try(ProgressBar pb = Progress.progressBar(getName(), maxIterations, "epochs")) {
 
@@ -107,32 +111,56 @@ public abstract class Optimizer implements IOptimizer {
 			double iterDiff;
 			for (int iteration = 0; iteration < maxIterations; iteration++) {
 
+				final long epochStart = System.nanoTime();
 				coMatrix.shuffle();
+				final long shuffleEnd = System.nanoTime();
+
+				for (int id = 0; id < numThreads; id++) {
+					final int jobId = id;
+					final OptimizeJob job = createJob(id, iteration);
+					completionService.submit(() -> {
+						final long start = System.nanoTime();
+						final OptimizeJob.Result result = job.call();
+						threadNanos[jobId] = System.nanoTime() - start;
+						return result;
+					});
+				}
 
-				for (int id = 0; id < numThreads; id++)
-					completionService.submit(createJob(id, iteration));
-				
 				int received = 0;
 				double localCost = 0;
+				final GradientStatistics gradients = new GradientStatistics();
 
 				while(received < numThreads) {
 					try {
-						localCost += completionService.take().get();
+						OptimizeJob.Result result = completionService.take().get();
+						localCost += result.cost();
+						gradients.merge(result.gradients());
 						received++;
 					} catch (InterruptedException | ExecutionException e) {
 						e.printStackTrace();
 					}
 				}
 
-				if(Double.isNaN(localCost) || Double.isInfinite(localCost)) {
-					throw new OptimizationFailedException("Cost infinite or NAN");
+				final long epochEnd = System.nanoTime();
+				final long nonFiniteRows = countNonFiniteRows();
+				if(nonFiniteRows > 0) {
+					logger.warn("Epoch " + iteration + ": " + nonFiniteRows + " rows contain NaN or Inf values");
 				}
 
+				final boolean diverged = Double.isNaN(localCost) || Double.isInfinite(localCost);
+
 				localCost = (localCost / coCount);
 
 				//opt.addIntermediaryResult(localCost);
 				iterDiff = FastMath.abs(prevCost - localCost);
 
+				statistics.add(createStatistics(iteration, localCost, iterDiff,
+						epochEnd - epochStart, shuffleEnd - epochStart, threadNanos, gradients, nonFiniteRows));
+
+				if(diverged) {
+					throw new OptimizationFailedException("Cost infinite or NAN");
+				}
+
 				pb.step();
 				pb.setExtraMessage(formatMessage(iterDiff));
 				prevCost = localCost;
@@ -152,10 +180,67 @@ public abstract class Optimizer implements IOptimizer {
 			embedding.setKey(i, entity.key);
 			embedding.setVector(i, entity.vector);
 		}
+		embedding.setNormalized(true);
 
 		return embedding;
 	}
 
+	@Override
+	public List<EpochStatistics> getStatistics() {
+		return statistics;
+	}
+
+	private EpochStatistics createStatistics(int iteration, double cost, double costDiff, long epochNanos, long shuffleNanos,
+											 long[] threadNanos, GradientStatistics gradients, long nonFiniteRows) {
+
+		final double[] threadMillis = new double[threadNanos.length];
+		long maxThreadNanos = 0;
+		for (int i = 0; i < threadNanos.length; i++) {
+			threadMillis[i] = threadNanos[i] / 1e6;
+			maxThreadNanos = Math.max(maxThreadNanos, threadNanos[i]);
+		}
+
+		// Jobs run in parallel, so the slowest job determines the throughput
+		final double updatesPerSecond = maxThreadNanos == 0 ? 0 : coCount / (maxThreadNanos / 1e9);
+
+		return new EpochStatistics(
+				iteration,
+				cost,
+				costDiff,
+				epochNanos / 1e6,
+				shuffleNanos / 1e6,
+				updatesPerSecond,
+				threadMillis,
+				gradients.mean(),
+				gradients.std(),
+				gradients.max(),
+				nonFiniteRows
+		);
+	}
+
+	/**
+	 * Divergence usually shows up in a few rows before the total cost becomes NaN, so we count them separately
+	 * @return The number of focus and context rows that contain at least one NaN or Inf value
+	 */
+	private long countNonFiniteRows() {
+		long count = 0;
+		for (int i = 0; i < focusVectors; i++) {
+			if(isNonFinite(focus[i], fBias[i])) count++;
+		}
+		for (int i = 0; i < contextVectors; i++) {
+			if(isNonFinite(context[i], cBias[i])) count++;
+		}
+		return count;
+	}
+
+	private static boolean isNonFinite(float[] vector, float bias) {
+		if(!Float.isFinite(bias)) return true;
+		for (float v : vector) {
+			if(!Float.isFinite(v)) return true;
+		}
+		return false;
+	}
+
 	private String formatMessage(double iterDiff) {
 		return new BigDecimal(iterDiff).stripTrailingZeros().toPlainString();
 	}
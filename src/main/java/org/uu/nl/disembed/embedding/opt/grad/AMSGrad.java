@@ -3,6 +3,7 @@ package org.uu.nl.disembed.embedding.opt.grad;
 import org.apache.commons.math.util.FastMath;
 import org.uu.nl.disembed.embedding.bca.CoOccurrenceMatrix;
 import org.uu.nl.disembed.embedding.opt.CostFunction;
+import org.uu.nl.disembed.embedding.opt.GradientStatistics;
 import org.uu.nl.disembed.embedding.opt.OptimizeJob;
 import org.uu.nl.disembed.embedding.opt.Optimizer;
 import org.uu.nl.disembed.util.config.Configuration;
@@ -97,10 +98,12 @@ public class AMSGrad extends Optimizer {
 
 		return () -> {
 
-			int i, d, i_u, i_v, bu, bv;
+			long i;
+			int d, i_u, i_v, bu, bv;
 			float Xij, m, v, grad_u, grad_v;
-			float cost = 0, innerCost, weightedCost;
-			final int offset = coCount / numThreads * id;
+			float cost = 0, innerCost, weightedCost, gradNorm;
+			final long offset = coCount / numThreads * id;
+			final GradientStatistics gradients = new GradientStatistics();
 
 			for (i = 0; i < linesPerThread[id]; i++) {
 
@@ -118,6 +121,7 @@ public class AMSGrad extends Optimizer {
 				 ---------------------------*/
 
 				// Compute for node vectors
+				gradNorm = 0;
 				for (d = 0; d < dimension; d++) {
 
 					//d1 = d + i_u; // Index of specific dimension in focus vector
@@ -126,6 +130,7 @@ public class AMSGrad extends Optimizer {
 					// Compute gradients
 					grad_u = weightedCost * context[i_v][d];
 					grad_v = weightedCost * focus[i_u][d];
+					gradNorm += grad_u * grad_u + grad_v * grad_v;
 
 					m = beta1 * M1focus[i_u][d] + (1 - beta1) * grad_u;
 					v = FastMath.max(M2focus[i_u][d], beta2 * M2focus[i_u][d] + (1 - beta2) * (grad_u * grad_u));
@@ -140,6 +145,8 @@ public class AMSGrad extends Optimizer {
 					M2context[i_v][d] = v;
 				}
 
+				gradients.add(FastMath.sqrt(gradNorm));
+
 				/*---------------------
 				 * Compute for biases *
 				 ---------------------*/
@@ -157,7 +164,7 @@ public class AMSGrad extends Optimizer {
 				M1cBias[i_v] = m;
 				M2cBias[i_v] = v;
 			}
-			return cost;
+			return new OptimizeJob.Result(cost, gradients);
 		};
 	}
 }
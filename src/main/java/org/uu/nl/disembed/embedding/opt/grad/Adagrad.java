@@ -3,6 +3,7 @@ package org.uu.nl.disembed.embedding.opt.grad;
 import org.apache.commons.math.util.FastMath;
 import org.uu.nl.disembed.embedding.bca.CoOccurrenceMatrix;
 import org.uu.nl.disembed.embedding.opt.CostFunction;
+import org.uu.nl.disembed.embedding.opt.GradientStatistics;
 import org.uu.nl.disembed.embedding.opt.OptimizeJob;
 import org.uu.nl.disembed.embedding.opt.Optimizer;
 import org.uu.nl.disembed.util.config.Configuration;
@@ -55,9 +56,11 @@ public class Adagrad extends Optimizer {
     public OptimizeJob createJob(int id, int iteration) {
         return () -> {
 
-            int i, d, u, v;
-            float cost = 0, Xij, innerCost, weightedCost, grad1, grad2;
-            final int offset = coCount / numThreads * id;
+            long i;
+            int d, u, v;
+            float cost = 0, Xij, innerCost, weightedCost, grad1, grad2, gradNorm;
+            final long offset = coCount / numThreads * id;
+            final GradientStatistics gradients = new GradientStatistics();
 
             for (i = 0; i < linesPerThread[id]; i++) {
 
@@ -75,6 +78,7 @@ public class Adagrad extends Optimizer {
 				 ---------------------------*/
 
                 // Compute for word vectors
+                gradNorm = 0;
                 for (d = 0; d < dimension; d++) {
 
                     //d1 = d + u; // Index of specific dimension in focus vector
@@ -83,6 +87,7 @@ public class Adagrad extends Optimizer {
                     // Compute gradients
                     grad1 = weightedCost * context[v][d];
                     grad2 = weightedCost * focus[u][d];
+                    gradNorm += grad1 * grad1 + grad2 * grad2;
                     // Compute and apply updates
                     focus[u][d] -= grad1 / FastMath.sqrt(gradSqFocus[u][d]) * learningRate;
                     context[v][d] -= grad2 / FastMath.sqrt(gradSqContext[v][d]) * learningRate;
@@ -91,6 +96,8 @@ public class Adagrad extends Optimizer {
                     gradSqContext[v][d] += grad2 * grad2;
                 }
 
+                gradients.add(FastMath.sqrt(gradNorm));
+
 				/*---------------------
 				 * Compute for biases *
 				 ---------------------*/
@@ -104,7 +111,7 @@ public class Adagrad extends Optimizer {
                 gradSqCBias[v] += weightedCost;
 
             }
-            return cost;
+            return new OptimizeJob.Result(cost, gradients);
         };
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package org.uu.nl.disembed.embedding.opt.grad;
 import org.apache.commons.math.util.FastMath;
 import org.uu.nl.disembed.embedding.bca.CoOccurrenceMatrix;
 import org.uu.nl.disembed.embedding.opt.CostFunction;
+import org.uu.nl.disembed.embedding.opt.GradientStatistics;
 import org.uu.nl.disembed.embedding.opt.OptimizeJob;
 import org.uu.nl.disembed.embedding.opt.Optimizer;
 import org.uu.nl.disembed.util.config.Configuration;
@@ -80,10 +81,12 @@ public class Adam extends Optimizer {
 	public OptimizeJob createJob(int id, int iteration) {
 		return () -> {
 
-			int i, d, i_u, i_v, bu, bv;
+			long i;
+			int d, i_u, i_v, bu, bv;
 			float Xij, m, v, grad_u, grad_v;
-			float cost = 0, innerCost, weightedCost;
-			final int offset = coCount / numThreads * id;
+			float cost = 0, innerCost, weightedCost, gradNorm;
+			final long offset = coCount / numThreads * id;
+			final GradientStatistics gradients = new GradientStatistics();
 
 			// From the paper, a slight improvement of efficiency can be obtained this way
 			final double correction = learningRate * FastMath.sqrt(1 - FastMath.pow(beta2, iteration + 1)) / (1 - FastMath.pow(beta1, iteration + 1));
@@ -104,6 +107,7 @@ public class Adam extends Optimizer {
 				 ---------------------------*/
 
 				// Update the moments for the word vectors
+				gradNorm = 0;
 				for (d = 0; d < dimension; d++) {
 
 					//d1 = d + i_u; // Index of specific dimension in focus vector
@@ -112,6 +116,7 @@ public class Adam extends Optimizer {
 					// Compute gradients
 					grad_u = weightedCost * context[i_v][d];
 					grad_v = weightedCost * focus[i_u][d];
+					gradNorm += grad_u * grad_u + grad_v * grad_v;
 
 					// Update biased first and second moment estimates
 					m = beta1 * M1focus[i_u][d] + (1 - beta1) * grad_u;
@@ -128,6 +133,8 @@ public class Adam extends Optimizer {
 					M2context[i_v][d] = v;
 				}
 
+				gradients.add(FastMath.sqrt(gradNorm));
+
 				/*---------------------
 				 * Compute for biases *
 				 ---------------------*/
@@ -145,7 +152,7 @@ public class Adam extends Optimizer {
 				M1cBias[i_v] = m;
 				M2cBias[i_v] = v;
 			}
-			return cost;
+			return new OptimizeJob.Result(cost, gradients);
 		};
 	}
 }
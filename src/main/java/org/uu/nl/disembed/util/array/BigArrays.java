@@ -0,0 +1,61 @@
+package org.uu.nl.disembed.util.array;
+
+/**
+ * Shared constants and index arithmetic for the chunked big arrays. A big array stores its elements in chunks of
+ * {@link #CHUNK_SIZE} elements, so a single long index is split into a chunk number and an offset within that chunk.
+ * All chunks except the last one are always completely allocated.
+ */
+public final class BigArrays {
+
+    /**
+     * Number of bits of the index used for the offset within a chunk
+     */
+    public static final int CHUNK_SHIFT = 27;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Smallest chunk we allocate, prevents lots of tiny reallocations for small arrays
+     */
+    static final int MIN_CHUNK_SIZE = 1024;
+
+    private BigArrays() {}
+
+    public static int chunk(long index) {
+        return (int) (index >>> CHUNK_SHIFT);
+    }
+
+    public static int offset(long index) {
+        return (int) (index & CHUNK_MASK);
+    }
+
+    public static long index(int chunk, int offset) {
+        return ((long) chunk << CHUNK_SHIFT) + offset;
+    }
+
+    public static int nrOfChunks(long size) {
+        return (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+
+    /**
+     * Calculate the new length of the last chunk when growing a big array
+     * @param chunks Number of chunks currently allocated
+     * @param lastLength Current length of the last chunk
+     * @param minCapacity Minimum total capacity required
+     * @return The new length of the last chunk, or -1 if the last chunk is full and a new chunk is needed
+     */
+    static int growLastChunk(int chunks, int lastLength, long minCapacity) {
+        if(chunks == 0 || lastLength == CHUNK_SIZE) return -1;
+        final long required = minCapacity - index(chunks - 1, 0);
+        return (int) Math.min(CHUNK_SIZE, Math.max(lastLength + (lastLength >> 1), required));
+    }
+
+    /**
+     * Calculate the length of a newly appended chunk
+     * @param capacity Current total capacity
+     * @param minCapacity Minimum total capacity required
+     */
+    static int newChunkLength(long capacity, long minCapacity) {
+        return (int) Math.min(CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, minCapacity - capacity));
+    }
+}
@@ -0,0 +1,70 @@
+package org.uu.nl.disembed.util.array;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.uu.nl.disembed.util.array.BigArrays.*;
+
+/**
+ * Fixed-size bytes indexed by a long, stored in byte buffers of {@link BigArrays#CHUNK_SIZE} elements. The chunks are
+ * either heap arrays or memory-mapped sections of a file, so a section can be larger than 2 GB.
+ * @see BigArrays
+ */
+public class BigByteBuffer {
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    private BigByteBuffer(ByteBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    public static BigByteBuffer allocate(long size) {
+        final ByteBuffer[] chunks = new ByteBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - index(c, 0)));
+        }
+        return new BigByteBuffer(chunks, size);
+    }
+
+    /**
+     * Map bytes from the given file offset. The mapping stays valid after the channel is closed.
+     */
+    public static BigByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if(position + size > channel.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        final ByteBuffer[] chunks = new ByteBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            final long elements = Math.min(CHUNK_SIZE, size - index(c, 0));
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + index(c, 0), elements);
+        }
+        return new BigByteBuffer(chunks, size);
+    }
+
+    public byte get(long i) {
+        return chunks[chunk(i)].get(offset(i));
+    }
+
+    /**
+     * Only for heap buffers, mapped buffers are read-only
+     */
+    public void put(long i, byte value) {
+        chunks[chunk(i)].put(offset(i), value);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public ByteBuffer getChunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    public int nrOfChunks() {
+        return chunks.length;
+    }
+}
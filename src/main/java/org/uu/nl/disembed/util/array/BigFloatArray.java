@@ -0,0 +1,80 @@
+package org.uu.nl.disembed.util.array;
+
+import java.util.Arrays;
+
+import static org.uu.nl.disembed.util.array.BigArrays.*;
+
+/**
+ * Growable list of floats indexed by a long, so it can hold more than 2^31 elements.
+ * @see BigArrays
+ */
+public class BigFloatArray {
+
+    private float[][] chunks;
+    private long capacity;
+    private long size;
+
+    public BigFloatArray() {
+        this(0);
+    }
+
+    public BigFloatArray(long initialCapacity) {
+        this.chunks = new float[0][];
+        this.capacity = 0;
+        this.size = 0;
+        ensureCapacity(initialCapacity);
+    }
+
+    public void add(float value) {
+        ensureCapacity(size + 1);
+        chunks[chunk(size)][offset(size)] = value;
+        size++;
+    }
+
+    public float get(long i) {
+        return chunks[chunk(i)][offset(i)];
+    }
+
+    public void set(long i, float value) {
+        chunks[chunk(i)][offset(i)] = value;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Grow (or shrink) the list to the given size. New elements are zero, which allows filling chunks in bulk.
+     */
+    public void resize(long newSize) {
+        ensureCapacity(newSize);
+        this.size = newSize;
+    }
+
+    /**
+     * Direct access to the underlying storage, only the first {@link #size()} elements over all chunks are valid
+     */
+    public float[] getChunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    public int nrOfChunks() {
+        return chunks.length;
+    }
+
+    public void ensureCapacity(long minCapacity) {
+        while (capacity < minCapacity) {
+            final int last = chunks.length - 1;
+            final int newLength = growLastChunk(chunks.length, last < 0 ? 0 : chunks[last].length, minCapacity);
+            if(newLength > 0) {
+                capacity += newLength - chunks[last].length;
+                chunks[last] = Arrays.copyOf(chunks[last], newLength);
+            } else {
+                final int length = newChunkLength(capacity, minCapacity);
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[last + 1] = new float[length];
+                capacity += length;
+            }
+        }
+    }
+}
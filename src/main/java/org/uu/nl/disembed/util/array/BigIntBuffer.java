@@ -0,0 +1,72 @@
+package org.uu.nl.disembed.util.array;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.uu.nl.disembed.util.array.BigArrays.*;
+
+/**
+ * Fixed-size ints indexed by a long, stored in int buffers of {@link BigArrays#CHUNK_SIZE} elements. The chunks are
+ * either heap arrays or memory-mapped sections of a file, so a section can be larger than 2 GB.
+ * @see BigArrays
+ */
+public class BigIntBuffer {
+
+    private final IntBuffer[] chunks;
+    private final long size;
+
+    private BigIntBuffer(IntBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    public static BigIntBuffer allocate(long size) {
+        final IntBuffer[] chunks = new IntBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = IntBuffer.allocate((int) Math.min(CHUNK_SIZE, size - index(c, 0)));
+        }
+        return new BigIntBuffer(chunks, size);
+    }
+
+    /**
+     * Map little-endian ints from the given file offset. The mapping stays valid after the channel is closed.
+     */
+    public static BigIntBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if(position + size * Integer.BYTES > channel.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        final IntBuffer[] chunks = new IntBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            final long elements = Math.min(CHUNK_SIZE, size - index(c, 0));
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + index(c, 0) * Integer.BYTES, elements * Integer.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        return new BigIntBuffer(chunks, size);
+    }
+
+    public int get(long i) {
+        return chunks[chunk(i)].get(offset(i));
+    }
+
+    /**
+     * Only for heap buffers, mapped buffers are read-only
+     */
+    public void put(long i, int value) {
+        chunks[chunk(i)].put(offset(i), value);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public IntBuffer getChunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    public int nrOfChunks() {
+        return chunks.length;
+    }
+}
@@ -0,0 +1,72 @@
+package org.uu.nl.disembed.util.array;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.uu.nl.disembed.util.array.BigArrays.*;
+
+/**
+ * Fixed-size longs indexed by a long, stored in long buffers of {@link BigArrays#CHUNK_SIZE} elements. The chunks are
+ * either heap arrays or memory-mapped sections of a file, so a section can be larger than 2 GB.
+ * @see BigArrays
+ */
+public class BigLongBuffer {
+
+    private final LongBuffer[] chunks;
+    private final long size;
+
+    private BigLongBuffer(LongBuffer[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    public static BigLongBuffer allocate(long size) {
+        final LongBuffer[] chunks = new LongBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = LongBuffer.allocate((int) Math.min(CHUNK_SIZE, size - index(c, 0)));
+        }
+        return new BigLongBuffer(chunks, size);
+    }
+
+    /**
+     * Map little-endian longs from the given file offset. The mapping stays valid after the channel is closed.
+     */
+    public static BigLongBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if(position + size * Long.BYTES > channel.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        final LongBuffer[] chunks = new LongBuffer[BigArrays.nrOfChunks(size)];
+        for (int c = 0; c < chunks.length; c++) {
+            final long elements = Math.min(CHUNK_SIZE, size - index(c, 0));
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + index(c, 0) * Long.BYTES, elements * Long.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+        return new BigLongBuffer(chunks, size);
+    }
+
+    public long get(long i) {
+        return chunks[chunk(i)].get(offset(i));
+    }
+
+    /**
+     * Only for heap buffers, mapped buffers are read-only
+     */
+    public void put(long i, long value) {
+        chunks[chunk(i)].put(offset(i), value);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public LongBuffer getChunk(int chunk) {
+        return chunks[chunk];
+    }
+
+    public int nrOfChunks() {
+        return chunks.length;
+    }
+}
@@ -12,8 +12,14 @@ public class ClusterConfiguration  implements Configurable {
     private int k;
     private int maxCorrelationClusteringSize;
     private int maxComponentSize;
+    private boolean incremental;
+    private float seconds;
+    private int iterations;
 
     private ClusterSize clustersize;
+    private Candidates candidates;
+    private Bipartite bipartite;
+    private Pivot pivot;
 
     public float getTheta() {
         return theta;
@@ -32,7 +38,7 @@ public class ClusterConfiguration  implements Configurable {
     }
 
     public int getMaxCorrelationClusteringSize() {
-        return maxCorrelationClusteringSize == 0 ? 100 : maxCorrelationClusteringSize;
+        return maxCorrelationClusteringSize == 0 ? 200 : maxCorrelationClusteringSize;
     }
 
     public void setMaxCorrelationClusteringSize(int maxCorrelationClusteringSize) {
@@ -47,6 +53,41 @@ public class ClusterConfiguration  implements Configurable {
         this.maxComponentSize = maxComponentSize;
     }
 
+    /**
+     * @return The time limit of the correlation clustering of a single component, after which the best solution found
+     * so far is used
+     */
+    public float getSeconds() {
+        return seconds == 0 ? 60 : seconds;
+    }
+
+    public void setSeconds(float seconds) {
+        this.seconds = seconds;
+    }
+
+    /**
+     * @return The iteration limit of a single solve of the correlation clustering of a component, unlimited by default
+     */
+    public int getIterations() {
+        return iterations == 0 ? Integer.MAX_VALUE : iterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return Whether only the entities that are not part of the loaded HNSW index are linked, and only the components
+     * they touch are clustered again, keeping the other clusters of the loaded clusters
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     public ClusterSize getClustersize() {
         return clustersize;
     }
@@ -55,6 +96,313 @@ public class ClusterConfiguration  implements Configurable {
         this.clustersize = clustersize;
     }
 
+    /**
+     * @return The configured candidate generation, or the default approximate nearest neighbor index
+     */
+    public Candidates getCandidates() {
+        return candidates == null ? new Candidates() : candidates;
+    }
+
+    public void setCandidates(Candidates candidates) {
+        this.candidates = candidates;
+    }
+
+    /**
+     * @return The source and target sets to link, or null to link all entities with each other
+     */
+    public Bipartite getBipartite() {
+        return bipartite;
+    }
+
+    public void setBipartite(Bipartite bipartite) {
+        this.bipartite = bipartite;
+    }
+
+    /**
+     * @return The configured pivot clustering, or the default
+     */
+    public Pivot getPivot() {
+        return pivot == null ? new Pivot() : pivot;
+    }
+
+    public void setPivot(Pivot pivot) {
+        this.pivot = pivot;
+    }
+
+    /**
+     * Randomized pivot clustering with local search, for the components that are too large for correlation clustering
+     */
+    public static class Pivot {
+        private int maxSize;
+        private int restarts;
+        private float seconds;
+        private boolean compare;
+
+        /**
+         * @return The size of the largest component clustered with pivot clustering, larger components are clustered
+         * with vote clustering
+         */
+        public int getMaxSize() {
+            return maxSize == 0 ? 2000 : maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return The number of random pivot orders that are improved with local search
+         */
+        public int getRestarts() {
+            return restarts == 0 ? 8 : restarts;
+        }
+
+        public void setRestarts(int restarts) {
+            this.restarts = restarts;
+        }
+
+        /**
+         * @return The time budget for the local search of a single component
+         */
+        public float getSeconds() {
+            return seconds == 0 ? 10 : seconds;
+        }
+
+        public void setSeconds(float seconds) {
+            this.seconds = seconds;
+        }
+
+        /**
+         * @return Whether the components of correlation clustering are also clustered with pivot clustering, to log
+         * the objective values of both
+         */
+        public boolean isCompare() {
+            return compare;
+        }
+
+        public void setCompare(boolean compare) {
+            this.compare = compare;
+        }
+    }
+
+    /**
+     * Link the entities of a source set to those of a target set, selected by RDF type or by key prefix. Only the
+     * target entities are indexed, and only the source entities are queried.
+     */
+    public static class Bipartite {
+        private String sourceType, targetType;
+        private String sourcePrefix, targetPrefix;
+
+        public boolean byType() {
+            return sourceType != null && targetType != null;
+        }
+
+        public boolean byPrefix() {
+            return sourcePrefix != null && targetPrefix != null;
+        }
+
+        public String getSourceType() {
+            return sourceType;
+        }
+
+        public void setSourceType(String sourceType) {
+            this.sourceType = sourceType;
+        }
+
+        public String getTargetType() {
+            return targetType;
+        }
+
+        public void setTargetType(String targetType) {
+            this.targetType = targetType;
+        }
+
+        public String getSourcePrefix() {
+            return sourcePrefix;
+        }
+
+        public void setSourcePrefix(String sourcePrefix) {
+            this.sourcePrefix = sourcePrefix;
+        }
+
+        public String getTargetPrefix() {
+            return targetPrefix;
+        }
+
+        public void setTargetPrefix(String targetPrefix) {
+            this.targetPrefix = targetPrefix;
+        }
+    }
+
+    public static class Candidates {
+
+        public enum Method {
+            HNSW, EXACT, SIMHASH, IVFPQ
+        }
+
+        private String method;
+        private boolean topK;
+        private float recall;
+        private int maxBucketSize;
+        private int lists;
+        private int probes;
+        private int subspaces;
+        private int rerank;
+        private int m;
+        private int ef;
+        private int efConstruction;
+        private boolean tune;
+        private boolean mutual;
+
+        public Method getMethodEnum() {
+            return Method.valueOf(getMethod().toUpperCase());
+        }
+
+        public String getMethod() {
+            return method == null || method.isEmpty() ? Method.HNSW.name() : this.method;
+        }
+
+        public void setMethod(String method) {
+            this.method = method;
+        }
+
+        /**
+         * @return Whether the exact method keeps only the k most similar entities of each entity, instead of all
+         * pairs with a similarity of at least theta
+         */
+        public boolean isTopK() {
+            return topK;
+        }
+
+        public void setTopK(boolean topK) {
+            this.topK = topK;
+        }
+
+        /**
+         * @return The probability that the SimHash method finds a pair with a similarity of exactly theta, or the
+         * recall of the k nearest neighbors the HNSW tuning aims for
+         */
+        public float getRecall() {
+            return recall == 0 ? 0.95f : recall;
+        }
+
+        public void setRecall(float recall) {
+            this.recall = recall;
+        }
+
+        /**
+         * @return The number of inverted lists of the IVF-PQ index, 0 to derive it from the number of entities
+         */
+        public int getLists() {
+            return lists;
+        }
+
+        public void setLists(int lists) {
+            this.lists = lists;
+        }
+
+        /**
+         * @return The number of inverted lists searched per query
+         */
+        public int getProbes() {
+            return probes == 0 ? 16 : probes;
+        }
+
+        public void setProbes(int probes) {
+            this.probes = probes;
+        }
+
+        /**
+         * @return The number of product quantization subspaces, 0 to derive it from the dimension
+         */
+        public int getSubspaces() {
+            return subspaces;
+        }
+
+        public void setSubspaces(int subspaces) {
+            this.subspaces = subspaces;
+        }
+
+        /**
+         * @return The size of the shortlist that is re-ranked with exact similarities, as a multiple of k
+         */
+        public int getRerank() {
+            return rerank == 0 ? 10 : rerank;
+        }
+
+        public void setRerank(int rerank) {
+            this.rerank = rerank;
+        }
+
+        /**
+         * @return The number of links per node of the HNSW index
+         */
+        public int getM() {
+            return m == 0 ? 16 : m;
+        }
+
+        public void setM(int m) {
+            this.m = m;
+        }
+
+        /**
+         * @return The size of the dynamic candidate list when searching the HNSW index
+         */
+        public int getEf() {
+            return ef == 0 ? 200 : ef;
+        }
+
+        public void setEf(int ef) {
+            this.ef = ef;
+        }
+
+        /**
+         * @return The size of the dynamic candidate list when building the HNSW index
+         */
+        public int getEfConstruction() {
+            return efConstruction == 0 ? 200 : efConstruction;
+        }
+
+        public void setEfConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+        }
+
+        /**
+         * @return Whether m and ef of the HNSW index are chosen by measuring the recall on a sample of the entities,
+         * instead of using the configured values
+         */
+        public boolean isTune() {
+            return tune;
+        }
+
+        public void setTune(boolean tune) {
+            this.tune = tune;
+        }
+
+        /**
+         * @return The largest number of entities in a bucket of the SimHash method, a larger bucket fails the join
+         */
+        public int getMaxBucketSize() {
+            return maxBucketSize == 0 ? 10000 : maxBucketSize;
+        }
+
+        public void setMaxBucketSize(int maxBucketSize) {
+            this.maxBucketSize = maxBucketSize;
+        }
+
+        /**
+         * @return Whether a candidate pair is only kept if both entities are among the k most similar candidates of
+         * each other, so hub entities do not glue large components together
+         */
+        public boolean isMutual() {
+            return mutual;
+        }
+
+        public void setMutual(boolean mutual) {
+            this.mutual = mutual;
+        }
+    }
+
     public static class RuleConfiguration implements Iterable<ClusterConfiguration.Rule> {
 
         private String graph;
@@ -333,7 +681,24 @@ public class ClusterConfiguration  implements Configurable {
         if(getTheta() <= -1) throw new InvalidConfigException("Error: theta must be larger than -1");
         if(getRules().getMaxQuerySize() <= 0) throw new InvalidConfigException("Error: maximum query size must be larger than 0");
         if(getMaxComponentSize() <= 0) throw new InvalidConfigException("Error: maximum component size must be larger than 0");
+        if(isIncremental() && getCandidates().getMethodEnum() != Candidates.Method.HNSW)
+            throw new InvalidConfigException("Error: incremental clustering requires the HNSW candidate generation");
+        if(getBipartite() != null) {
+            if(getBipartite().byType() == getBipartite().byPrefix())
+                throw new InvalidConfigException("Error: bipartite linking requires either a source and target type, or a source and target prefix");
+            if(getCandidates().getMethodEnum() != Candidates.Method.HNSW || isIncremental())
+                throw new InvalidConfigException("Error: bipartite linking requires the HNSW candidate generation, without incremental clustering");
+        }
+        if(getCandidates().getRecall() <= 0 || getCandidates().getRecall() >= 1) throw new InvalidConfigException("Error: candidate recall must be between 0 and 1");
+        if(getCandidates().getMaxBucketSize() < 2) throw new InvalidConfigException("Error: maximum SimHash bucket size must be at least 2");
+        if(getCandidates().getLists() < 0 || getCandidates().getProbes() < 0 || getCandidates().getSubspaces() < 0 || getCandidates().getRerank() < 0)
+            throw new InvalidConfigException("Error: IVF-PQ parameters must be positive");
+        if(getCandidates().getM() < 2 || getCandidates().getEf() < 1 || getCandidates().getEfConstruction() < 1)
+            throw new InvalidConfigException("Error: HNSW parameters must be positive, with at least 2 links per node");
         if(getMaxCorrelationClusteringSize() <= 2) throw new InvalidConfigException("Error: maximum correlation clustering size must be larger than 0");
+        if(getSeconds() < 0 || getIterations() < 0) throw new InvalidConfigException("Error: the time and iteration limit per component must be positive");
+        if(getPivot().getMaxSize() < 0 || getPivot().getRestarts() < 0 || getPivot().getSeconds() < 0)
+            throw new InvalidConfigException("Error: pivot clustering parameters must be positive");
     }
 
     @Override
@@ -343,8 +708,48 @@ public class ClusterConfiguration  implements Configurable {
         builder.appendLine("Cluster Configuration:");
         builder.appendKeyValueLine("k", getK());
         builder.appendKeyValueLine("Theta", getTheta());
+        builder.appendKeyValueLine("Candidate generation", getCandidates().getMethodEnum().toString());
+        if(getCandidates().getMethodEnum() == Candidates.Method.EXACT)
+            builder.appendKeyValueLine("Only top k candidates", getCandidates().isTopK());
+        if(getCandidates().getMethodEnum() == Candidates.Method.HNSW) {
+            builder.appendKeyValueLine("Tune HNSW parameters", getCandidates().isTune());
+            if(getCandidates().isTune()) {
+                builder.appendKeyValueLine("Target recall", getCandidates().getRecall());
+            } else {
+                builder.appendKeyValueLine("HNSW m", getCandidates().getM());
+                builder.appendKeyValueLine("HNSW ef", getCandidates().getEf());
+            }
+            builder.appendKeyValueLine("HNSW ef construction", getCandidates().getEfConstruction());
+        }
+        if(getCandidates().getMethodEnum() == Candidates.Method.SIMHASH) {
+            builder.appendKeyValueLine("Target recall", getCandidates().getRecall());
+            builder.appendKeyValueLine("Maximum bucket size", getCandidates().getMaxBucketSize());
+        }
+        if(getCandidates().getMethodEnum() == Candidates.Method.IVFPQ) {
+            builder.appendKeyValueLine("Inverted lists", getCandidates().getLists());
+            builder.appendKeyValueLine("Probed lists", getCandidates().getProbes());
+            builder.appendKeyValueLine("Subspaces", getCandidates().getSubspaces());
+            builder.appendKeyValueLine("Re-rank factor", getCandidates().getRerank());
+        }
+        builder.appendKeyValueLine("Mutual nearest neighbors", getCandidates().isMutual());
+        builder.appendKeyValueLine("Incremental", isIncremental());
+        if(getBipartite() != null) {
+            if(getBipartite().byType()) {
+                builder.appendKeyValueLine("Source type", getBipartite().getSourceType());
+                builder.appendKeyValueLine("Target type", getBipartite().getTargetType());
+            } else {
+                builder.appendKeyValueLine("Source prefix", getBipartite().getSourcePrefix());
+                builder.appendKeyValueLine("Target prefix", getBipartite().getTargetPrefix());
+            }
+        }
         builder.appendKeyValueLine("Component max size", getMaxComponentSize());
         builder.appendKeyValueLine("Correlation clustering max size", getMaxCorrelationClusteringSize());
+        builder.appendKeyValueLine("Correlation clustering seconds", getSeconds());
+        if(iterations > 0) builder.appendKeyValueLine("Correlation clustering iterations", getIterations());
+        builder.appendKeyValueLine("Pivot clustering max size", getPivot().getMaxSize());
+        builder.appendKeyValueLine("Pivot clustering restarts", getPivot().getRestarts());
+        builder.appendKeyValueLine("Pivot clustering seconds", getPivot().getSeconds());
+        builder.appendKeyValueLine("Compare pivot with correlation clustering", getPivot().isCompare());
         builder.appendKeyValueLine("Theta", getTheta());
 
         if(getClustersize() != null) {
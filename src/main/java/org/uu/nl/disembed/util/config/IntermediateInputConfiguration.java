@@ -1,8 +1,11 @@
 package org.uu.nl.disembed.util.config;
 
 import org.uu.nl.disembed.util.write.BCAWriter;
+import org.uu.nl.disembed.util.write.BinaryEmbeddingWriter;
 import org.uu.nl.disembed.util.write.EmbeddingWriter;
+import org.uu.nl.disembed.util.write.ClusterWriter;
 import org.uu.nl.disembed.util.write.HnswIndexWriter;
+import org.uu.nl.disembed.util.write.IvfPqIndexWriter;
 
 import java.io.File;
 import java.nio.file.Paths;
@@ -11,6 +14,8 @@ public class IntermediateInputConfiguration implements Configurable {
 
     private InputEmbedding embedding;
     private InputHnswIndex hnsw;
+    private InputIvfPqIndex ivfpq;
+    private InputClusters clusters;
     private InputBCA bca;
 
     public InputEmbedding getEmbedding() {
@@ -29,6 +34,22 @@ public class IntermediateInputConfiguration implements Configurable {
         this.hnsw = hnsw;
     }
 
+    public InputIvfPqIndex getIvfpq() {
+        return ivfpq;
+    }
+
+    public void setIvfpq(InputIvfPqIndex ivfpq) {
+        this.ivfpq = ivfpq;
+    }
+
+    public InputClusters getClusters() {
+        return clusters;
+    }
+
+    public void setClusters(InputClusters clusters) {
+        this.clusters = clusters;
+    }
+
     public InputBCA getBca() {
         return bca;
     }
@@ -52,6 +73,20 @@ public class IntermediateInputConfiguration implements Configurable {
     }
 
     public static class InputBCA extends InputFormat {
+
+        /**
+         * Memory-map the co-occurrence matrix instead of loading it onto the heap, only for columnar files
+         */
+        private boolean mmap;
+
+        public boolean isMmap() {
+            return mmap;
+        }
+
+        public void setMmap(boolean mmap) {
+            this.mmap = mmap;
+        }
+
         @Override
         public File getImportFile() {
             return Paths.get("").toAbsolutePath().resolve(BCAWriter.OUTPUT_DIRECTORY + "/" + filename + BCAWriter.FILETYPE).toFile();
@@ -59,15 +94,48 @@ public class IntermediateInputConfiguration implements Configurable {
     }
 
     public static class InputHnswIndex extends InputFormat {
+        /**
+         * @throws InvalidConfigException If there is only an index in the format of earlier versions
+         */
+        @Override
+        public File getImportFile() {
+            File file = Paths.get("").toAbsolutePath().resolve(HnswIndexWriter.OUTPUT_DIRECTORY + "/" + filename + HnswIndexWriter.FILETYPE).toFile();
+            File legacy = Paths.get("").toAbsolutePath().resolve(HnswIndexWriter.OUTPUT_DIRECTORY + "/" + filename + HnswIndexWriter.LEGACY_FILETYPE).toFile();
+            if(!file.exists() && legacy.exists()) {
+                throw new InvalidConfigException("Error: HNSW index " + legacy + " has the format of an earlier version, "
+                        + "rebuild the index by configuring it as intermediate output instead of input");
+            }
+            return file;
+        }
+    }
+
+    public static class InputIvfPqIndex extends InputFormat {
         @Override
         public File getImportFile() {
-            return Paths.get("").toAbsolutePath().resolve(HnswIndexWriter.OUTPUT_DIRECTORY + "/" + filename + HnswIndexWriter.FILETYPE).toFile();
+            return Paths.get("").toAbsolutePath().resolve(IvfPqIndexWriter.OUTPUT_DIRECTORY + "/" + filename + IvfPqIndexWriter.FILETYPE).toFile();
+        }
+    }
+
+    /**
+     * The clusters of an earlier run, which incremental clustering extends
+     */
+    public static class InputClusters extends InputFormat {
+        @Override
+        public File getImportFile() {
+            return Paths.get("").toAbsolutePath().resolve(ClusterWriter.OUTPUT_DIRECTORY + "/" + filename + ClusterWriter.FILETYPE).toFile();
         }
     }
 
     public static class InputEmbedding extends InputFormat {
+        /**
+         * @return The binary embedding file if it exists, as it can be memory-mapped, otherwise the (compressed) text file
+         */
         @Override
         public File getImportFile() {
+            File binary = Paths.get("").toAbsolutePath().resolve(EmbeddingWriter.OUTPUT_DIRECTORY + "/" + filename + BinaryEmbeddingWriter.FILETYPE).toFile();
+            if(binary.exists()) return binary;
+            File compressed = Paths.get("").toAbsolutePath().resolve(EmbeddingWriter.OUTPUT_DIRECTORY + "/" + filename + EmbeddingWriter.FILETYPE + EmbeddingWriter.GZIP_FILETYPE).toFile();
+            if(compressed.exists()) return compressed;
             return Paths.get("").toAbsolutePath().resolve(EmbeddingWriter.OUTPUT_DIRECTORY + "/" + filename + EmbeddingWriter.FILETYPE).toFile();
         }
     }
@@ -89,6 +157,16 @@ public class IntermediateInputConfiguration implements Configurable {
                 throw new InvalidConfigException("HNSW index filename missing or empty");
         }
 
+        if(ivfpq != null) {
+            if(ivfpq.filename == null || ivfpq.filename.isEmpty())
+                throw new InvalidConfigException("IVF-PQ index filename missing or empty");
+        }
+
+        if(clusters != null) {
+            if(clusters.filename == null || clusters.filename.isEmpty())
+                throw new InvalidConfigException("Clusters filename missing or empty");
+        }
+
         if(bca != null) {
             if(bca.filename == null || bca.filename.isEmpty())
                 throw new InvalidConfigException("BCA filename missing or empty");
@@ -107,8 +185,7 @@ public class IntermediateInputConfiguration implements Configurable {
             builder.append("Reading embedding from: ");
             builder.appendNoComment(EmbeddingWriter.OUTPUT_DIRECTORY);
             builder.appendNoComment("/");
-            builder.appendNoComment(embedding.getFilename());
-            builder.appendLineNoComment(EmbeddingWriter.FILETYPE);
+            builder.appendLineNoComment(embedding.getImportFile().getName());
         }
 
         if(hnsw != null) {
@@ -120,6 +197,24 @@ public class IntermediateInputConfiguration implements Configurable {
             builder.appendLineNoComment(HnswIndexWriter.FILETYPE);
         }
 
+        if(ivfpq != null) {
+            builder.appendLine();
+            builder.append("Reading IVF-PQ index from: ");
+            builder.appendNoComment(IvfPqIndexWriter.OUTPUT_DIRECTORY);
+            builder.appendNoComment("/");
+            builder.appendNoComment(ivfpq.getFilename());
+            builder.appendLineNoComment(IvfPqIndexWriter.FILETYPE);
+        }
+
+        if(clusters != null) {
+            builder.appendLine();
+            builder.append("Reading clusters from: ");
+            builder.appendNoComment(ClusterWriter.OUTPUT_DIRECTORY);
+            builder.appendNoComment("/");
+            builder.appendNoComment(clusters.getFilename());
+            builder.appendLineNoComment(ClusterWriter.FILETYPE);
+        }
+
         if(bca != null) {
             builder.appendLine();
             builder.append("Reading BCA co-occurrence matrix from: ");
@@ -127,6 +222,7 @@ public class IntermediateInputConfiguration implements Configurable {
             builder.appendNoComment("/");
             builder.appendNoComment(bca.getFilename());
             builder.appendLineNoComment(BCAWriter.FILETYPE);
+            builder.appendKeyValueLine("Memory-mapped", bca.isMmap());
         }
 
         return builder;
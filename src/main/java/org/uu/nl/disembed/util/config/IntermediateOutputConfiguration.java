@@ -1,17 +1,20 @@
 package org.uu.nl.disembed.util.config;
 
 import org.uu.nl.disembed.util.write.BCAWriter;
+import org.uu.nl.disembed.util.write.BinaryEmbeddingWriter;
 import org.uu.nl.disembed.util.write.EmbeddingWriter;
 import org.uu.nl.disembed.util.write.HnswIndexWriter;
+import org.uu.nl.disembed.util.write.IvfPqIndexWriter;
 
 public class IntermediateOutputConfiguration implements Configurable {
 
     private OutputEmbedding embedding;
     private OutputHnswIndex hnsw;
+    private OutputIvfPqIndex ivfpq;
     private OutputBCA bca;
 
     public boolean isEmpty() {
-        return embedding == null  && hnsw == null && bca == null;
+        return embedding == null  && hnsw == null && ivfpq == null && bca == null;
     }
 
     public OutputEmbedding getEmbedding() {
@@ -30,6 +33,14 @@ public class IntermediateOutputConfiguration implements Configurable {
         this.hnsw = hnsw;
     }
 
+    public OutputIvfPqIndex getIvfpq() {
+        return ivfpq;
+    }
+
+    public void setIvfpq(OutputIvfPqIndex ivfpq) {
+        this.ivfpq = ivfpq;
+    }
+
     public OutputBCA getBca() {
         return bca;
     }
@@ -50,10 +61,31 @@ public class IntermediateOutputConfiguration implements Configurable {
         }
     }
 
-    public static class OutputBCA extends OutputFormat {}
+    public static class OutputBCA extends OutputFormat {
+
+        public enum Encoding {
+            COLUMNAR, COMPRESSED
+        }
+
+        private String encoding;
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public void setEncoding(String encoding) {
+            this.encoding = encoding;
+        }
+
+        public Encoding getEncodingEnum() {
+            return encoding == null ? Encoding.COLUMNAR : Encoding.valueOf(encoding.toUpperCase());
+        }
+    }
 
     public static class OutputHnswIndex extends OutputFormat {}
 
+    public static class OutputIvfPqIndex extends OutputFormat {}
+
     public static class OutputLinkset extends OutputFormat {}
 
     public static class OutputClusters extends OutputFormat {}
@@ -61,16 +93,25 @@ public class IntermediateOutputConfiguration implements Configurable {
     public static class OutputEmbedding extends OutputFormat {
 
         public enum EmbeddingWriter {
-            GLOVE, WORD2VEC
+            GLOVE, WORD2VEC, BINARY
         }
 
         private String writer;
+        private boolean gzip;
 
         public void setWriter(String writer) {
             this.writer = writer;
         }
         public String getWriter() {return this.writer;}
 
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        public void setGzip(boolean gzip) {
+            this.gzip = gzip;
+        }
+
         public EmbeddingWriter getWriterEnum() {
             return EmbeddingWriter.valueOf(writer.toUpperCase());
         }
@@ -86,6 +127,8 @@ public class IntermediateOutputConfiguration implements Configurable {
         if(embedding != null) {
             if(embedding.filename == null || embedding.filename.isEmpty())
                 throw new InvalidConfigException("Embedding filename missing or empty");
+            if(embedding.isGzip() && embedding.getWriterEnum() == OutputEmbedding.EmbeddingWriter.BINARY)
+                throw new InvalidConfigException("Binary embeddings are memory-mapped and cannot be compressed");
         }
 
         if(hnsw != null) {
@@ -93,6 +136,11 @@ public class IntermediateOutputConfiguration implements Configurable {
                 throw new InvalidConfigException("HNSW index filename missing or empty");
         }
 
+        if(ivfpq != null) {
+            if(ivfpq.filename == null || ivfpq.filename.isEmpty())
+                throw new InvalidConfigException("IVF-PQ index filename missing or empty");
+        }
+
         if(bca != null) {
             if(bca.filename == null || bca.filename.isEmpty())
                 throw new InvalidConfigException("BCA filename missing or empty");
@@ -112,6 +160,7 @@ public class IntermediateOutputConfiguration implements Configurable {
             builder.appendNoComment("/");
             builder.appendNoComment(bca.getFilename());
             builder.appendLineNoComment(BCAWriter.FILETYPE);
+            builder.appendKeyValueLine("With encoding", bca.getEncodingEnum().toString());
         }
 
         if(embedding != null) {
@@ -120,7 +169,11 @@ public class IntermediateOutputConfiguration implements Configurable {
             builder.appendNoComment(EmbeddingWriter.OUTPUT_DIRECTORY);
             builder.appendNoComment("/");
             builder.appendNoComment(embedding.getFilename());
-            builder.appendLineNoComment(EmbeddingWriter.FILETYPE);
+            if(embedding.getWriterEnum() == OutputEmbedding.EmbeddingWriter.BINARY) {
+                builder.appendLineNoComment(BinaryEmbeddingWriter.FILETYPE);
+            } else {
+                builder.appendLineNoComment(EmbeddingWriter.FILETYPE + (embedding.isGzip() ? EmbeddingWriter.GZIP_FILETYPE : ""));
+            }
             builder.appendKeyValueLine("With writer", embedding.getWriterEnum().toString());
         }
 
@@ -133,6 +186,15 @@ public class IntermediateOutputConfiguration implements Configurable {
             builder.appendLineNoComment(HnswIndexWriter.FILETYPE);
         }
 
+        if(ivfpq != null) {
+            builder.appendLine();
+            builder.append("Writing IVF-PQ index to: ");
+            builder.appendNoComment(IvfPqIndexWriter.OUTPUT_DIRECTORY);
+            builder.appendNoComment("/");
+            builder.appendNoComment(ivfpq.getFilename());
+            builder.appendLineNoComment(IvfPqIndexWriter.FILETYPE);
+        }
+
 
 
         return builder;
@@ -1,37 +1,74 @@
 package org.uu.nl.disembed.util.read;
 
 import com.carrotsearch.hppc.IntHashSet;
+import com.carrotsearch.hppc.IntIntHashMap;
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
 import org.uu.nl.disembed.embedding.convert.GraphInformation;
+import org.uu.nl.disembed.util.array.BigArrays;
+import org.uu.nl.disembed.util.array.BigFloatArray;
+import org.uu.nl.disembed.util.array.BigIntArray;
+import org.uu.nl.disembed.util.progress.Progress;
+import org.uu.nl.disembed.util.sparse.Float16;
+import org.uu.nl.disembed.util.sparse.MappedSparseMatrix;
 import org.uu.nl.disembed.util.sparse.RandomAccessSparseMatrix;
+import org.uu.nl.disembed.util.sparse.SparseMatrix;
 import org.uu.nl.disembed.util.write.BCAWriter;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
 
 public class BCAReader implements Reader<BCAReader.SkeletonBCA> {
 
+    private final static Logger logger = Logger.getLogger(BCAReader.class);
+
+    /**
+     * Number of elements read by a single task when loading a columnar file
+     */
+    private static final int BLOCK_SIZE = 1 << 22;
+
     public static class SkeletonBCA implements GraphInformation {
 
-        private RandomAccessSparseMatrix matrix;
+        private SparseMatrix matrix;
         private final int nrOfFocusNodes;
         private int nrOfContextNodes;
         private int nrOfVertices;
         private float max;
         private final String[] keys;
+        private final int[] bookmarks;
         private final IntHashSet focusNodes;
+        private final IntIntHashMap bookmark2index;
 
         public SkeletonBCA(int focusVectors) {
             this.nrOfFocusNodes = focusVectors;
             this.keys = new String[focusVectors];
-            this.focusNodes = new IntHashSet();
+            this.bookmarks = new int[focusVectors];
+            this.focusNodes = new IntHashSet(focusVectors);
+            this.bookmark2index = new IntIntHashMap(focusVectors);
         }
 
         public void add(int i, int bookmark, String key) {
             this.focusNodes.add(bookmark);
+            this.bookmark2index.put(bookmark, i);
+            this.bookmarks[i] = bookmark;
             this.keys[i] = key;
         }
 
-        public void setMatrix(RandomAccessSparseMatrix matrix) {
+        /**
+         * @return The bookmark (context index) of the i-th focus node, in the order of the file
+         */
+        public int bookmark(int i) {
+            return bookmarks[i];
+        }
+
+        public void setMatrix(SparseMatrix matrix) {
             this.matrix = matrix;
         }
 
@@ -47,7 +84,7 @@ public class BCAReader implements Reader<BCAReader.SkeletonBCA> {
             this.max = max;
         }
 
-        public RandomAccessSparseMatrix getMatrix() {
+        public SparseMatrix getMatrix() {
             return matrix;
         }
 
@@ -69,9 +106,12 @@ public class BCAReader implements Reader<BCAReader.SkeletonBCA> {
             return this.nrOfVertices;
         }
 
+        /**
+         * @param i The bookmark (context index) of a focus node
+         */
         @Override
         public String key(int i) {
-            return keys[i];
+            return keys[bookmark2index.get(i)];
         }
 
         @Override
@@ -80,57 +120,349 @@ public class BCAReader implements Reader<BCAReader.SkeletonBCA> {
         }
     }
 
+    private final int threads;
+    private final boolean mmap;
+
+    /**
+     * @param threads Number of threads used for loading the sections of a columnar file or the blocks of a compressed file
+     * @param mmap Memory-map the sections of a columnar file instead of loading them onto the heap
+     */
+    public BCAReader(int threads, boolean mmap) {
+        this.threads = threads;
+        this.mmap = mmap;
+    }
+
+    public BCAReader() {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
     @Override
     public SkeletonBCA load(File file) throws IOException {
 
         try (DataInputStream  reader = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
 
-            byte[] header = new byte[BCAWriter.HEADER_LENGTH];
+            reader.mark(BCAWriter.HEADER_LENGTH);
+            byte[] header = reader.readNBytes(BCAWriter.HEADER_LENGTH);
 
-            int result = reader.read(header);
+            if(header.length == BCAWriter.HEADER_LENGTH && new String(header, StandardCharsets.UTF_8).equals(BCAWriter.HEADER)) {
+                // Original format with 32-bit counts
+                return read(reader, false);
+            }
 
-            if(result == BCAWriter.HEADER_LENGTH && new String(header, StandardCharsets.UTF_8).equals(BCAWriter.HEADER)) {
+            reader.reset();
+            byte[] magic = reader.readNBytes(BCAWriter.MAGIC_LENGTH);
 
+            if(magic.length == BCAWriter.MAGIC_LENGTH && new String(magic, StandardCharsets.UTF_8).equals(BCAWriter.MAGIC)) {
+                final int version = reader.readInt();
+                if(version == BCAWriter.VERSION_LONG) {
+                    return read(reader, true);
+                }
+                if(version == BCAWriter.VERSION_COLUMNAR || version == BCAWriter.VERSION_COMPRESSED) {
+                    return readVersioned(file, version);
+                }
+                throw new IllegalArgumentException("Unsupported BCA file version: " + version);
+            }
 
-                final int focusVectors = reader.readInt();
-                SkeletonBCA skeleton = new SkeletonBCA(focusVectors);
+            throw new IllegalArgumentException("Unsupported binary file");
+        }
 
-                for(int i = 0; i < focusVectors; i++) {
-                    int bookmark = reader.readInt();
-                    int length = reader.readInt();
-                    String key = new String(reader.readNBytes(length));
-                    skeleton.add(i, bookmark, key);
-                }
+    }
 
-                final int contextVectors = reader.readInt();
-                final int coOccurrenceCount = reader.readInt();
-                final float max = reader.readFloat();
+    private SkeletonBCA readVersioned(File file, int version) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            final ByteBuffer header = ByteBuffer.allocate(BCAWriter.HEADER_SIZE - BCAWriter.MAGIC_LENGTH - 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, BCAWriter.MAGIC_LENGTH + 4);
+            header.flip();
+
+            final int focusVectors = header.getInt();
+            final int contextVectors = header.getInt();
+            final int rows = header.getInt();
+            final int cols = header.getInt();
+            final float max = header.getFloat();
+            header.getInt(); // reserved
+            header.getLong(); // co-occurrence count, equal to the number of non-zero values
+            final long nonZero = header.getLong();
+            final long bookmarksOffset = header.getLong();
+            final long keyOffsetsOffset = header.getLong();
+            final long keysOffset = header.getLong();
+            // Version 3: rows, columns and values offsets. Version 4: data offset, block table offset and number of blocks.
+            final long rowsOffset = header.getLong();
+            final long columnsOffset = header.getLong();
+            final long valuesOffset = header.getLong();
+
+            final long expectedSize = version == BCAWriter.VERSION_COMPRESSED
+                    ? columnsOffset + BCAWriter.BLOCK_ENTRY_SIZE * valuesOffset
+                    : valuesOffset + 4 * nonZero;
+            if(channel.size() < expectedSize) {
+                throw new IOException("BCA file is truncated, expected at least " + expectedSize + " bytes");
+            }
+            if(rowsOffset - bookmarksOffset > Integer.MAX_VALUE) {
+                throw new IOException("Key dictionary too large to map");
+            }
 
-                skeleton.setNrOfContextNodes(contextVectors);
-                skeleton.setMax(max);
+            final SkeletonBCA skeleton = new SkeletonBCA(focusVectors);
+            final MappedByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, bookmarksOffset, rowsOffset - bookmarksOffset);
+            dictionary.order(ByteOrder.LITTLE_ENDIAN);
+
+            final int keyOffsets = (int) (keyOffsetsOffset - bookmarksOffset);
+            final int keys = (int) (keysOffset - bookmarksOffset);
+            byte[] keyBytes = new byte[256];
+            for(int i = 0; i < focusVectors; i++) {
+                final int from = (int) dictionary.getLong(keyOffsets + 8 * i);
+                final int length = (int) dictionary.getLong(keyOffsets + 8 * (i + 1)) - from;
+                if(keyBytes.length < length) keyBytes = new byte[length];
+                dictionary.get(keys + from, keyBytes, 0, length);
+                skeleton.add(i, dictionary.getInt(4 * i), new String(keyBytes, 0, length, StandardCharsets.UTF_8));
+            }
 
-                final int rows = reader.readInt();
-                final int cols = reader.readInt();
-                final int nonZero = reader.readInt();
+            skeleton.setNrOfContextNodes(contextVectors);
+            skeleton.setMax(max);
+
+            if(version == BCAWriter.VERSION_COMPRESSED) {
+                if(mmap) logger.warn("Compressed BCA files cannot be memory-mapped, loading onto the heap instead");
+                skeleton.setMatrix(loadCompressed(channel, rows, cols, nonZero, rowsOffset, columnsOffset, (int) valuesOffset));
+            } else if(mmap) {
+                logger.info("Memory-mapping " + nonZero + " non-zero values");
+                skeleton.setMatrix(new MappedSparseMatrix(channel, rows, cols, nonZero, rowsOffset, columnsOffset, valuesOffset));
+            } else {
+                skeleton.setMatrix(loadColumnar(channel, rows, cols, nonZero, rowsOffset, columnsOffset, valuesOffset));
+            }
 
-                RandomAccessSparseMatrix matrix = new RandomAccessSparseMatrix(rows, cols, nonZero);
+            return skeleton;
+        }
+    }
 
-                for(int i = 0; i < nonZero; i++) {
+    /**
+     * Read the three sections into big arrays, using parallel positional reads of at most {@link #BLOCK_SIZE} elements.
+     * Every block lies within a single chunk of the big arrays, so it is copied into place with one bulk get.
+     */
+    private RandomAccessSparseMatrix loadColumnar(FileChannel channel, int rows, int cols, long nonZero,
+                                                  long rowsOffset, long columnsOffset, long valuesOffset) throws IOException {
+
+        final BigIntArray rowIndex = new BigIntArray(nonZero);
+        final BigIntArray columnIndex = new BigIntArray(nonZero);
+        final BigFloatArray values = new BigFloatArray(nonZero);
+        rowIndex.resize(nonZero);
+        columnIndex.resize(nonZero);
+        values.resize(nonZero);
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+
+        int tasks = 0;
+        for(long start = 0; start < nonZero; ) {
+            final int chunk = BigArrays.chunk(start);
+            final int offset = BigArrays.offset(start);
+            final int length = (int) Math.min(BLOCK_SIZE, Math.min(nonZero - start, BigArrays.CHUNK_SIZE - offset));
+            final long position = 4 * start;
+
+            completionService.submit(() -> {
+                final ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, buffer, rowsOffset + position);
+                buffer.flip();
+                buffer.asIntBuffer().get(rowIndex.getChunk(chunk), offset, length);
+                return length;
+            });
+            completionService.submit(() -> {
+                final ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, buffer, columnsOffset + position);
+                buffer.flip();
+                buffer.asIntBuffer().get(columnIndex.getChunk(chunk), offset, length);
+                return length;
+            });
+            completionService.submit(() -> {
+                final ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, buffer, valuesOffset + position);
+                buffer.flip();
+                buffer.asFloatBuffer().get(values.getChunk(chunk), offset, length);
+                return length;
+            });
+            tasks += 3;
+            start += length;
+        }
 
-                    int row = reader.readInt();
-                    int col = reader.readInt();
-                    float val = reader.readFloat();
+        final long startTime = System.nanoTime();
+        try(ProgressBar pb = Progress.progressBar("Loading BCA", 3 * nonZero, "values")) {
+            for(int received = 0; received < tasks; received++) {
+                pb.stepBy(completionService.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading BCA file");
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof IOException ioe) throw ioe;
+            }
+            throw new IOException("Error loading BCA file", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
 
-                    matrix.add(row, col, val);
-                }
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        logger.info("Loaded " + nonZero + " non-zero values in " + String.format("%.2f", seconds) + " s ("
+                + String.format("%.1f", 12 * nonZero / 1048576d / seconds) + " MB/s)");
 
-                skeleton.setMatrix(matrix);
+        return new RandomAccessSparseMatrix(rows, cols, rowIndex, columnIndex, values);
+    }
 
-                return skeleton;
+    /**
+     * Decode the blocks of compressed rows in parallel. The block table states where the values of each block start,
+     * so every block is decoded directly into its place in the big arrays.
+     */
+    private RandomAccessSparseMatrix loadCompressed(FileChannel channel, int rows, int cols, long nonZero,
+                                                    long dataOffset, long blockTableOffset, int nBlocks) throws IOException {
+
+        final ByteBuffer table = ByteBuffer.allocate(BCAWriter.BLOCK_ENTRY_SIZE * nBlocks).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, table, blockTableOffset);
+        table.flip();
+
+        final BigIntArray rowIndex = new BigIntArray(nonZero);
+        final BigIntArray columnIndex = new BigIntArray(nonZero);
+        final BigFloatArray values = new BigFloatArray(nonZero);
+        rowIndex.resize(nonZero);
+        columnIndex.resize(nonZero);
+        values.resize(nonZero);
+
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
+        final CompletionService<Long> completionService = new ExecutorCompletionService<>(es);
+
+        for(int b = 0; b < nBlocks; b++) {
+            final long offset = table.getLong(BCAWriter.BLOCK_ENTRY_SIZE * b);
+            final long firstNonZero = table.getLong(BCAWriter.BLOCK_ENTRY_SIZE * b + 8);
+            final int firstRow = table.getInt(BCAWriter.BLOCK_ENTRY_SIZE * b + 16);
+            final int rowCount = table.getInt(BCAWriter.BLOCK_ENTRY_SIZE * b + 20);
+            final long end = b + 1 < nBlocks ? table.getLong(BCAWriter.BLOCK_ENTRY_SIZE * (b + 1)) : blockTableOffset;
+            if(offset < dataOffset || end < offset || end - offset > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt block table in BCA file");
             }
 
-            throw new IllegalArgumentException("Unsupported binary file");
+            completionService.submit(() -> {
+                final ByteBuffer buffer = ByteBuffer.allocate((int) (end - offset));
+                readFully(channel, buffer, offset);
+                buffer.flip();
+                return decodeBlock(buffer, firstRow, rowCount, firstNonZero, nonZero, rowIndex, columnIndex, values);
+            });
+        }
+
+        final long startTime = System.nanoTime();
+        long decoded = 0;
+        try(ProgressBar pb = Progress.progressBar("Loading BCA", nonZero, "values")) {
+            for(int received = 0; received < nBlocks; received++) {
+                final long count = completionService.take().get();
+                decoded += count;
+                pb.stepBy(count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading BCA file");
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof IOException ioe) throw ioe;
+            }
+            throw new IOException("Error loading BCA file", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+
+        if(decoded != nonZero) {
+            throw new IOException("BCA file contains " + decoded + " instead of " + nonZero + " non-zero values");
+        }
+
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        logger.info("Decoded " + nonZero + " non-zero values from " + (blockTableOffset - dataOffset) + " bytes in "
+                + String.format("%.2f", seconds) + " s (" + String.format("%.1f", (blockTableOffset - dataOffset) / 1048576d / seconds)
+                + " MB/s, " + String.format("%.1f", nonZero / 1e6 / seconds) + " million values/s)");
+
+        return new RandomAccessSparseMatrix(rows, cols, rowIndex, columnIndex, values);
+    }
+
+    /**
+     * @return The number of decoded values
+     */
+    private static long decodeBlock(ByteBuffer buffer, int firstRow, int rowCount, long firstNonZero, long nonZero,
+                                    BigIntArray rowIndex, BigIntArray columnIndex, BigFloatArray values) throws IOException {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        long i = firstNonZero;
+        try {
+            for(int row = firstRow; row < firstRow + rowCount; row++) {
+                final int length = getVarInt(buffer);
+                if(length < 0 || i + length > nonZero) throw new IOException("Corrupt row " + row + " in BCA file");
+
+                int column = 0;
+                for(int j = 0; j < length; j++) {
+                    column += getVarInt(buffer);
+                    rowIndex.set(i + j, row);
+                    columnIndex.set(i + j, column);
+                }
+                for(int j = 0; j < length; j++) {
+                    values.set(i + j, Float16.toFloat(buffer.getShort()));
+                }
+                i += length;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated block in BCA file", e);
+        }
+        return i - firstNonZero;
+    }
+
+    private static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) return value;
+        }
+        throw new IOException("Malformed varint in BCA file");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if(read < 0) throw new EOFException("Unexpected end of BCA file");
+            position += read;
+        }
+    }
+
+    private SkeletonBCA read(DataInputStream reader, boolean longCounts) throws IOException {
+
+        final int focusVectors = reader.readInt();
+        SkeletonBCA skeleton = new SkeletonBCA(focusVectors);
+
+        for(int i = 0; i < focusVectors; i++) {
+            int bookmark = reader.readInt();
+            int length = reader.readInt();
+            String key = new String(reader.readNBytes(length));
+            skeleton.add(i, bookmark, key);
+        }
+
+        final int contextVectors = reader.readInt();
+        final long coOccurrenceCount = longCounts ? reader.readLong() : reader.readInt();
+        final float max = reader.readFloat();
+
+        skeleton.setNrOfContextNodes(contextVectors);
+        skeleton.setMax(max);
+
+        final int rows = reader.readInt();
+        final int cols = reader.readInt();
+        final long nonZero = longCounts ? reader.readLong() : reader.readInt();
+
+        RandomAccessSparseMatrix matrix = new RandomAccessSparseMatrix(rows, cols, nonZero);
+
+        for(long i = 0; i < nonZero; i++) {
+
+            int row = reader.readInt();
+            int col = reader.readInt();
+            float val = reader.readFloat();
+
+            matrix.add(row, col, val);
         }
 
+        skeleton.setMatrix(matrix);
+
+        return skeleton;
     }
 }
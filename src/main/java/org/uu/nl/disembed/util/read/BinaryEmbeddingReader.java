@@ -0,0 +1,100 @@
+package org.uu.nl.disembed.util.read;
+
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.write.BinaryEmbeddingWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-maps an embedding written by {@link BinaryEmbeddingWriter}. Only the keys are copied to the heap,
+ * the vectors are read from the mapped file when they are needed.
+ */
+public class BinaryEmbeddingReader implements Reader<Embedding> {
+
+    private final static Logger logger = Logger.getLogger(BinaryEmbeddingReader.class);
+
+    public static boolean isBinaryEmbedding(File file) throws IOException {
+        if(file.length() < BinaryEmbeddingWriter.HEADER_SIZE) return false;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryEmbeddingWriter.MAGIC.length());
+            final byte[] magic = new byte[BinaryEmbeddingWriter.MAGIC.length()];
+            header.get(magic);
+            return BinaryEmbeddingWriter.MAGIC.equals(new String(magic, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Override
+    public Embedding load(File file) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryEmbeddingWriter.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.position(BinaryEmbeddingWriter.MAGIC.length());
+
+            final int version = header.getInt();
+            if(version != BinaryEmbeddingWriter.VERSION) {
+                throw new IOException("Unsupported binary embedding version: " + version);
+            }
+            final int flags = header.getInt();
+            final int size = header.getInt();
+            final int dimension = header.getInt();
+            header.getInt(); // reserved
+            final long vectorsOffset = header.getLong();
+
+            final long expectedLength = vectorsOffset + (long) size * dimension * Float.BYTES;
+            if(size <= 0 || dimension <= 0 || channel.size() != expectedLength) {
+                throw new IOException("Corrupt binary embedding file: expected " + expectedLength + " bytes, found " + channel.size());
+            }
+
+            final long dictionaryLength = vectorsOffset - BinaryEmbeddingWriter.HEADER_SIZE;
+            if(dictionaryLength > Integer.MAX_VALUE) {
+                throw new IOException("Key dictionary too large to map");
+            }
+
+            final MappedByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, BinaryEmbeddingWriter.HEADER_SIZE, dictionaryLength);
+            dictionary.order(ByteOrder.LITTLE_ENDIAN);
+
+            final int keysStart = 8 * (size + 1);
+            final String[] keys = new String[size];
+            byte[] keyBytes = new byte[64];
+            for (int i = 0; i < size; i++) {
+                final int from = (int) dictionary.getLong(8 * i);
+                final int length = (int) dictionary.getLong(8 * (i + 1)) - from;
+                if(keyBytes.length < length) keyBytes = new byte[length];
+                dictionary.get(keysStart + from, keyBytes, 0, length);
+                keys[i] = new String(keyBytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            // A single mapping is limited to 2GB, so larger embeddings are mapped in chunks of whole vectors
+            final int vectorsPerChunk = Math.max(1, Integer.MAX_VALUE / (dimension * Float.BYTES));
+            final int nChunks = (int) ((size + (long) vectorsPerChunk - 1) / vectorsPerChunk);
+            final FloatBuffer[] chunks = new FloatBuffer[nChunks];
+
+            for (int c = 0; c < nChunks; c++) {
+                final long vectors = Math.min(vectorsPerChunk, size - (long) c * vectorsPerChunk);
+                final long position = vectorsOffset + (long) c * vectorsPerChunk * dimension * Float.BYTES;
+                chunks[c] = channel
+                        .map(FileChannel.MapMode.READ_ONLY, position, vectors * dimension * Float.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                        .asFloatBuffer();
+            }
+
+            logger.info("Memory-mapped " + size + " vectors of dimension " + dimension + " in " + nChunks + " chunk(s)");
+
+            // The mapping remains valid after the channel is closed
+            final Embedding embedding = new Embedding(keys, dimension, chunks, vectorsPerChunk);
+            // A mapped embedding is read-only, so an unnormalized one cannot be normalized here
+            embedding.setNormalized((flags & BinaryEmbeddingWriter.FLAG_NORMALIZED) != 0);
+            return embedding;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.uu.nl.disembed.util.read;
+
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.util.config.CommentStringBuilder;
+import org.uu.nl.disembed.util.write.ClusterWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the clusters written by {@link ClusterWriter}, skipping the configuration comments and the header
+ */
+public class ClusterReader implements Reader<List<String[]>> {
+
+    private final static Logger logger = Logger.getLogger(ClusterReader.class);
+
+    @Override
+    public List<String[]> load(File file) throws IOException {
+
+        final List<String[]> clusters = new ArrayList<>();
+        final List<String> cluster = new ArrayList<>();
+        String id = null;
+        long members = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if(line.isEmpty() || line.startsWith(CommentStringBuilder.COMMENT.trim())) continue;
+
+                final int delimiter = line.indexOf(ClusterWriter.DELIMITER);
+                if(delimiter < 0) continue;
+                final String clusterId = line.substring(0, delimiter);
+                if(clusterId.equals("cluster_id")) continue;
+
+                if(!clusterId.equals(id)) {
+                    if(!cluster.isEmpty()) clusters.add(cluster.toArray(new String[0]));
+                    cluster.clear();
+                    id = clusterId;
+                }
+                cluster.add(line.substring(delimiter + ClusterWriter.DELIMITER.length()));
+                members++;
+            }
+        }
+        if(!cluster.isEmpty()) clusters.add(cluster.toArray(new String[0]));
+
+        logger.info("Read " + clusters.size() + " clusters of " + members + " entities");
+        return clusters;
+    }
+}
@@ -1,95 +1,331 @@
 package org.uu.nl.disembed.util.read;
 
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
 import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.progress.Progress;
+import org.uu.nl.disembed.util.write.EmbeddingWriter;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Reads GloVe and word2vec text files. The file is memory-mapped and split into line-aligned chunks, which are
+ * parsed in parallel directly into contiguous float arrays. Lines starting with # are treated as comments, a line
+ * containing only two integers is the word2vec header. Vectors are normalized to unit length while parsing, as the
+ * clustering only uses their cosine similarity.
+ */
 public class EmbeddingReader implements Reader<Embedding> {
 
+    private final static Logger logger = Logger.getLogger(EmbeddingReader.class);
+
+    /**
+     * Approximate number of bytes parsed by a single task
+     */
+    private static final int CHUNK_BYTES = 1 << 24;
+    /**
+     * Number of floats in a single array of the resulting embedding
+     */
+    private static final int FLOATS_PER_ARRAY = 1 << 27;
+
+    private final int threads;
+
+    public EmbeddingReader(int threads) {
+        this.threads = threads;
+    }
+
+    public EmbeddingReader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
     @Override
     public Embedding load(File file) throws IOException {
 
-        try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String firstLine = reader.readLine();
+        if(BinaryEmbeddingReader.isBinaryEmbedding(file)) {
+            return new BinaryEmbeddingReader().load(file);
+        }
 
-            if(Pattern.matches("(\\d)+\\s(\\d)+", firstLine)) {
-                return readWord2Vec(reader, firstLine);
-            } else {
-                return readGloVe(reader);
+        if(file.getName().endsWith(EmbeddingWriter.GZIP_FILETYPE)) {
+            // A compressed file cannot be mapped, so decompress it to a temporary file first
+            final Path temp = Files.createTempFile("embedding", EmbeddingWriter.FILETYPE);
+            try {
+                try (InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16)) {
+                    Files.copy(in, temp, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                }
+                return loadText(temp.toFile());
+            } finally {
+                Files.deleteIfExists(temp);
             }
         }
+
+        return loadText(file);
     }
 
-    private Embedding readWord2Vec(BufferedReader reader, String firstLine) throws IOException {
+    private Embedding loadText(File file) throws IOException {
 
-        String[] info = firstLine.split("\\s");
-        final int size = Integer.parseInt(info[0]);
-        final int dim = Integer.parseInt(info[1]);
+        final ExecutorService es = Executors.newWorkStealingPool(threads);
 
-        Embedding embedding = new Embedding(size, dim);
-        String line;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
 
-        int i = 0;
-        while((line = reader.readLine()) != null) {
+            final List<MappedByteBuffer> chunks = mapChunks(channel);
+            final int nChunks = chunks.size();
 
-            line = line.trim();
-            if(line.startsWith("#")) continue;
+            // First pass: count the data lines of each chunk and find the word2vec header and the dimension
+            final List<Future<ChunkInfo>> infoFutures = new ArrayList<>(nChunks);
+            for (int c = 0; c < nChunks; c++) {
+                final MappedByteBuffer chunk = chunks.get(c);
+                final boolean first = c == 0;
+                infoFutures.add(es.submit(() -> scan(chunk, first)));
+            }
 
-            String[] lineInfo = line.split("\\s");
+            final long[] firstRow = new long[nChunks + 1];
+            int[] header = null;
+            int dimension = -1;
+            for (int c = 0; c < nChunks; c++) {
+                final ChunkInfo info = infoFutures.get(c).get();
+                firstRow[c + 1] = firstRow[c] + info.lines();
+                if(header == null && info.header() != null) header = info.header();
+                if(dimension == -1) dimension = info.dimension();
+            }
 
-            embedding.setKey(i, lineInfo[0]);
+            final long lines = firstRow[nChunks];
+            if(lines == 0 || dimension <= 0) {
+                throw new IOException("Error reading embedding file, no vectors found");
+            }
+            if(lines > Integer.MAX_VALUE) {
+                throw new IOException("Error reading embedding file, too many vectors: " + lines);
+            }
+            if(header != null && (header[0] != lines || header[1] != dimension)) {
+                throw new IOException("Error reading word2vec embedding file, header states " + header[0] + " vectors of dimension "
+                        + header[1] + " but found " + lines + " vectors of dimension " + dimension);
+            }
+
+            final int size = (int) lines;
+            final int dim = dimension;
+            final int vectorsPerArray = Math.max(1, FLOATS_PER_ARRAY / dim);
+            final float[][] arrays = new float[(size + vectorsPerArray - 1) / vectorsPerArray][];
+            for (int a = 0; a < arrays.length; a++) {
+                arrays[a] = new float[Math.min(vectorsPerArray, size - a * vectorsPerArray) * dim];
+            }
+            final String[] keys = new String[size];
 
-            float[] vector = new float[dim];
+            // Second pass: parse all chunks in parallel into the preallocated arrays
+            final CompletionService<Integer> completionService = new ExecutorCompletionService<>(es);
+            for (int c = 0; c < nChunks; c++) {
+                final MappedByteBuffer chunk = chunks.get(c);
+                final int row = (int) firstRow[c];
+                final boolean first = c == 0;
+                completionService.submit(() -> parse(chunk, first, row, dim, keys, arrays, vectorsPerArray));
+            }
 
-            for(int j = 0; j < dim; j++) {
-                vector[j] = Float.parseFloat(lineInfo[j+1]);
+            try (ProgressBar pb = Progress.progressBar("Reading embedding", size, "vectors")) {
+                for (int received = 0; received < nChunks; received++) {
+                    pb.stepBy(completionService.take().get());
+                }
             }
-            embedding.setVector(i, vector);
-            i++;
+
+            final FloatBuffer[] buffers = new FloatBuffer[arrays.length];
+            for (int a = 0; a < arrays.length; a++) {
+                buffers[a] = FloatBuffer.wrap(arrays[a]);
+            }
+
+            logger.info("Read " + size + " vectors of dimension " + dim);
+            final Embedding embedding = new Embedding(keys, dim, buffers, vectorsPerArray);
+            embedding.setNormalized(true);
+            return embedding;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading embedding");
+        } catch (ExecutionException e) {
+            // The fork-join pool may wrap the exception of a task in runtime exceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof IOException ioe) throw ioe;
+            }
+            throw new IOException("Error reading embedding file", e.getCause());
+        } finally {
+            es.shutdownNow();
         }
+    }
 
-        return embedding;
+    /**
+     * Splits the file in chunks of roughly {@link #CHUNK_BYTES} that each end with a complete line
+     */
+    private static List<MappedByteBuffer> mapChunks(FileChannel channel) throws IOException {
+
+        final long length = channel.size();
+        final List<MappedByteBuffer> chunks = new ArrayList<>();
+        final ByteBuffer probe = ByteBuffer.allocate(1 << 16);
+
+        long start = 0;
+        while (start < length) {
+            long end = Math.min(length, start + CHUNK_BYTES);
+
+            // Move the end of the chunk to just after the next newline
+            search:
+            while (end < length) {
+                probe.clear();
+                final int read = channel.read(probe, end);
+                for (int i = 0; i < read; i++) {
+                    if(probe.get(i) == '\n') {
+                        end += i + 1;
+                        break search;
+                    }
+                }
+                end += read;
+            }
+            end = Math.min(end, length);
+
+            if(end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line too long in embedding file");
+            }
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            start = end;
+        }
+        return chunks;
     }
 
-    private Embedding readGloVe(BufferedReader reader) throws IOException {
+    private record ChunkInfo(int lines, int dimension, int[] header) { }
+
+    /**
+     * @param first Only the first chunk can contain the word2vec header
+     */
+    private static ChunkInfo scan(ByteBuffer chunk, boolean first) {
+
+        final int limit = chunk.limit();
+        int lines = 0, dimension = -1;
+        int[] header = null;
 
-        String line;
+        for (int start = 0; start < limit; ) {
+            final int end = lineEnd(chunk, start, limit);
+            final int from = skipWhitespace(chunk, start, end);
 
-        List<String> dict = new ArrayList<>();
-        List<float[]> data = new ArrayList<>();
+            if(from < end && chunk.get(from) != '#') {
+                final int[] fields = first && lines == 0 && header == null ? headerFields(chunk, from, end) : null;
+                if(fields != null) {
+                    header = fields;
+                } else {
+                    if(dimension == -1) dimension = countFields(chunk, from, end) - 1;
+                    lines++;
+                }
+            }
+            start = end + 1;
+        }
+        return new ChunkInfo(lines, dimension, header);
+    }
 
-        int i = 0;
-        int dim = 0;
-        while((line = reader.readLine()) != null) {
+    private static int parse(ByteBuffer chunk, boolean first, int row, int dimension, String[] keys, float[][] arrays, int vectorsPerArray) throws IOException {
 
-            line = line.trim();
-            if(line.startsWith("#")) continue;
+        final int limit = chunk.limit();
+        final int firstRow = row;
+        byte[] keyBytes = new byte[256];
+        boolean headerSkipped = !first;
 
-            String[] lineInfo = line.split("\\s");
+        for (int start = 0; start < limit; ) {
+            final int end = lineEnd(chunk, start, limit);
+            int i = skipWhitespace(chunk, start, end);
 
-            dim = lineInfo.length - 1;
+            if(i < end && chunk.get(i) != '#') {
 
-            dict.add(lineInfo[0]);
+                if(!headerSkipped && headerFields(chunk, i, end) != null) {
+                    headerSkipped = true;
+                    start = end + 1;
+                    continue;
+                }
+                headerSkipped = true;
 
-            float[] vector = new float[dim];
+                // The key is the first field
+                final int keyStart = i;
+                while (i < end && !isWhitespace(chunk.get(i))) i++;
+                final int keyLength = i - keyStart;
+                if(keyBytes.length < keyLength) keyBytes = new byte[keyLength];
+                chunk.get(keyStart, keyBytes, 0, keyLength);
+                keys[row] = new String(keyBytes, 0, keyLength, StandardCharsets.UTF_8);
 
-            for(int j = 0; j < dim; j++) {
-                vector[j] = Float.parseFloat(lineInfo[j+1]);
+                final float[] array = arrays[row / vectorsPerArray];
+                final int offset = (row % vectorsPerArray) * dimension;
+
+                int d = 0;
+                while (true) {
+                    i = skipWhitespace(chunk, i, end);
+                    if(i >= end) break;
+                    final int valueStart = i;
+                    while (i < end && !isWhitespace(chunk.get(i))) i++;
+                    if(d == dimension) {
+                        throw new IOException("Vector of " + keys[row] + " has more than " + dimension + " dimensions");
+                    }
+                    try {
+                        array[offset + d++] = FloatParser.parse(chunk, valueStart, i);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid value in vector of " + keys[row], e);
+                    }
+                }
+                if(d != dimension) {
+                    throw new IOException("Vector of " + keys[row] + " has " + d + " instead of " + dimension + " dimensions");
+                }
+                Embedding.normalize(array, offset, dimension);
+                row++;
+            }
+            start = end + 1;
+        }
+        return row - firstRow;
+    }
+
+    /**
+     * @return The two integers of a word2vec header line, or null if the line is not a header
+     */
+    private static int[] headerFields(ByteBuffer chunk, int from, int end) {
+        final int[] fields = new int[2];
+        int i = from;
+        for (int f = 0; f < 2; f++) {
+            i = skipWhitespace(chunk, i, end);
+            final int start = i;
+            long value = 0;
+            while (i < end && chunk.get(i) >= '0' && chunk.get(i) <= '9') {
+                value = value * 10 + (chunk.get(i) - '0');
+                if(value > Integer.MAX_VALUE) return null;
+                i++;
             }
-            data.add(vector);
-            i++;
+            if(i == start || (i < end && !isWhitespace(chunk.get(i)))) return null;
+            fields[f] = (int) value;
         }
+        return skipWhitespace(chunk, i, end) == end ? fields : null;
+    }
 
-        if(i == 0 || dim == 0) {
-            throw new IOException("Error reading GloVe embedding file");
+    private static int countFields(ByteBuffer chunk, int from, int end) {
+        int fields = 0;
+        boolean inField = false;
+        for (int i = from; i < end; i++) {
+            final boolean whitespace = isWhitespace(chunk.get(i));
+            if(!whitespace && !inField) fields++;
+            inField = !whitespace;
         }
+        return fields;
+    }
+
+    private static int lineEnd(ByteBuffer chunk, int start, int limit) {
+        int i = start;
+        while (i < limit && chunk.get(i) != '\n') i++;
+        return i;
+    }
+
+    private static int skipWhitespace(ByteBuffer chunk, int i, int end) {
+        while (i < end && isWhitespace(chunk.get(i))) i++;
+        return i;
+    }
 
-        return new Embedding(dict.toArray(String[]::new), data.toArray(float[][]::new));
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
     }
 }
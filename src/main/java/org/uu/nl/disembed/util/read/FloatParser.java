@@ -0,0 +1,108 @@
+package org.uu.nl.disembed.util.read;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal floats directly from (memory-mapped) bytes, without creating a String for every value. The result
+ * is always identical to {@link Float#parseFloat}: whenever the fast path cannot guarantee correct rounding
+ * (too many digits, large exponents, subnormals or double rounding ties), the value is handed to Float.parseFloat.
+ */
+public final class FloatParser {
+
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private FloatParser() {}
+
+	/**
+	 * @param from Index of the first character
+	 * @param to Index after the last character
+	 * @throws NumberFormatException If the bytes do not form a valid float
+	 */
+	public static float parse(ByteBuffer buffer, int from, int to) {
+
+		int i = from;
+		boolean negative = false;
+		if(i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean hasDigits = false;
+
+		for (; i < to; i++) {
+			final int c = buffer.get(i) - '0';
+			if(c < 0 || c > 9) break;
+			hasDigits = true;
+			if(digits > 0 || c != 0) {
+				if(digits < 18) mantissa = mantissa * 10 + c;
+				else exponent++;
+				digits++;
+			}
+		}
+		if(i < to && buffer.get(i) == '.') {
+			i++;
+			for (; i < to; i++) {
+				final int c = buffer.get(i) - '0';
+				if(c < 0 || c > 9) break;
+				hasDigits = true;
+				if(digits > 0 || c != 0) {
+					if(digits < 18) {
+						mantissa = mantissa * 10 + c;
+						exponent--;
+					}
+					digits++;
+				} else exponent--;
+			}
+		}
+		if(!hasDigits) return slowParse(buffer, from, to);
+
+		if(i < to && (buffer.get(i) == 'E' || buffer.get(i) == 'e')) {
+			i++;
+			boolean negativeExponent = false;
+			if(i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+				negativeExponent = buffer.get(i) == '-';
+				i++;
+			}
+			if(i == to) return slowParse(buffer, from, to);
+			int e = 0;
+			for (; i < to; i++) {
+				final int c = buffer.get(i) - '0';
+				if(c < 0 || c > 9) return slowParse(buffer, from, to);
+				if(e < 10_000) e = e * 10 + c;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		// Trailing characters such as a float suffix are left to the reference implementation
+		if(i != to) return slowParse(buffer, from, to);
+
+		if(mantissa == 0) return negative ? -0f : 0f;
+		if(digits > 18 || mantissa >= MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22) {
+			return slowParse(buffer, from, to);
+		}
+
+		// Both the mantissa and the power of ten are exact doubles, so this is correctly rounded
+		final double d = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		final float f = (float) d;
+
+		// Rounding to float again is only wrong when the double lies exactly halfway between two floats
+		final long bits = Double.doubleToRawLongBits(d);
+		if((bits & 0x1FFFFFFFL) == 0x10000000L || f < Float.MIN_NORMAL || Float.isInfinite(f)) {
+			return slowParse(buffer, from, to);
+		}
+
+		return negative ? -f : f;
+	}
+
+	private static float slowParse(ByteBuffer buffer, int from, int to) {
+		final byte[] bytes = new byte[to - from];
+		buffer.get(from, bytes);
+		return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+	}
+}
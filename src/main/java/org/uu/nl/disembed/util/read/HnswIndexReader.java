@@ -1,15 +1,119 @@
 package org.uu.nl.disembed.util.read;
 
-import com.github.jelmerk.knn.hnsw.HnswIndex;
-import org.uu.nl.disembed.embedding.opt.Optimizer;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.clustering.HnswGraph;
+import org.uu.nl.disembed.util.array.BigIntBuffer;
+import org.uu.nl.disembed.util.array.BigLongBuffer;
+import org.uu.nl.disembed.util.write.HnswIndexWriter;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
-public class HnswIndexReader implements Reader<HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float>> {
+/**
+ * Memory-maps an HNSW index written by {@link HnswIndexWriter}, the links are not copied to the heap
+ */
+public class HnswIndexReader implements Reader<HnswGraph> {
+
+    private final static Logger logger = Logger.getLogger(HnswIndexReader.class);
 
     @Override
-    public HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float> load(File file) throws IOException {
-        return HnswIndex.load(file);
+    public HnswGraph load(File file) throws IOException {
+
+        final long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            final ByteBuffer header = ByteBuffer.allocate(HnswIndexWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+
+            final byte[] magic = new byte[HnswIndexWriter.MAGIC.length()];
+            header.get(magic);
+            if(!new String(magic, StandardCharsets.UTF_8).equals(HnswIndexWriter.MAGIC)) {
+                throw new IOException("Not an HNSW index, indexes of earlier versions have to be rebuilt: " + file);
+            }
+            header.position(16);
+            final int version = header.getInt();
+            if(version < 1 || version > HnswIndexWriter.VERSION) {
+                throw new IOException("Unsupported HNSW index version " + version + ": " + file);
+            }
+
+            final int size = header.getInt();
+            final int m = header.getInt();
+            final int ef = header.getInt();
+            final int efConstruction = header.getInt();
+            final int entryPoint = header.getInt();
+            final int levels = header.getInt();
+            // Version 1 has no keys, the padding of its header is zero
+            final boolean hasKeys = header.getInt() == 1;
+
+            final ByteBuffer levelTable = ByteBuffer.allocate(levels * HnswIndexWriter.LEVEL_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, levelTable, HnswIndexWriter.HEADER_SIZE);
+
+            final IntBuffer[] nodes = new IntBuffer[levels];
+            final BigLongBuffer[] offsets = new BigLongBuffer[levels];
+            final BigIntBuffer[] links = new BigIntBuffer[levels];
+
+            long position = HnswIndexWriter.HEADER_SIZE + (long) levels * HnswIndexWriter.LEVEL_ENTRY_SIZE;
+            for (int level = 0; level < levels; level++) {
+                final int count = levelTable.getInt();
+                final long linkCount = levelTable.getLong();
+                if(level > 0) {
+                    nodes[level] = map(channel, position, count);
+                    position += (long) count * Integer.BYTES;
+                }
+                offsets[level] = BigLongBuffer.map(channel, position, count + 1L);
+                position += (count + 1L) * Long.BYTES;
+                links[level] = BigIntBuffer.map(channel, position, linkCount);
+                position += linkCount * Integer.BYTES;
+            }
+
+            String[] keys = null;
+            if(hasKeys) {
+                keys = new String[size];
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(position))));
+                for (int i = 0; i < size; i++) {
+                    final byte[] bytes = new byte[Integer.reverseBytes(in.readInt())];
+                    in.readFully(bytes);
+                    keys[i] = new String(bytes, StandardCharsets.UTF_8);
+                    position += Integer.BYTES + bytes.length;
+                }
+            }
+            if(position != channel.size()) {
+                throw new IOException("HNSW index has " + channel.size() + " bytes instead of " + position + ": " + file);
+            }
+
+            final HnswGraph graph = new HnswGraph(size, keys, m, ef, efConstruction, entryPoint, nodes, offsets, links);
+            logger.info("Mapped HNSW index of " + size + " entities and " + levels + " levels in "
+                    + String.format("%.2f", (System.nanoTime() - start) / 1e9) + " s");
+            return graph;
+        }
+    }
+
+    /**
+     * The mapping stays valid after the channel is closed
+     */
+    private static IntBuffer map(FileChannel channel, long position, int count) throws IOException {
+        final long bytes = (long) count * Integer.BYTES;
+        if(bytes > Integer.MAX_VALUE) {
+            throw new IOException("HNSW index section of " + bytes + " bytes is too large to map");
+        }
+        if(position + bytes > channel.size()) {
+            throw new EOFException("Unexpected end of HNSW index");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if(read < 0) throw new EOFException("Unexpected end of HNSW index");
+            position += read;
+        }
+        buffer.flip();
     }
 }
@@ -0,0 +1,120 @@
+package org.uu.nl.disembed.util.read;
+
+import org.uu.nl.disembed.clustering.IvfPqIndex;
+import org.uu.nl.disembed.util.array.BigByteBuffer;
+import org.uu.nl.disembed.util.write.IvfPqIndexWriter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class IvfPqIndexReader implements Reader<IvfPqIndex> {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    @Override
+    public IvfPqIndex load(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            final ByteBuffer header = ByteBuffer.allocate(IvfPqIndexWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+
+            final byte[] magic = new byte[IvfPqIndexWriter.MAGIC.length()];
+            header.get(magic);
+            if(!new String(magic, StandardCharsets.UTF_8).equals(IvfPqIndexWriter.MAGIC)) {
+                throw new IOException("Not an IVF-PQ index: " + file);
+            }
+            final int version = header.getInt();
+            if(version != IvfPqIndexWriter.VERSION) {
+                throw new IOException("Unsupported IVF-PQ index version " + version + ": " + file);
+            }
+
+            final int dimension = header.getInt();
+            final int lists = header.getInt();
+            final int subspaces = header.getInt();
+            final int codebookSize = header.getInt();
+            final int size = header.getInt();
+
+            if(dimension <= 0 || subspaces <= 0 || dimension % subspaces != 0 || lists < 0 || size < 0
+                    || codebookSize <= 0 || codebookSize > IvfPqIndex.CODEBOOK_SIZE) {
+                throw new IOException("Invalid IVF-PQ index header, dimension " + dimension + ", " + lists + " lists, "
+                        + subspaces + " subspaces, " + codebookSize + " codewords: " + file);
+            }
+            final long centroidCount = (long) lists * dimension;
+            final long codebookCount = (long) codebookSize * dimension;
+            final long codeCount = (long) size * subspaces;
+            final long expected = IvfPqIndexWriter.HEADER_SIZE + (centroidCount + codebookCount) * Float.BYTES
+                    + (lists + 1L + size) * Integer.BYTES + codeCount;
+            if(expected != channel.size()) {
+                throw new IOException("IVF-PQ index has " + channel.size() + " bytes instead of " + expected + ": " + file);
+            }
+            if(centroidCount > MAX_ARRAY_SIZE) {
+                throw new IOException("IVF-PQ index of " + lists + " lists of dimension " + dimension + " is too large to load: " + file);
+            }
+
+            final float[] centroids = new float[(int) centroidCount];
+            final float[] codebooks = new float[(int) codebookCount];
+            final int[] listStart = new int[lists + 1];
+            final int[] ids = new int[size];
+
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFloats(channel, buffer, centroids);
+            readFloats(channel, buffer, codebooks);
+            readInts(channel, buffer, listStart);
+            readInts(channel, buffer, ids);
+
+            // The lists must partition the entities
+            if(listStart[0] != 0 || listStart[lists] != size) {
+                throw new IOException("IVF-PQ index lists do not cover its " + size + " entities: " + file);
+            }
+            for (int l = 0; l < lists; l++) {
+                if(listStart[l + 1] < listStart[l]) {
+                    throw new IOException("IVF-PQ index list " + l + " has a negative length: " + file);
+                }
+            }
+            for (int id : ids) {
+                if(id < 0 || id >= size) throw new IOException("IVF-PQ index entity " + id + " out of range: " + file);
+            }
+
+            final BigByteBuffer codes = BigByteBuffer.map(channel, channel.position(), codeCount);
+
+            return new IvfPqIndex(dimension, lists, subspaces, codebookSize, centroids, codebooks, listStart, ids, codes);
+        }
+    }
+
+    private static void readFloats(FileChannel channel, ByteBuffer buffer, float[] target) throws IOException {
+        for (int offset = 0; offset < target.length; ) {
+            final int count = Math.min(target.length - offset, buffer.capacity() / Float.BYTES);
+            buffer.clear().limit(count * Float.BYTES);
+            readFully(channel, buffer).asFloatBuffer().get(target, offset, count);
+            offset += count;
+        }
+    }
+
+    private static void readInts(FileChannel channel, ByteBuffer buffer, int[] target) throws IOException {
+        for (int offset = 0; offset < target.length; ) {
+            final int count = Math.min(target.length - offset, buffer.capacity() / Integer.BYTES);
+            buffer.clear().limit(count * Integer.BYTES);
+            readFully(channel, buffer).asIntBuffer().get(target, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Fill the buffer from the current position of the channel
+     * @return The buffer, flipped for reading
+     */
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) throw new EOFException("Unexpected end of IVF-PQ index");
+        }
+        return buffer.flip();
+    }
+}
@@ -1,24 +1,62 @@
 package org.uu.nl.disembed.util.rnd;
 
+import org.uu.nl.disembed.util.array.BigIntArray;
+import org.uu.nl.disembed.util.array.BigLongArray;
 import org.uu.nl.disembed.util.config.Configuration;
 
+/**
+ * A random permutation of the numbers 0 to size (exclusive), indexed by a long. As long as all values fit in an int
+ * the permutation is stored as ints, halving the memory needed.
+ */
 public class Permutation {
 
     private static final ExtendedRandom random = Configuration.getThreadLocalRandom();
 
-    private final int[] permutation;
+    private final long size;
+    private final BigIntArray intPermutation;
+    private final BigLongArray longPermutation;
 
-    public Permutation(int size) {
-        permutation = new int[size];
-        for(int i = 0; i < permutation.length; i++)
-            permutation[i] = i;
+    public Permutation(long size) {
+        this.size = size;
+        if(size <= Integer.MAX_VALUE) {
+            intPermutation = new BigIntArray(size);
+            longPermutation = null;
+            for(int i = 0; i < size; i++)
+                intPermutation.add(i);
+        } else {
+            intPermutation = null;
+            longPermutation = new BigLongArray(size);
+            for(long i = 0; i < size; i++)
+                longPermutation.add(i);
+        }
     }
 
-    public int randomAccess(int i) {
-        return permutation[i];
+    public long randomAccess(long i) {
+        return intPermutation != null ? intPermutation.get(i) : longPermutation.get(i);
     }
 
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Fisher-Yates shuffle over the whole (chunked) permutation
+     */
     public void shuffle() {
-        random.shuffle(permutation);
+        if(intPermutation != null) {
+            for (int i = (int) size - 1; i > 0; i--) {
+                int r = random.uniform(i + 1);
+                int temp = intPermutation.get(i);
+                intPermutation.set(i, intPermutation.get(r));
+                intPermutation.set(r, temp);
+            }
+        } else {
+            for (long i = size - 1; i > 0; i--) {
+                long r = random.uniform(i + 1);
+                long temp = longPermutation.get(i);
+                longPermutation.set(i, longPermutation.get(r));
+                longPermutation.set(r, temp);
+            }
+        }
     }
 }
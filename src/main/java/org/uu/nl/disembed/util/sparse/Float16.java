@@ -0,0 +1,65 @@
+package org.uu.nl.disembed.util.sparse;
+
+/**
+ * Conversion between floats and IEEE 754 half-precision floats stored in a short, rounding to nearest even
+ */
+public final class Float16 {
+
+	/**
+	 * Smallest positive normal half-precision value, below it values lose precision
+	 */
+	public static final float MIN_NORMAL = 0x1p-14f;
+
+	private Float16() {}
+
+	public static short fromFloat(float value) {
+
+		final int bits = Float.floatToRawIntBits(value);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int exponent = (bits >>> 23) & 0xFF;
+		final int mantissa = bits & 0x7FFFFF;
+
+		if(exponent == 0xFF) {
+			// Infinity or NaN, keep NaN a NaN
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+
+		final int e = exponent - 127 + 15;
+		if(e >= 0x1F) return (short) (sign | 0x7C00); // Overflow to infinity
+
+		if(e <= 0) {
+			// Subnormal half, or underflow to zero
+			if(e < -10) return (short) sign;
+			final int m = mantissa | 0x800000;
+			final int shift = 14 - e;
+			int half = m >>> shift;
+			final int remainder = m & ((1 << shift) - 1);
+			final int halfway = 1 << (shift - 1);
+			if(remainder > halfway || (remainder == halfway && (half & 1) == 1)) half++;
+			return (short) (sign | half);
+		}
+
+		int half = (e << 10) | (mantissa >>> 13);
+		final int remainder = mantissa & 0x1FFF;
+		// A carry into the exponent is correct, also when it rounds up to infinity
+		if(remainder > 0x1000 || (remainder == 0x1000 && (half & 1) == 1)) half++;
+		return (short) (sign | half);
+	}
+
+	public static float toFloat(short half) {
+
+		final int h = half & 0xFFFF;
+		final int sign = (h & 0x8000) << 16;
+		final int exponent = (h >>> 10) & 0x1F;
+		final int mantissa = h & 0x3FF;
+
+		if(exponent == 0x1F) return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		if(exponent == 0) {
+			if(mantissa == 0) return Float.intBitsToFloat(sign);
+			// Subnormal half, which is a normal float
+			final float value = mantissa * 0x1p-24f;
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
@@ -0,0 +1,89 @@
+package org.uu.nl.disembed.util.sparse;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.uu.nl.disembed.util.array.BigArrays.*;
+
+/**
+ * Read-only sparse matrix of which the row, column and value sections are memory-mapped from a file. Each section is
+ * mapped in chunks of {@link org.uu.nl.disembed.util.array.BigArrays#CHUNK_SIZE} elements, so the same index
+ * arithmetic as the big arrays applies.
+ */
+public class MappedSparseMatrix implements SparseMatrix {
+
+    private final IntBuffer[] rowIndex;
+    private final IntBuffer[] columnIndex;
+    private final FloatBuffer[] values;
+    private final int rows, columns;
+    private final long nonZero;
+
+    /**
+     * @param rowsOffset File offset of the little-endian row indexes
+     * @param columnsOffset File offset of the little-endian column indexes
+     * @param valuesOffset File offset of the little-endian values
+     */
+    public MappedSparseMatrix(FileChannel channel, int nRows, int nColumns, long nonZero,
+                              long rowsOffset, long columnsOffset, long valuesOffset) throws IOException {
+        this.rows = nRows;
+        this.columns = nColumns;
+        this.nonZero = nonZero;
+
+        final int nChunks = nrOfChunks(nonZero);
+        this.rowIndex = new IntBuffer[nChunks];
+        this.columnIndex = new IntBuffer[nChunks];
+        this.values = new FloatBuffer[nChunks];
+
+        for (int c = 0; c < nChunks; c++) {
+            final long elements = Math.min(CHUNK_SIZE, nonZero - index(c, 0));
+            final long position = index(c, 0) * 4;
+            rowIndex[c] = channel.map(FileChannel.MapMode.READ_ONLY, rowsOffset + position, elements * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            columnIndex[c] = channel.map(FileChannel.MapMode.READ_ONLY, columnsOffset + position, elements * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            values[c] = channel.map(FileChannel.MapMode.READ_ONLY, valuesOffset + position, elements * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public long getNonZero() {
+        return nonZero;
+    }
+
+    @Override
+    public float getValue(long i) {
+        return values[chunk(i)].get(offset(i));
+    }
+
+    @Override
+    public int getRow(long i) {
+        return rowIndex[chunk(i)].get(offset(i));
+    }
+
+    @Override
+    public int getColumn(long i) {
+        return columnIndex[chunk(i)].get(offset(i));
+    }
+
+    /**
+     * The mapped sections live in the page cache, not on the heap
+     */
+    @Override
+    public long count32BitNumbers() {
+        return 0;
+    }
+}
@@ -1,31 +1,44 @@
 package org.uu.nl.disembed.util.sparse;
 
-import com.carrotsearch.hppc.FloatArrayList;
-import com.carrotsearch.hppc.IntArrayList;
+import org.uu.nl.disembed.util.array.BigFloatArray;
+import org.uu.nl.disembed.util.array.BigIntArray;
 
 /**
  * This format is good for incrementally constructing a sparse matrix in random order,
  * but poor for iterating over non-zero values in lexicographical order.
  * This class is written for easy filling and efficient random access of elements.
+ * Elements are indexed by a long, so the number of non-zero values is not limited to 2^31.
  */
-public class RandomAccessSparseMatrix {
+public class RandomAccessSparseMatrix implements SparseMatrix {
 
-    private final IntArrayList rowIndex;
-    private final IntArrayList columnIndex;
-    private final FloatArrayList values;
+    private final BigIntArray rowIndex;
+    private final BigIntArray columnIndex;
+    private final BigFloatArray values;
 
     private final int rows, columns;
 
-    private int nonZero = 0;
+    private long nonZero = 0;
 
-    public RandomAccessSparseMatrix(int nRows, int nColumns, int nonZero) {
-        this.rowIndex = new IntArrayList(nonZero);
-        this.columnIndex = new IntArrayList(nonZero);
-        this.values = new FloatArrayList(nonZero);
+    public RandomAccessSparseMatrix(int nRows, int nColumns, long nonZero) {
+        this.rowIndex = new BigIntArray(nonZero);
+        this.columnIndex = new BigIntArray(nonZero);
+        this.values = new BigFloatArray(nonZero);
         this.rows = nRows;
         this.columns = nColumns;
     }
 
+    /**
+     * Wrap arrays that are already filled, used for bulk loading
+     */
+    public RandomAccessSparseMatrix(int nRows, int nColumns, BigIntArray rowIndex, BigIntArray columnIndex, BigFloatArray values) {
+        this.rowIndex = rowIndex;
+        this.columnIndex = columnIndex;
+        this.values = values;
+        this.rows = nRows;
+        this.columns = nColumns;
+        this.nonZero = values.size();
+    }
+
     public void add(int row, int column, float value){
         rowIndex.add(row);
         columnIndex.add(column);
@@ -33,36 +46,43 @@ public class RandomAccessSparseMatrix {
         nonZero++;
     }
 
-    public int count32BitNumbers() {
+    @Override
+    public long count32BitNumbers() {
         // We assume Float as T
         return getNonZero() * 3;
     }
 
-    public int getNonZero() {
+    @Override
+    public long getNonZero() {
         return this.nonZero;
     }
 
+    @Override
     public int columns() {
         return this.columns;
     }
 
+    @Override
     public int rows() {
         return this.rows;
     }
 
-    public int size() {
+    public long size() {
         return values.size();
     }
 
-    public float getValue(int i) {
+    @Override
+    public float getValue(long i) {
         return values.get(i);
     }
 
-    public int getRow(int i) {
+    @Override
+    public int getRow(long i) {
         return rowIndex.get(i);
     }
 
-    public int getColumn(int i) {
+    @Override
+    public int getColumn(long i) {
         return columnIndex.get(i);
     }
 
@@ -0,0 +1,19 @@
+package org.uu.nl.disembed.util.sparse;
+
+/**
+ * A sparse matrix in coordinate format, of which the non-zero elements are indexed by a long
+ */
+public interface SparseMatrix {
+
+    int rows();
+    int columns();
+    long getNonZero();
+    float getValue(long i);
+    int getRow(long i);
+    int getColumn(long i);
+
+    /**
+     * @return Approximate number of 32-bit numbers this matrix keeps on the heap
+     */
+    long count32BitNumbers();
+}
@@ -1,19 +1,31 @@
 package org.uu.nl.disembed.util.write;
 
+import me.tongfei.progressbar.ProgressBar;
 import org.apache.log4j.Logger;
 import org.uu.nl.disembed.embedding.bca.BookmarkColoring;
 import org.uu.nl.disembed.util.config.Configuration;
 import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
-import org.uu.nl.disembed.util.sparse.RandomAccessSparseMatrix;
+import org.uu.nl.disembed.util.array.BigFloatArray;
+import org.uu.nl.disembed.util.array.BigIntArray;
+import org.uu.nl.disembed.util.progress.Progress;
+import org.uu.nl.disembed.util.sparse.Float16;
+import org.uu.nl.disembed.util.sparse.SparseMatrix;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public record BCAWriter(Configuration config, BookmarkColoring bca) implements Writer {
 
@@ -22,52 +34,387 @@ public record BCAWriter(Configuration config, BookmarkColoring bca) implements W
     public static final String FILETYPE = ".bca";
     public static final String OUTPUT_DIRECTORY = "bca";
 
+    /**
+     * Header of the original format, which stores counts as 32-bit integers. Still supported by the reader.
+     */
     public static final String HEADER = "BCA_SPARSE_MATRIX";
     public static final int HEADER_LENGTH = HEADER.length();
 
+    /**
+     * Header of the versioned format, followed by an integer version number
+     */
+    public static final String MAGIC = "DISEMBED_BCA";
+    public static final int MAGIC_LENGTH = MAGIC.length();
+    /**
+     * Version 2: same layout as the original format, but with 64-bit non-zero counts
+     */
+    public static final int VERSION_LONG = 2;
+    /**
+     * Version 3: columnar layout that can be memory-mapped. After the magic and version (big-endian) follows a
+     * little-endian header with the counts and the file offsets of each section: the bookmarks of the focus nodes,
+     * the key offsets, the UTF-8 keys, and the row, column and value sections. Sections start at 8-byte boundaries.
+     */
+    public static final int VERSION_COLUMNAR = 3;
+    /**
+     * Version 4: compressed sparse rows. The header and dictionary are those of version 3, but the last three offsets
+     * are the offset of the row data, the offset of the block table and the number of blocks. Each block holds whole
+     * rows and can be decoded on its own: per row the number of values and the column deltas as varints, followed by
+     * the values as little-endian half-precision floats. Each entry of the block table holds the offset of the block,
+     * the index of its first non-zero value, its first row and its number of rows.
+     */
+    public static final int VERSION_COMPRESSED = 4;
+    public static final int HEADER_SIZE = MAGIC_LENGTH + 4 + 6 * 4 + 8 * 8;
+    public static final int BLOCK_ENTRY_SIZE = 8 + 8 + 4 + 4;
+    public static final int ALIGNMENT = 8;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long PROGRESS_MASK = (1 << 20) - 1;
+    /**
+     * Approximate number of non-zero values of a compressed block
+     */
+    private static final int BLOCK_NON_ZERO = 1 << 16;
+
     @Override
     public void write() throws IOException {
 
-        IntermediateOutputConfiguration outputConfig = config.getIntermediateOutput();
+        IntermediateOutputConfiguration.OutputBCA bcaConfig = config.getIntermediateOutput().getBca();
 
-        String fileName = outputConfig.getBca().getFilename() + FILETYPE;
+        String fileName = bcaConfig.getFilename() + FILETYPE;
         logger.info("Writing file: " + fileName);
 
         Path outputFolder = Paths.get("").toAbsolutePath().resolve(OUTPUT_DIRECTORY);
         Files.createDirectories(outputFolder);
 
-        try (DataOutputStream writer = new DataOutputStream(
-                new BufferedOutputStream(new FileOutputStream(outputFolder.resolve(fileName).toFile())))) {
+        try (FileChannel channel = FileChannel.open(outputFolder.resolve(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            if(bcaConfig.getEncodingEnum() == IntermediateOutputConfiguration.OutputBCA.Encoding.COMPRESSED) {
+                writeCompressed(channel);
+            } else {
+                writeColumnar(channel);
+            }
+        }
+    }
+
+    private void writeColumnar(FileChannel channel) throws IOException {
+
+        final SparseMatrix matrix = bca.getSparseMatrix();
+        final long nonZero = matrix.getNonZero();
+
+        final Dictionary dictionary = Dictionary.of(bca);
+        final long rowsOffset = align(dictionary.end());
+        final long columnsOffset = align(rowsOffset + 4 * nonZero);
+        final long valuesOffset = align(columnsOffset + 4 * nonZero);
+
+        try (ProgressBar pb = Progress.progressBar("Writing BCA", 3 * nonZero, "values")) {
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            putHeader(buffer, VERSION_COLUMNAR, nonZero, dictionary, rowsOffset, columnsOffset, valuesOffset);
+            putDictionary(channel, buffer, dictionary);
+            pad(channel, buffer, rowsOffset);
+
+            for(long i = 0; i < nonZero; i++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(matrix.getRow(i));
+                if((i & PROGRESS_MASK) == 0) pb.stepTo(i);
+            }
+            pad(channel, buffer, columnsOffset);
+
+            for(long i = 0; i < nonZero; i++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(matrix.getColumn(i));
+                if((i & PROGRESS_MASK) == 0) pb.stepTo(nonZero + i);
+            }
+            pad(channel, buffer, valuesOffset);
+
+            for(long i = 0; i < nonZero; i++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putFloat(matrix.getValue(i));
+                if((i & PROGRESS_MASK) == 0) pb.stepTo(2 * nonZero + i);
+            }
+            flush(channel, buffer);
+            pb.stepTo(3 * nonZero);
+        }
+    }
+
+    /**
+     * Sorts the matrix into compressed sparse rows and writes it in blocks of whole rows, which are encoded in parallel.
+     * The header is written last, because the offset of the block table is only known after encoding.
+     */
+    private void writeCompressed(FileChannel channel) throws IOException {
+
+        final SparseMatrix matrix = bca.getSparseMatrix();
+        final long nonZero = matrix.getNonZero();
+
+        // Rows are bookmarks, which are not bounded by the number of rows of the matrix
+        int rowRange = matrix.rows();
+        for(long i = 0; i < nonZero; i++) {
+            rowRange = Math.max(rowRange, matrix.getRow(i) + 1);
+        }
+
+        final long[] rowStart = new long[rowRange + 1];
+        for(long i = 0; i < nonZero; i++) {
+            rowStart[matrix.getRow(i) + 1]++;
+        }
+        for(int r = 0; r < rowRange; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+
+        final BigIntArray columns = new BigIntArray(nonZero);
+        final BigFloatArray values = new BigFloatArray(nonZero);
+        columns.resize(nonZero);
+        values.resize(nonZero);
+        final long[] cursor = Arrays.copyOf(rowStart, rowRange);
+        for(long i = 0; i < nonZero; i++) {
+            final long position = cursor[matrix.getRow(i)]++;
+            columns.set(position, matrix.getColumn(i));
+            values.set(position, matrix.getValue(i));
+        }
+
+        // Split the rows in blocks of roughly BLOCK_NON_ZERO values
+        final List<int[]> blocks = new ArrayList<>();
+        for(int firstRow = 0; firstRow < rowRange; ) {
+            int lastRow = firstRow + 1;
+            while(lastRow < rowRange && rowStart[lastRow + 1] - rowStart[firstRow] <= BLOCK_NON_ZERO) lastRow++;
+            blocks.add(new int[] {firstRow, lastRow - firstRow});
+            firstRow = lastRow;
+        }
+
+        final Dictionary dictionary = Dictionary.of(bca);
+        final long dataOffset = align(dictionary.end());
+        final int maxPending = 2 * config.getThreads();
+        final ExecutorService es = Executors.newWorkStealingPool(config.getThreads());
+        final long[] blockOffsets = new long[blocks.size()];
+        float maxError = 0;
+        long subnormal = 0;
+
+        try (ProgressBar pb = Progress.progressBar("Writing BCA", nonZero, "values")) {
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            // Placeholder, rewritten when the block table offset is known
+            putHeader(buffer, VERSION_COMPRESSED, nonZero, dictionary, 0, 0, 0);
+            putDictionary(channel, buffer, dictionary);
+            pad(channel, buffer, dataOffset);
+            flush(channel, buffer);
+
+            // Blocks are encoded in parallel, but written in order. At most maxPending blocks are kept in memory.
+            final Deque<Future<EncodedBlock>> pending = new ArrayDeque<>();
+            int next = 0;
+            for(int b = 0; b < blocks.size(); b++) {
+                while(next < blocks.size() && pending.size() < maxPending) {
+                    final int[] block = blocks.get(next++);
+                    pending.add(es.submit(() -> encodeBlock(block[0], block[1], rowStart, columns, values)));
+                }
+                final EncodedBlock block = pending.poll().get();
+                blockOffsets[b] = channel.position();
+                final ByteBuffer data = ByteBuffer.wrap(block.bytes(), 0, block.length());
+                while(data.hasRemaining()) {
+                    channel.write(data);
+                }
+                maxError = Math.max(maxError, block.maxError());
+                subnormal += block.subnormal();
+                pb.stepBy(block.nonZero());
+            }
+
+            final long blockTableOffset = channel.position();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for(int b = 0; b < blocks.size(); b++) {
+                final int[] block = blocks.get(b);
+                ensureRemaining(channel, buffer, BLOCK_ENTRY_SIZE);
+                buffer.putLong(blockOffsets[b]);
+                buffer.putLong(rowStart[block[0]]);
+                buffer.putInt(block[0]);
+                buffer.putInt(block[1]);
+            }
+            flush(channel, buffer);
+            final long fileSize = channel.position();
+
+            putHeader(buffer, VERSION_COMPRESSED, nonZero, dictionary, dataOffset, blockTableOffset, blocks.size());
+            buffer.flip();
+            long position = 0;
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            logger.info("Compressed " + nonZero + " non-zero values in " + blocks.size() + " blocks to "
+                    + (blockTableOffset - dataOffset) + " bytes, " + String.format("%.2f", (blockTableOffset - dataOffset) / (double) Math.max(1, nonZero))
+                    + " bytes per value instead of 12 (ratio " + String.format("%.2f", 12d * nonZero / Math.max(1, fileSize - dataOffset))
+                    + "), maximum relative error of the values " + String.format("%.2E", maxError));
+            if(subnormal > 0) {
+                logger.warn(subnormal + " values are smaller than " + Float16.MIN_NORMAL + " and lost precision");
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing BCA");
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof IOException ioe) throw ioe;
+            }
+            throw new IOException("Could not encode BCA", e.getCause());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    private record EncodedBlock(byte[] bytes, int length, long nonZero, float maxError, long subnormal) { }
+
+    /**
+     * Encodes the rows [firstRow, firstRow + rowCount). Every row is its number of values as a varint, followed by
+     * the varint deltas of its sorted columns and the little-endian half-precision values.
+     */
+    private static EncodedBlock encodeBlock(int firstRow, int rowCount, long[] rowStart, BigIntArray columns, BigFloatArray values) throws IOException {
+
+        final long nonZero = rowStart[firstRow + rowCount] - rowStart[firstRow];
+        final byte[] bytes = new byte[(int) (5 * rowCount + 7 * nonZero)];
+        int pos = 0;
+        long[] row = new long[16];
+        float maxError = 0;
+        long subnormal = 0;
 
-            // Write header
-            writer.write(HEADER.getBytes(StandardCharsets.UTF_8));
+        for(int r = firstRow; r < firstRow + rowCount; r++) {
+            final long from = rowStart[r];
+            final int length = (int) (rowStart[r + 1] - from);
+
+            // Sort the row by column, the bits of the value travel along in the lower half
+            if(row.length < length) row = new long[length];
+            for(int i = 0; i < length; i++) {
+                row[i] = ((long) columns.get(from + i) << 32) | (Float.floatToRawIntBits(values.get(from + i)) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(row, 0, length);
+
+            pos = putVarInt(bytes, pos, length);
+            int previous = 0;
+            for(int i = 0; i < length; i++) {
+                final int column = (int) (row[i] >>> 32);
+                pos = putVarInt(bytes, pos, column - previous);
+                previous = column;
+            }
+            for(int i = 0; i < length; i++) {
+                final float value = Float.intBitsToFloat((int) row[i]);
+                short half = Float16.fromFloat(value);
+                if((half & 0x7FFF) == 0x7C00 && !Float.isInfinite(value)) {
+                    throw new IOException("Value " + value + " cannot be stored in half precision, use the columnar encoding");
+                }
+                // Never round a co-occurrence to zero, that would be a missing entry to GloVe
+                if((half & 0x7FFF) == 0 && value != 0) half = (short) ((half & 0x8000) | 1);
+                if(Math.abs(value) >= Float16.MIN_NORMAL) {
+                    maxError = Math.max(maxError, Math.abs(Float16.toFloat(half) - value) / Math.abs(value));
+                } else if(value != 0) subnormal++;
+                bytes[pos++] = (byte) half;
+                bytes[pos++] = (byte) (half >>> 8);
+            }
+        }
+        return new EncodedBlock(bytes, pos, nonZero, maxError, subnormal);
+    }
+
+    private static int putVarInt(byte[] bytes, int pos, int value) {
+        while((value & ~0x7F) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
 
-            final int focusVectors = bca.nrOfFocusVectors();
+    /**
+     * The UTF-8 keys of the focus nodes and the offsets of the dictionary sections, which precede the matrix
+     */
+    private record Dictionary(byte[][] keys, long keyOffsetsOffset, long keysOffset, long end) {
 
-            writer.writeInt(focusVectors);
-            for(int i = 0; i < focusVectors; i++) {
-                writer.writeInt(bca.focusIndex2Context(i));
-                final String key = bca.getKey(i);
-                writer.writeInt(key.length());
-                writer.writeBytes(bca.getKey(i));
+        static Dictionary of(BookmarkColoring bca) {
+            final byte[][] keys = new byte[bca.nrOfFocusVectors()][];
+            long keysLength = 0;
+            for(int i = 0; i < keys.length; i++) {
+                keys[i] = bca.getKey(i).getBytes(StandardCharsets.UTF_8);
+                keysLength += keys[i].length;
             }
+            final long keyOffsetsOffset = align(HEADER_SIZE + 4L * keys.length);
+            final long keysOffset = keyOffsetsOffset + 8L * (keys.length + 1);
+            return new Dictionary(keys, keyOffsetsOffset, keysOffset, keysOffset + keysLength);
+        }
+    }
+
+    /**
+     * Puts the header at the start of the (cleared) buffer. The meaning of the last three offsets depends on the version.
+     */
+    private void putHeader(ByteBuffer buffer, int version, long nonZero, Dictionary dictionary,
+                           long offset1, long offset2, long offset3) {
+
+        final SparseMatrix matrix = bca.getSparseMatrix();
+        buffer.clear();
 
-            writer.writeInt(bca.nrOfContextVectors());
-            writer.writeInt(bca.coOccurrenceCount());
-            writer.writeFloat(bca.max());
+        // The magic and version are big-endian, as in the older versions, everything after is little-endian
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.put(MAGIC.getBytes(StandardCharsets.UTF_8));
+        buffer.putInt(version);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-            RandomAccessSparseMatrix matrix = bca.getSparseMatrix();
+        buffer.putInt(bca.nrOfFocusVectors());
+        buffer.putInt(bca.nrOfContextVectors());
+        buffer.putInt(matrix.rows());
+        buffer.putInt(matrix.columns());
+        buffer.putFloat(bca.max());
+        buffer.putInt(0); // reserved
+        buffer.putLong(bca.coOccurrenceCount());
+        buffer.putLong(nonZero);
+        buffer.putLong(HEADER_SIZE);
+        buffer.putLong(dictionary.keyOffsetsOffset());
+        buffer.putLong(dictionary.keysOffset());
+        buffer.putLong(offset1);
+        buffer.putLong(offset2);
+        buffer.putLong(offset3);
+    }
+
+    private void putDictionary(FileChannel channel, ByteBuffer buffer, Dictionary dictionary) throws IOException {
 
-            // Write data
-            writer.writeInt(matrix.rows());
-            writer.writeInt(matrix.columns());
-            writer.writeInt(matrix.getNonZero());
+        final int focusVectors = bca.nrOfFocusVectors();
+        for(int i = 0; i < focusVectors; i++) {
+            ensureRemaining(channel, buffer, 4);
+            buffer.putInt(bca.focusIndex2Context(i));
+        }
+        pad(channel, buffer, dictionary.keyOffsetsOffset());
 
-            for(int i = 0; i < matrix.getNonZero(); i++) {
-                writer.writeInt(matrix.getRow(i));
-                writer.writeInt(matrix.getColumn(i));
-                writer.writeFloat(matrix.getValue(i));
+        long offset = 0;
+        for(int i = 0; i <= focusVectors; i++) {
+            ensureRemaining(channel, buffer, 8);
+            buffer.putLong(offset);
+            if(i < focusVectors) offset += dictionary.keys()[i].length;
+        }
+        for(byte[] key : dictionary.keys()) {
+            for(int written = 0; written < key.length; ) {
+                ensureRemaining(channel, buffer, 1);
+                final int length = Math.min(buffer.remaining(), key.length - written);
+                buffer.put(key, written, length);
+                written += length;
             }
         }
     }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Write zeroes until the file reaches the given offset
+     */
+    private static void pad(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        final long position = channel.position() + buffer.position();
+        for(long i = position; i < offset; i++) {
+            ensureRemaining(channel, buffer, 1);
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if(buffer.remaining() < bytes) flush(channel, buffer);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
 }
@@ -0,0 +1,154 @@
+package org.uu.nl.disembed.util.write;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.progress.Progress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write the embedding to a binary file that can be memory-mapped by the reader. All numbers are little-endian:
+ * <pre>
+ *     magic      12 bytes "DISEMBED_EMB"
+ *     version    int
+ *     flags      int, bit 0 is set when all vectors have unit length
+ *     size       int
+ *     dimension  int
+ *     reserved   int
+ *     vectors    long, file offset of the first vector
+ *     offsets    long[size + 1], offsets of the keys relative to the start of the key bytes
+ *     keys       UTF-8 bytes of all keys
+ *     padding    up to a multiple of {@link #ALIGNMENT} bytes
+ *     vectors    float[size * dimension]
+ * </pre>
+ */
+public record BinaryEmbeddingWriter(Embedding embedding, Configuration config) implements Writer {
+
+    public final static Logger logger = Logger.getLogger(BinaryEmbeddingWriter.class);
+
+    public static final String FILETYPE = ".emb";
+    public static final String OUTPUT_DIRECTORY = EmbeddingWriter.OUTPUT_DIRECTORY;
+
+    public static final String MAGIC = "DISEMBED_EMB";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 40;
+    public static final int ALIGNMENT = 64;
+    public static final int FLAG_NORMALIZED = 1;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    @Override
+    public void write() throws IOException {
+
+        final String fileName = EmbeddingWriter.baseFileName(config) + FILETYPE;
+        logger.info("Writing file: " + fileName);
+
+        Path outputFolder = Paths.get("").toAbsolutePath().resolve(OUTPUT_DIRECTORY);
+        Files.createDirectories(outputFolder);
+
+        final int size = embedding.getSize();
+        final int dimension = embedding.getDimension();
+        final String[] keys = embedding.getKeys();
+
+        final byte[][] keyBytes = new byte[size][];
+        long keysLength = 0;
+        for (int i = 0; i < size; i++) {
+            keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            keysLength += keyBytes[i].length;
+        }
+
+        final long keysOffset = HEADER_SIZE + 8L * (size + 1);
+        final long vectorsOffset = align(keysOffset + keysLength);
+
+        try (ProgressBar pb = Progress.progressBar("Writing to file", size, "vectors");
+             FileChannel channel = FileChannel.open(outputFolder.resolve(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            // The flags are only known after all vectors are written, the header is rewritten at the end
+            writeHeader(buffer, 0, size, dimension, vectorsOffset);
+
+            long offset = 0;
+            for (int i = 0; i <= size; i++) {
+                ensureRemaining(channel, buffer, 8);
+                buffer.putLong(offset);
+                if(i < size) offset += keyBytes[i].length;
+            }
+
+            for (byte[] key : keyBytes) {
+                int written = 0;
+                while(written < key.length) {
+                    ensureRemaining(channel, buffer, 1);
+                    final int length = Math.min(buffer.remaining(), key.length - written);
+                    buffer.put(key, written, length);
+                    written += length;
+                }
+            }
+
+            for (long i = keysOffset + keysLength; i < vectorsOffset; i++) {
+                ensureRemaining(channel, buffer, 1);
+                buffer.put((byte) 0);
+            }
+
+            boolean normalized = true;
+            final float[] vector = new float[dimension];
+            for (int i = 0; i < size; i++) {
+                embedding.copyVector(i, vector);
+                float squaredSum = 0;
+                for (int d = 0; d < dimension; d++) {
+                    ensureRemaining(channel, buffer, 4);
+                    buffer.putFloat(vector[d]);
+                    squaredSum += vector[d] * vector[d];
+                }
+                normalized &= Math.abs(squaredSum - 1) < 1e-3;
+                pb.step();
+            }
+            flush(channel, buffer);
+
+            writeHeader(buffer, normalized ? FLAG_NORMALIZED : 0, size, dimension, vectorsOffset);
+            buffer.flip();
+            long position = 0;
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int flags, int size, int dimension, long vectorsOffset) {
+        buffer.clear();
+        buffer.put(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(VERSION);
+        buffer.putInt(flags);
+        buffer.putInt(size);
+        buffer.putInt(dimension);
+        buffer.putInt(0);
+        buffer.putLong(vectorsOffset);
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if(buffer.remaining() < bytes) flush(channel, buffer);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
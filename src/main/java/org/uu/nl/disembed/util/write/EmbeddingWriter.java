@@ -3,20 +3,32 @@ package org.uu.nl.disembed.util.write;
 import me.tongfei.progressbar.ProgressBar;
 import org.apache.log4j.Logger;
 import org.uu.nl.disembed.embedding.opt.Embedding;
-import org.uu.nl.disembed.embedding.opt.Optimizer;
 import org.uu.nl.disembed.util.config.Configuration;
 import org.uu.nl.disembed.util.config.EmbeddingConfiguration;
 import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
 import org.uu.nl.disembed.util.progress.Progress;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Iterator;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Jurian Baas
@@ -30,6 +42,14 @@ public abstract class EmbeddingWriter implements org.uu.nl.disembed.util.write.W
 	public static final String NEWLINE = "\n";
 	public static final String FILETYPE = ".tsv";
 	public static final String OUTPUT_DIRECTORY = "embeddings";
+	public static final String GZIP_FILETYPE = ".gz";
+	private static final byte[] DELIMITER_BYTES = DELIMITER.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NEWLINE_BYTES = NEWLINE.getBytes(StandardCharsets.UTF_8);
+	/**
+	 * Number of vectors formatted by a single task
+	 */
+	private static final int CHUNK_SIZE = 4096;
+	private static final int GZIP_BUFFER_SIZE = 1 << 16;
 	protected final String fileName;
 	protected final Configuration config;
 	protected final EmbeddingConfiguration embeddingConfig;
@@ -43,12 +63,7 @@ public abstract class EmbeddingWriter implements org.uu.nl.disembed.util.write.W
 		this.outputConfig = config.getIntermediateOutput();
 		this.embedding = embedding;
 
-		String outFileName = outputConfig.getEmbedding().getFilename();
-		if(outFileName == null || outFileName.isEmpty()) {
-			outFileName = createFileName(embeddingConfig);
-		}
-
-		this.fileName = outFileName + FILETYPE;
+		this.fileName = baseFileName(config) + FILETYPE + (outputConfig.getEmbedding().isGzip() ? GZIP_FILETYPE : "");
 
 	}
 
@@ -60,38 +75,113 @@ public abstract class EmbeddingWriter implements org.uu.nl.disembed.util.write.W
 		Files.createDirectories(outputFolder);
 
 		final int vocabSize = embedding.getSize();
-		final int dimension = embeddingConfig.getDim();
-		final String[] out = new String[dimension];
-		final Iterator<Optimizer.EmbeddedEntity> entityIterator = embedding.iterator();
+		final int nChunks = (vocabSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int maxPending = 2 * config.getThreads();
+		final ExecutorService es = Executors.newWorkStealingPool(config.getThreads());
 
 		try (ProgressBar pb = Progress.progressBar("Writing to file", vocabSize, "vectors");
-			 Writer w = new BufferedWriter(new FileWriter(outputFolder.resolve(fileName).toFile()))) {
-			customWrite(w, embedding);
-			writeLines(entityIterator, out, pb, w);
+			 WritableByteChannel out = openChannel(outputFolder.resolve(fileName))) {
+
+			final StringWriter header = new StringWriter();
+			customWrite(header, embedding);
+			final byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+			writeFully(out, headerBytes, headerBytes.length);
+
+			// Chunks are formatted in parallel, but written in order. At most maxPending chunks are kept in memory.
+			final Deque<Future<FormattedChunk>> pending = new ArrayDeque<>();
+			int next = 0;
+			while (next < nChunks || !pending.isEmpty()) {
+				while (next < nChunks && pending.size() < maxPending) {
+					final int from = next * CHUNK_SIZE;
+					final int to = Math.min(vocabSize, from + CHUNK_SIZE);
+					pending.add(es.submit(() -> formatChunk(from, to)));
+					next++;
+				}
+				final FormattedChunk chunk = pending.poll().get();
+				writeFully(out, chunk.bytes(), chunk.length());
+				pb.stepBy(chunk.vectors());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing embedding");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not format embedding", e.getCause());
+		} finally {
+			es.shutdownNow();
 		}
 	}
 
 	public abstract void customWrite(Writer w, Embedding e) throws IOException ;
 
-	protected void writeLines(Iterator<Optimizer.EmbeddedEntity> entityIterator, String[] out, ProgressBar pb, Writer w) throws IOException {
-		while(entityIterator.hasNext()) {
-			Optimizer.EmbeddedEntity entity = entityIterator.next();
+	private WritableByteChannel openChannel(Path file) throws IOException {
+		final FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		if(!outputConfig.getEmbedding().isGzip()) return channel;
+		return Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), GZIP_BUFFER_SIZE));
+	}
+
+	private static void writeFully(WritableByteChannel out, byte[] bytes, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		while(buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Formats the lines of the vectors in [from, to) into a single byte array
+	 */
+	private FormattedChunk formatChunk(int from, int to) {
 
-			for (int d = 0; d < out.length; d++)
-				out[d] = String.format("%11.6E", entity.vector()[d]);
+		final int dimension = embedding.getDimension();
+		final float[] vector = new float[dimension];
+		final int maxVectorLength = dimension * (ScientificFormat.MAX_LENGTH + DELIMITER_BYTES.length) + NEWLINE_BYTES.length;
 
-			w.write(entity.key()
+		byte[] bytes = new byte[(to - from) * (maxVectorLength + 64)];
+		int pos = 0;
+
+		for (int i = from; i < to; i++) {
+
+			final byte[] key = embedding.getKeys()[i]
 					.replace("\n", "")
 					.replace("\r", "")
 					.replace("	", "")
-					+ DELIMITER
-					+ String.join(DELIMITER, out) + NEWLINE
-			);
-			pb.step();
+					.getBytes(StandardCharsets.UTF_8);
+
+			if(bytes.length - pos < key.length + maxVectorLength) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + key.length + maxVectorLength));
+			}
+
+			System.arraycopy(key, 0, bytes, pos, key.length);
+			pos += key.length;
+
+			embedding.copyVector(i, vector);
+			for (int d = 0; d < dimension; d++) {
+				System.arraycopy(DELIMITER_BYTES, 0, bytes, pos, DELIMITER_BYTES.length);
+				pos += DELIMITER_BYTES.length;
+				pos = ScientificFormat.format(vector[d], bytes, pos);
+			}
+			System.arraycopy(NEWLINE_BYTES, 0, bytes, pos, NEWLINE_BYTES.length);
+			pos += NEWLINE_BYTES.length;
+		}
+
+		return new FormattedChunk(bytes, pos, to - from);
+	}
+
+	private record FormattedChunk(byte[] bytes, int length, int vectors) { }
+
+	/**
+	 * @return The configured output file name for the embedding, or one derived from the embedding settings
+	 */
+	public static String baseFileName(Configuration config) {
+		IntermediateOutputConfiguration outputConfig = config.getIntermediateOutput();
+		if(outputConfig != null && outputConfig.getEmbedding() != null) {
+			String outFileName = outputConfig.getEmbedding().getFilename();
+			if(outFileName != null && !outFileName.isEmpty()) return outFileName;
 		}
+		return createFileName(config.getEmbedding());
 	}
 
-	private String createFileName(EmbeddingConfiguration config) {
+	private static String createFileName(EmbeddingConfiguration config) {
 		String outFileName = config.getGraphFile().getName().toLowerCase();
 		if(outFileName.contains(".")) {
 			outFileName = outFileName.substring(0, outFileName.lastIndexOf("."));
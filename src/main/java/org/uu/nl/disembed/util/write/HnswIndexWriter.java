@@ -1,22 +1,50 @@
 package org.uu.nl.disembed.util.write;
 
-import com.github.jelmerk.knn.hnsw.HnswIndex;
 import org.apache.log4j.Logger;
-import org.uu.nl.disembed.embedding.opt.Optimizer;
+import org.uu.nl.disembed.clustering.HnswGraph;
+import org.uu.nl.disembed.util.array.BigLongBuffer;
 import org.uu.nl.disembed.util.config.Configuration;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
-public record HnswIndexWriter(
-        HnswIndex<String, float[], Optimizer.EmbeddedEntity, Float> index,
-        Configuration config) implements Writer {
+/**
+ * Writes an {@link HnswGraph} as a little-endian binary file that can be memory-mapped. The header holds the magic,
+ * the version, the number of entities, m, ef, ef construction, the entry point and the number of levels, followed by
+ * the number of nodes and links of each level. Then for each level follow the sorted ids of its nodes (not for level
+ * 0, which holds all entities), the offsets of the links of each node, and the links. The vectors are not written,
+ * they are read from the embedding. The number of links of a level and the offsets are longs, so a level can hold
+ * more than 2^31 links. Since version 2 the keys of the entities of the nodes follow as length-prefixed UTF-8 strings,
+ * so the index can be matched with an embedding of which the entities are in a different order.
+ */
+public record HnswIndexWriter(HnswGraph graph, Configuration config) implements Writer {
 
     public final static Logger logger = Logger.getLogger(HnswIndexWriter.class);
     public static final String OUTPUT_DIRECTORY = "ann";
-    public static final String FILETYPE = ".index";
+    public static final String FILETYPE = ".hnsw";
+    /**
+     * The file type of the serialized hnswlib indexes of earlier versions
+     */
+    public static final String LEGACY_FILETYPE = ".index";
+
+    public static final String MAGIC = "DISEMBED_HNSW";
+    public static final int VERSION = 2;
+    /**
+     * The magic padded to 16 bytes, followed by 7 integers and whether the keys are included
+     */
+    public static final int HEADER_SIZE = 48;
+    public static final int LEVEL_ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+
+    private static final int BUFFER_SIZE = 1 << 20;
 
     @Override
     public void write() throws IOException {
@@ -25,7 +53,86 @@ public record HnswIndexWriter(
         Files.createDirectories(outputFolder);
 
         final String fileName = config.getIntermediateOutput().getHnsw().getFilename() + FILETYPE;
+        final Path file = outputFolder.resolve(fileName);
+        // The graph may be memory-mapped from the output file, so write to a temporary file and move it in place
+        final Path temp = outputFolder.resolve(fileName + ".tmp");
+
+        try {
+            write(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void write(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC.getBytes(StandardCharsets.UTF_8));
+            buffer.position(16);
+            buffer.putInt(VERSION);
+            buffer.putInt(graph.size());
+            buffer.putInt(graph.getM());
+            buffer.putInt(graph.getEf());
+            buffer.putInt(graph.getEfConstruction());
+            buffer.putInt(graph.getEntryPoint());
+            buffer.putInt(graph.levels());
+            buffer.putInt(graph.keys() == null ? 0 : 1);
+
+            for (int level = 0; level < graph.levels(); level++) {
+                if(buffer.remaining() < LEVEL_ENTRY_SIZE) flush(channel, buffer);
+                buffer.putInt((int) (graph.offsets(level).size() - 1));
+                buffer.putLong(graph.links(level).size());
+            }
+
+            for (int level = 0; level < graph.levels(); level++) {
+                if(level > 0) put(channel, buffer, graph.nodes(level));
+                put(channel, buffer, graph.offsets(level));
+                for (int c = 0; c < graph.links(level).nrOfChunks(); c++) {
+                    put(channel, buffer, graph.links(level).getChunk(c));
+                }
+            }
+
+            if(graph.keys() != null) {
+                for (String key : graph.keys()) {
+                    final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                    if(buffer.remaining() < Integer.BYTES) flush(channel, buffer);
+                    buffer.putInt(bytes.length);
+                    for (int offset = 0; offset < bytes.length; ) {
+                        if(!buffer.hasRemaining()) flush(channel, buffer);
+                        final int length = Math.min(buffer.remaining(), bytes.length - offset);
+                        buffer.put(bytes, offset, length);
+                        offset += length;
+                    }
+                }
+            }
+            flush(channel, buffer);
+
+            logger.info("Wrote HNSW index of " + graph.size() + " entities and " + graph.levels() + " levels, "
+                    + (channel.size() >> 20) + " MB");
+        }
+    }
+
+    private static void put(FileChannel channel, ByteBuffer buffer, IntBuffer values) throws IOException {
+        for (int i = 0; i < values.limit(); i++) {
+            if(buffer.remaining() < Integer.BYTES) flush(channel, buffer);
+            buffer.putInt(values.get(i));
+        }
+    }
+
+    private static void put(FileChannel channel, ByteBuffer buffer, BigLongBuffer values) throws IOException {
+        for (long i = 0; i < values.size(); i++) {
+            if(buffer.remaining() < Long.BYTES) flush(channel, buffer);
+            buffer.putLong(values.get(i));
+        }
+    }
 
-        index.save(outputFolder.resolve(fileName));
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
     }
 }
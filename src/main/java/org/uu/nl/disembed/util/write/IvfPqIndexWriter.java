@@ -0,0 +1,87 @@
+package org.uu.nl.disembed.util.write;
+
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.clustering.IvfPqIndex;
+import org.uu.nl.disembed.util.array.BigByteBuffer;
+import org.uu.nl.disembed.util.config.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an {@link IvfPqIndex} as a little-endian binary file: the magic and version, the dimension, the number of
+ * lists, subspaces, codebook entries and vectors, followed by the centroids, the codebooks, the list offsets, the
+ * entity ids and the codes.
+ */
+public record IvfPqIndexWriter(IvfPqIndex index, Configuration config) implements Writer {
+
+    public final static Logger logger = Logger.getLogger(IvfPqIndexWriter.class);
+    public static final String OUTPUT_DIRECTORY = HnswIndexWriter.OUTPUT_DIRECTORY;
+    public static final String FILETYPE = ".ivfpq";
+
+    public static final String MAGIC = "DISEMBED_IVFPQ";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = MAGIC.length() + 6 * 4;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    @Override
+    public void write() throws IOException {
+
+        Path outputFolder = Paths.get("").toAbsolutePath().resolve(OUTPUT_DIRECTORY);
+        Files.createDirectories(outputFolder);
+
+        final String fileName = config.getIntermediateOutput().getIvfpq().getFilename() + FILETYPE;
+
+        try (FileChannel channel = FileChannel.open(outputFolder.resolve(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC.getBytes(StandardCharsets.UTF_8));
+            buffer.putInt(VERSION);
+            buffer.putInt(index.dimension());
+            buffer.putInt(index.lists());
+            buffer.putInt(index.subspaces());
+            buffer.putInt(index.codebookSize());
+            buffer.putInt(index.size());
+
+            for (float f : index.centroids()) {
+                if(buffer.remaining() < Float.BYTES) flush(channel, buffer);
+                buffer.putFloat(f);
+            }
+            for (float f : index.codebooks()) {
+                if(buffer.remaining() < Float.BYTES) flush(channel, buffer);
+                buffer.putFloat(f);
+            }
+            for (int i : index.listStart()) {
+                if(buffer.remaining() < Integer.BYTES) flush(channel, buffer);
+                buffer.putInt(i);
+            }
+            for (int i : index.ids()) {
+                if(buffer.remaining() < Integer.BYTES) flush(channel, buffer);
+                buffer.putInt(i);
+            }
+            flush(channel, buffer);
+            final BigByteBuffer codes = index.codes();
+            for (int c = 0; c < codes.nrOfChunks(); c++) {
+                final ByteBuffer chunk = codes.getChunk(c).duplicate().clear();
+                while (chunk.hasRemaining()) channel.write(chunk);
+            }
+
+            logger.info("Wrote IVF-PQ index of " + index.size() + " vectors, " + (channel.size() >> 20) + " MB");
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,103 @@
+package org.uu.nl.disembed.util.write;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats floats exactly like {@code String.format("%11.6E", value)}, but directly into a byte array and without
+ * creating any objects. Values that lie too close to a rounding boundary to decide with double arithmetic, or a
+ * default locale that does not use ASCII digits and a period, are delegated to {@link String#format}.
+ */
+public final class ScientificFormat {
+
+	public static final int WIDTH = 11;
+	public static final int PRECISION = 6;
+	public static final String PATTERN = "%" + WIDTH + "." + PRECISION + "E";
+
+	/**
+	 * Upper bound on the number of bytes written for a single value, also for non-ASCII locales
+	 */
+	public static final int MAX_LENGTH = 64;
+
+	private static final int MIN_EXPONENT = -64, MAX_EXPONENT = 64;
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXPONENT - MIN_EXPONENT + 1];
+	private static final double TIE_MARGIN = 1e-6;
+	private static final boolean ASCII_LOCALE;
+
+	static {
+		for (int i = MIN_EXPONENT; i <= MAX_EXPONENT; i++) {
+			POWERS_OF_TEN[i - MIN_EXPONENT] = Double.parseDouble("1e" + i);
+		}
+		final DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		ASCII_LOCALE = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+	}
+
+	private ScientificFormat() {}
+
+	/**
+	 * @return The position in dst after the formatted value
+	 */
+	public static int format(float value, byte[] dst, int pos) {
+
+		if(!ASCII_LOCALE || !Float.isFinite(value)) return slowFormat(value, dst, pos);
+
+		// The formatter promotes floats to doubles before rounding, so we do the same
+		final double abs = Math.abs((double) value);
+		final boolean negative = Float.compare(value, 0f) < 0;
+
+		long mantissa;
+		int exponent;
+
+		if(abs == 0) {
+			mantissa = 0;
+			exponent = 0;
+		} else {
+			exponent = (int) Math.floor(Math.log10(abs));
+			double scaled = scale(abs, exponent);
+			// log10 can be off by one near powers of ten
+			if(scaled < 1e6) scaled = scale(abs, --exponent);
+			else if(scaled >= 1e7) scaled = scale(abs, ++exponent);
+
+			final double fraction = scaled - Math.floor(scaled);
+			if(Math.abs(fraction - 0.5) < TIE_MARGIN) return slowFormat(value, dst, pos);
+
+			mantissa = (long) Math.floor(scaled + 0.5);
+			if(mantissa == 10_000_000) {
+				mantissa = 1_000_000;
+				exponent++;
+			}
+		}
+
+		// Finite values are at least 12 characters long, so the field width never adds padding
+		if(negative) dst[pos++] = '-';
+
+		dst[pos++] = (byte) ('0' + mantissa / 1_000_000);
+		dst[pos++] = '.';
+		for (long div = 100_000; div > 0; div /= 10) {
+			dst[pos++] = (byte) ('0' + (mantissa / div) % 10);
+		}
+		dst[pos++] = 'E';
+		dst[pos++] = (byte) (exponent < 0 ? '-' : '+');
+		final int e = Math.abs(exponent);
+		if(e >= 100) dst[pos++] = (byte) ('0' + e / 100);
+		dst[pos++] = (byte) ('0' + (e / 10) % 10);
+		dst[pos++] = (byte) ('0' + e % 10);
+		return pos;
+	}
+
+	/**
+	 * @return abs / 10^(exponent - PRECISION), which is in [1e6, 1e7) if the exponent is correct
+	 */
+	private static double scale(double abs, int exponent) {
+		final int shift = PRECISION - exponent;
+		if(shift >= 0) return abs * POWERS_OF_TEN[shift - MIN_EXPONENT];
+		else return abs / POWERS_OF_TEN[-shift - MIN_EXPONENT];
+	}
+
+	private static int slowFormat(float value, byte[] dst, int pos) {
+		final byte[] bytes = String.format(PATTERN, value).getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, dst, pos, bytes.length);
+		return pos + bytes.length;
+	}
+}
@@ -0,0 +1,86 @@
+package org.uu.nl.disembed.util.write;
+
+import org.apache.log4j.Logger;
+import org.uu.nl.disembed.embedding.opt.EpochStatistics;
+import org.uu.nl.disembed.util.config.Configuration;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the per-epoch training telemetry as a comma-separated file next to the embedding
+ */
+public record TrainingStatisticsWriter(Configuration config, List<EpochStatistics> statistics) implements Writer {
+
+    public final static Logger logger = Logger.getLogger(TrainingStatisticsWriter.class);
+    public static final String DELIMITER = ",";
+    public static final String NEWLINE = "\n";
+    public static final String FILETYPE = ".stats.csv";
+    public static final String OUTPUT_DIRECTORY = EmbeddingWriter.OUTPUT_DIRECTORY;
+
+    private static final String[] HEADER = {
+            "epoch", "cost", "cost_diff", "epoch_ms", "shuffle_ms", "updates_per_sec",
+            "thread_ms_min", "thread_ms_mean", "thread_ms_max", "thread_imbalance",
+            "gradient_norm_mean", "gradient_norm_std", "gradient_norm_max", "non_finite_rows", "thread_ms"
+    };
+
+    @Override
+    public void write() throws IOException {
+
+        if(statistics.isEmpty()) return;
+
+        final String fileName = EmbeddingWriter.baseFileName(config) + FILETYPE;
+        logger.info("Writing file: " + fileName);
+
+        Path outputFolder = Paths.get("").toAbsolutePath().resolve(OUTPUT_DIRECTORY);
+        Files.createDirectories(outputFolder);
+
+        try (java.io.Writer w = new BufferedWriter(new FileWriter(outputFolder.resolve(fileName).toFile()))) {
+
+            w.write(String.join(DELIMITER, HEADER));
+            w.write(NEWLINE);
+
+            for(EpochStatistics s : statistics) {
+                w.write(String.join(DELIMITER,
+                        Integer.toString(s.epoch()),
+                        format(s.cost()),
+                        format(s.costDiff()),
+                        format(s.epochMillis()),
+                        format(s.shuffleMillis()),
+                        format(s.updatesPerSecond()),
+                        format(s.minThreadMillis()),
+                        format(s.meanThreadMillis()),
+                        format(s.maxThreadMillis()),
+                        format(s.threadImbalance()),
+                        format(s.gradientMean()),
+                        format(s.gradientStd()),
+                        format(s.gradientMax()),
+                        Long.toString(s.nonFiniteRows()),
+                        threadMillis(s.threadMillis())
+                ));
+                w.write(NEWLINE);
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    /**
+     * Per-thread times are joined with a semicolon so they fit in a single CSV column
+     */
+    private static String threadMillis(double[] millis) {
+        final String[] out = new String[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            out[i] = format(millis[i]);
+        }
+        return String.join(";", out);
+    }
+}
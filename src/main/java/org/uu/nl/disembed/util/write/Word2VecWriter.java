@@ -24,7 +24,7 @@ public class Word2VecWriter extends EmbeddingWriter {
     @Override
     public void customWrite(Writer w, Embedding embedding) throws IOException {
         w.write(config.getEmbedding().toString());
-        w.write(embedding.getSize() + DELIMITER + embeddingConfig.getDim());
+        w.write(embedding.getSize() + DELIMITER + embeddingConfig.getDim() + NEWLINE);
     }
 
 
@@ -0,0 +1,132 @@
+package org.uu.nl.disembed.clustering;
+
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.ClusterConfiguration;
+import org.uu.nl.disembed.util.config.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Components of every size class, each made of well separated groups of near duplicates, so every algorithm has to
+ * find exactly those groups
+ */
+public class ClusterSchedulerTest {
+
+    private static final int DIMENSION = 32;
+    private static final float THETA = 0.5f;
+    private static final float EPSILON = 1e-6f;
+
+    /**
+     * The group sizes of each component: tiny components that need no algorithm, a batch of tiny components,
+     * components for correlation clustering, for pivot clustering and for vote clustering
+     */
+    private static final int[][] GROUP_SIZES = {
+            {2}, {1, 1}, {1}, {3}, {2, 2, 2}, {4, 1, 5}, {10, 10, 10}, {20, 15, 25, 1}, {50, 40, 30}
+    };
+
+    @Test
+    public void clustersEveryComponent() {
+        final List<int[][]> expected = new ArrayList<>();
+        final Embedding embedding = embedding(expected);
+        final int[][] components = components(expected);
+
+        final int[][][] clusters = new ClusterScheduler(config(), null, embedding, THETA, EPSILON, null).cluster(components);
+        assertEquals(components.length, clusters.length);
+        for (int i = 0; i < components.length; i++) {
+            assertArrayEquals(expected.get(i), sorted(clusters[i]), "component " + i);
+        }
+    }
+
+    @Test
+    public void keepsFailedComponentsAsSingletons() {
+        final List<int[][]> expected = new ArrayList<>();
+        final Embedding embedding = embedding(expected);
+        final int n = embedding.getSize();
+        final int[][] components = Arrays.copyOf(components(expected), expected.size() + 2);
+        // Entities that are not in the embedding make the algorithms fail
+        components[expected.size()] = new int[] {n, n + 1, n + 2, n + 3};
+        components[expected.size() + 1] = new int[] {n + 4, n + 5, n + 6, n + 7, n + 8, n + 9, n + 10, n + 11, n + 12, n + 13, n + 14, n + 15};
+
+        final int[][][] clusters = new ClusterScheduler(config(), null, embedding, THETA, EPSILON, null).cluster(components);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), sorted(clusters[i]), "component " + i);
+        }
+        for (int i = expected.size(); i < components.length; i++) {
+            final int[][] singletons = new int[components[i].length][];
+            for (int j = 0; j < singletons.length; j++) {
+                singletons[j] = new int[] {components[i][j]};
+            }
+            assertArrayEquals(singletons, sorted(clusters[i]), "component " + i);
+        }
+    }
+
+    private static Configuration config() {
+        final ClusterConfiguration.Pivot pivot = new ClusterConfiguration.Pivot();
+        pivot.setMaxSize(70);
+        pivot.setSeconds(10);
+        final ClusterConfiguration clustering = new ClusterConfiguration();
+        clustering.setMaxCorrelationClusteringSize(10);
+        clustering.setPivot(pivot);
+
+        final Configuration config = new Configuration();
+        config.setThreads(4);
+        config.setClustering(clustering);
+        return config;
+    }
+
+    /**
+     * @param expected Receives the groups of each component, the entities of a group are near duplicates of a random
+     *                 direction, and the directions of different groups are far apart in this dimension
+     */
+    private static Embedding embedding(List<int[][]> expected) {
+        final Random random = new Random(1);
+        final List<float[]> vectors = new ArrayList<>();
+        for (int[] groupSizes : GROUP_SIZES) {
+            final int[][] groups = new int[groupSizes.length][];
+            for (int g = 0; g < groupSizes.length; g++) {
+                final float[] direction = new float[DIMENSION];
+                for (int d = 0; d < DIMENSION; d++) direction[d] = (float) random.nextGaussian();
+                groups[g] = new int[groupSizes[g]];
+                for (int j = 0; j < groupSizes[g]; j++) {
+                    final float[] vector = new float[DIMENSION];
+                    for (int d = 0; d < DIMENSION; d++) vector[d] = direction[d] + 0.05f * (float) random.nextGaussian();
+                    groups[g][j] = vectors.size();
+                    vectors.add(vector);
+                }
+            }
+            expected.add(sorted(groups));
+        }
+
+        final String[] keys = new String[vectors.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = "entity_" + i;
+        return new Embedding(keys, vectors.toArray(new float[0][]));
+    }
+
+    private static int[][] components(List<int[][]> groups) {
+        final int[][] components = new int[groups.size()][];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = Arrays.stream(groups.get(i)).flatMapToInt(Arrays::stream).sorted().toArray();
+        }
+        return components;
+    }
+
+    /**
+     * @return The clusters with their entities in ascending order, ordered by their smallest entity
+     */
+    private static int[][] sorted(int[][] clusters) {
+        final int[][] sorted = new int[clusters.length][];
+        for (int i = 0; i < clusters.length; i++) {
+            sorted[i] = clusters[i].clone();
+            Arrays.sort(sorted[i]);
+        }
+        Arrays.sort(sorted, Comparator.comparingInt(cluster -> cluster[0]));
+        return sorted;
+    }
+}
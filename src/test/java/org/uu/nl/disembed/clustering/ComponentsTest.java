@@ -0,0 +1,97 @@
+package org.uu.nl.disembed.clustering;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The concurrent union-find and the grouping of its sets, compared to a sequential union-find
+ */
+public class ComponentsTest {
+
+    @Test
+    public void unionFind() {
+        final Components components = new Components(6);
+        assertTrue(components.union(4, 2));
+        assertTrue(components.union(5, 4));
+        assertFalse(components.union(2, 5));
+        assertTrue(components.union(1, 3));
+
+        // The root of a set is its smallest vertex
+        assertEquals(0, components.find(0));
+        assertEquals(1, components.find(3));
+        assertEquals(2, components.find(4));
+        assertEquals(2, components.find(5));
+    }
+
+    @Test
+    public void group() {
+        final EdgeList edges = new EdgeList();
+        edges.add(7, 3, 0.9f);
+        edges.add(3, 5, 0.8f);
+        edges.add(8, 1, 0.7f);
+        edges.add(6, 6, 0.6f);
+
+        final Components.Groups groups = Components.of(10, edges, 2).group(2, 2);
+        assertEquals(2, groups.count());
+        assertEquals(2, groups.size(0));
+        assertEquals(3, groups.size(1));
+        assertArrayEquals(new int[][] {{1, 8}, {3, 5, 7}}, groups.toArrays());
+
+        // Singletons are included with a minimum size of 1
+        assertArrayEquals(new int[][] {{0}, {1, 8}, {2}, {3, 5, 7}, {4}, {6}, {9}},
+                Components.of(10, edges, 2).group(1, 2).toArrays());
+    }
+
+    /**
+     * Several chunks of edges and vertices are processed in parallel, the result must equal a sequential union-find
+     */
+    @Test
+    public void parallelConnectedComponents() {
+        final int n = 300_000;
+        final Random random = new Random(1);
+        final EdgeList edges = new EdgeList();
+        for (int i = 0; i < 200_000; i++) {
+            edges.add(random.nextInt(n), random.nextInt(n), 1);
+        }
+
+        final int[][] expected = sequentialComponents(n, edges);
+        assertArrayEquals(expected, Util.connectedComponents(n, edges, 4));
+        assertArrayEquals(expected, Util.connectedComponents(n, edges, 1));
+    }
+
+    private static int[][] sequentialComponents(int n, EdgeList edges) {
+        final int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
+        for (int e = 0; e < edges.size(); e++) {
+            final int a = root(parent, edges.a(e)), b = root(parent, edges.b(e));
+            parent[Math.max(a, b)] = Math.min(a, b);
+        }
+
+        final List<List<Integer>> sets = new ArrayList<>();
+        final int[] set = new int[n];
+        for (int v = 0; v < n; v++) {
+            final int r = root(parent, v);
+            if(r == v) {
+                set[v] = sets.size();
+                sets.add(new ArrayList<>());
+            }
+            sets.get(set[r]).add(v);
+        }
+
+        final List<int[]> components = new ArrayList<>();
+        for (List<Integer> s : sets) {
+            if(s.size() > 1) components.add(s.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return components.toArray(new int[0][]);
+    }
+
+    private static int root(int[] parent, int v) {
+        while (parent[v] != v) v = parent[v];
+        return v;
+    }
+}
@@ -0,0 +1,114 @@
+package org.uu.nl.disembed.clustering;
+
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The tiled similarities must be at the index of their pair, for components smaller and larger than a tile and
+ * large enough to be computed in parallel
+ */
+public class SimilarityKernelTest {
+
+    private static final int[] SIZES = {1, 2, 3, 63, 64, 65, 130, 700};
+    private static final int DIMENSION = 20;
+    private static final float TOLERANCE = 1e-5f;
+
+    @Test
+    public void combinationToIndex() {
+        final int n = 7;
+        assertEquals(n * (n - 1) / 2, Util.nEdges(n));
+        for (int i = 0, index = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++, index++) {
+                assertEquals(index, Util.combinationToIndex(i, j, n));
+                assertEquals(index, Util.combinationToIndex(j, i, n));
+            }
+        }
+    }
+
+    @Test
+    public void similarities() {
+        final Embedding embedding = embedding();
+        for (int size : SIZES) {
+            final int[] component = component(size);
+            final SimilarityKernel kernel = new SimilarityKernel(embedding, component);
+            for (int threads : new int[] {1, 3}) {
+                final float[] similarities = kernel.similarities(threads);
+                assertEquals(Util.nEdges(size), similarities.length);
+                for (int i = 0; i < size; i++) {
+                    for (int j = i + 1; j < size; j++) {
+                        assertEquals(embedding.cosineSimilarity(component[i], component[j]),
+                                similarities[Util.combinationToIndex(i, j, size)], TOLERANCE,
+                                "pair " + i + ", " + j + " of " + size + " with " + threads + " threads");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks of rows that do not line up with the tiles, only the entries before the diagonal are written
+     */
+    @Test
+    public void rows() {
+        final Embedding embedding = embedding();
+        for (int size : SIZES) {
+            final int[] component = component(size);
+            final SimilarityKernel kernel = new SimilarityKernel(embedding, component);
+            for (int threads : new int[] {1, 3}) {
+                final int blockSize = 97;
+                final float[][] rows = new float[blockSize][size];
+                for (int from = 0; from < size; from += blockSize) {
+                    final int to = Math.min(size, from + blockSize);
+                    for (float[] row : rows) Arrays.fill(row, Float.NaN);
+                    kernel.rows(from, to, rows, threads);
+                    for (int i = from; i < to; i++) {
+                        for (int j = 0; j < size; j++) {
+                            final float similarity = rows[i - from][j];
+                            if(j < i) {
+                                assertEquals(embedding.cosineSimilarity(component[i], component[j]), similarity, TOLERANCE,
+                                        "pair " + i + ", " + j + " of " + size + " with " + threads + " threads");
+                            } else {
+                                assertTrue(Float.isNaN(similarity), "pair " + i + ", " + j + " is not before the diagonal");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static Embedding embedding() {
+        final Random random = new Random(1);
+        final int size = 1000;
+        final String[] keys = new String[size];
+        final float[][] vectors = new float[size][DIMENSION];
+        for (int i = 0; i < size; i++) {
+            keys[i] = "entity_" + i;
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = (float) random.nextGaussian();
+            }
+        }
+        return new Embedding(keys, vectors);
+    }
+
+    /**
+     * @return Distinct entities in random order
+     */
+    private static int[] component(int size) {
+        final Random random = new Random(size);
+        final int[] entities = new int[1000];
+        for (int i = 0; i < entities.length; i++) entities[i] = i;
+        for (int i = entities.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = entities[i];
+            entities[i] = entities[j];
+            entities[j] = t;
+        }
+        return Arrays.copyOf(entities, size);
+    }
+}
@@ -0,0 +1,128 @@
+package org.uu.nl.disembed.util.read;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.embedding.bca.BookmarkColoring;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
+import org.uu.nl.disembed.util.sparse.RandomAccessSparseMatrix;
+import org.uu.nl.disembed.util.sparse.SparseMatrix;
+import org.uu.nl.disembed.util.write.BCAWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of the compressed (version 4) BCA format, read back both from the heap and memory-mapped
+ */
+public class BCAReaderTest {
+
+    private static final String FILENAME = "bca_reader_test";
+    private static final int FOCUS = 1000;
+    private static final int CONTEXT = 5000;
+
+    @BeforeEach
+    public void setRandom() {
+        Configuration.setThreadLocalRandom(1);
+    }
+
+    @AfterEach
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file().toPath());
+    }
+
+    @Test
+    public void compressedRoundTrip() throws IOException {
+        final BCAReader.SkeletonBCA skeleton = skeleton();
+        new BCAWriter(config(), new BookmarkColoring(skeleton, config())).write();
+
+        for (boolean mmap : new boolean[] {false, true}) {
+            assertSameBCA(skeleton, new BCAReader(2, mmap).load(file()));
+        }
+    }
+
+    /**
+     * The rows are reordered by the compressed format, so the values are compared by their row and column. Values
+     * are stored as half precision floats, which have 11 significant bits.
+     */
+    private static void assertSameBCA(BCAReader.SkeletonBCA expected, BCAReader.SkeletonBCA actual) {
+        assertEquals(expected.nrOfFocusNodes(), actual.nrOfFocusNodes());
+        assertEquals(expected.getNrOfContextNodes(), actual.getNrOfContextNodes());
+        assertEquals(expected.getMax(), actual.getMax(), 0f);
+        for (int i = 0; i < expected.nrOfFocusNodes(); i++) {
+            assertEquals(expected.bookmark(i), actual.bookmark(i));
+            assertEquals(expected.key(expected.bookmark(i)), actual.key(actual.bookmark(i)));
+        }
+
+        final SparseMatrix matrix = expected.getMatrix();
+        final Map<Long, Float> values = new HashMap<>();
+        for (long i = 0; i < matrix.getNonZero(); i++) {
+            values.put(((long) matrix.getRow(i) << 32) | matrix.getColumn(i), matrix.getValue(i));
+        }
+
+        final SparseMatrix read = actual.getMatrix();
+        assertEquals(matrix.getNonZero(), read.getNonZero());
+        assertEquals(matrix.rows(), read.rows());
+        long previous = -1;
+        for (long i = 0; i < read.getNonZero(); i++) {
+            final long cell = ((long) read.getRow(i) << 32) | read.getColumn(i);
+            assertTrue(cell > previous, "cells are sorted by row and column");
+            previous = cell;
+            final Float value = values.get(cell);
+            assertNotNull(value, "cell " + read.getRow(i) + ", " + read.getColumn(i));
+            assertEquals(value, read.getValue(i), value * 1e-3f);
+        }
+    }
+
+    private static BCAReader.SkeletonBCA skeleton() {
+        final Random random = new Random(1);
+        final BCAReader.SkeletonBCA skeleton = new BCAReader.SkeletonBCA(FOCUS);
+        for (int i = 0; i < FOCUS; i++) {
+            skeleton.add(i, i * 5 + 3, i % 7 == 0 ? "http://example.org/entity/" + i + "#é" : "entity_" + i);
+        }
+
+        // Every focus node co-occurs with a random, distinct subset of the context nodes
+        final int perRow = 40;
+        final RandomAccessSparseMatrix matrix = new RandomAccessSparseMatrix(CONTEXT, CONTEXT, (long) FOCUS * perRow);
+        float max = 0;
+        for (int i = 0; i < FOCUS; i++) {
+            final int offset = random.nextInt(CONTEXT);
+            final int step = 1 + random.nextInt(CONTEXT / perRow - 1);
+            for (int j = 0; j < perRow; j++) {
+                final float value = 0.5f + random.nextFloat() * 50;
+                matrix.add(skeleton.bookmark(i), (offset + j * step) % CONTEXT, value);
+                max = Math.max(max, value);
+            }
+        }
+        skeleton.setMatrix(matrix);
+        skeleton.setNrOfContextNodes(CONTEXT);
+        skeleton.setNrOfVertices(CONTEXT);
+        skeleton.setMax(max);
+        return skeleton;
+    }
+
+    private static Configuration config() {
+        final IntermediateOutputConfiguration.OutputBCA output = new IntermediateOutputConfiguration.OutputBCA();
+        output.setFilename(FILENAME);
+        output.setEncoding("compressed");
+        final IntermediateOutputConfiguration intermediateOutput = new IntermediateOutputConfiguration();
+        intermediateOutput.setBca(output);
+
+        final Configuration config = new Configuration();
+        config.setThreads(2);
+        config.setIntermediateOutput(intermediateOutput);
+        return config;
+    }
+
+    private static File file() {
+        return Paths.get("").toAbsolutePath().resolve(BCAWriter.OUTPUT_DIRECTORY + "/" + FILENAME + BCAWriter.FILETYPE).toFile();
+    }
+}
@@ -0,0 +1,145 @@
+package org.uu.nl.disembed.util.read;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.config.EmbeddingConfiguration;
+import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
+import org.uu.nl.disembed.util.write.BinaryEmbeddingWriter;
+import org.uu.nl.disembed.util.write.EmbeddingWriter;
+import org.uu.nl.disembed.util.write.GloVeWriter;
+import org.uu.nl.disembed.util.write.Word2VecWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the embedding formats: every writer is read back by {@link EmbeddingReader}
+ */
+public class EmbeddingReaderTest {
+
+    private static final String FILENAME = "embedding_reader_test";
+    private static final int SIZE = 5000;
+    private static final int DIMENSION = 12;
+
+    @AfterEach
+    public void deleteFiles() throws IOException {
+        final Path folder = Paths.get("").toAbsolutePath().resolve(EmbeddingWriter.OUTPUT_DIRECTORY);
+        for (String fileType : new String[] {EmbeddingWriter.FILETYPE, EmbeddingWriter.FILETYPE + EmbeddingWriter.GZIP_FILETYPE,
+                BinaryEmbeddingWriter.FILETYPE}) {
+            Files.deleteIfExists(folder.resolve(FILENAME + fileType));
+        }
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        final Embedding embedding = embedding();
+        final Configuration config = config("binary", false);
+        new BinaryEmbeddingWriter(embedding, config).write();
+
+        final Embedding read = new EmbeddingReader(2).load(file(BinaryEmbeddingWriter.FILETYPE));
+        assertSameEmbedding(embedding, read, false, 0f);
+    }
+
+    @Test
+    public void gloveRoundTrip() throws IOException {
+        final Embedding embedding = embedding();
+        new GloVeWriter(embedding, config("glove", false)).write();
+
+        final Embedding read = new EmbeddingReader(2).load(file(EmbeddingWriter.FILETYPE));
+        assertSameEmbedding(embedding, read, true, 1e-6f);
+    }
+
+    @Test
+    public void word2vecRoundTrip() throws IOException {
+        final Embedding embedding = embedding();
+        new Word2VecWriter(embedding, config("word2vec", false)).write();
+
+        final Embedding read = new EmbeddingReader(2).load(file(EmbeddingWriter.FILETYPE));
+        assertSameEmbedding(embedding, read, true, 1e-6f);
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        final Embedding embedding = embedding();
+        new GloVeWriter(embedding, config("glove", true)).write();
+
+        final Embedding read = new EmbeddingReader(2).load(file(EmbeddingWriter.FILETYPE + EmbeddingWriter.GZIP_FILETYPE));
+        assertSameEmbedding(embedding, read, true, 1e-6f);
+    }
+
+    /**
+     * @param normalized Whether the vectors are normalized when they are read, as the text reader does
+     * @param tolerance The largest relative difference of a value, the text formats round to 7 significant digits
+     */
+    private static void assertSameEmbedding(Embedding expected, Embedding actual, boolean normalized, float tolerance) {
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getDimension(), actual.getDimension());
+        assertArrayEquals(expected.getKeys(), actual.getKeys());
+
+        final float[] vector = new float[expected.getDimension()];
+        for (int i = 0; i < expected.getSize(); i++) {
+            expected.copyVector(i, vector);
+            if(normalized) Embedding.normalize(vector);
+            for (int d = 0; d < vector.length; d++) {
+                assertEquals(vector[d], actual.get(i, d), tolerance * Math.abs(vector[d]),
+                        "vector " + i + ", dimension " + d);
+            }
+        }
+    }
+
+    private static Embedding embedding() {
+        final Random random = new Random(1);
+        final String[] keys = new String[SIZE];
+        final float[][] vectors = new float[SIZE][DIMENSION];
+        for (int i = 0; i < SIZE; i++) {
+            // Keys with multibyte characters and the characters of IRIs
+            keys[i] = i % 7 == 0 ? "http://example.org/entity/" + i + "#é" : "entity_" + i;
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(7) - 3));
+            }
+        }
+        return new Embedding(keys, vectors);
+    }
+
+    private static Configuration config(String writer, boolean gzip) {
+        final EmbeddingConfiguration.PredicateWeights predicates = new EmbeddingConfiguration.PredicateWeights();
+        final EmbeddingConfiguration.OptionsBCA bca = new EmbeddingConfiguration.OptionsBCA();
+        bca.setAlpha(0.1f);
+        bca.setEpsilon(1e-4f);
+        final EmbeddingConfiguration.OptionsOpt opt = new EmbeddingConfiguration.OptionsOpt();
+        opt.setMethod("adam");
+
+        final EmbeddingConfiguration embedding = new EmbeddingConfiguration();
+        embedding.setMethod("glove");
+        embedding.setGraph("graph.hdt");
+        embedding.setDim(DIMENSION);
+        embedding.setPredicates(predicates);
+        embedding.setBca(bca);
+        embedding.setOpt(opt);
+
+        final IntermediateOutputConfiguration.OutputEmbedding output = new IntermediateOutputConfiguration.OutputEmbedding();
+        output.setFilename(FILENAME);
+        output.setWriter(writer);
+        output.setGzip(gzip);
+        final IntermediateOutputConfiguration intermediateOutput = new IntermediateOutputConfiguration();
+        intermediateOutput.setEmbedding(output);
+
+        final Configuration config = new Configuration();
+        config.setThreads(2);
+        config.setEmbedding(embedding);
+        config.setIntermediateOutput(intermediateOutput);
+        return config;
+    }
+
+    private static File file(String fileType) {
+        return Paths.get("").toAbsolutePath().resolve(EmbeddingWriter.OUTPUT_DIRECTORY + "/" + FILENAME + fileType).toFile();
+    }
+}
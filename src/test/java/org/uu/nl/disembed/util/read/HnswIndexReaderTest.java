@@ -0,0 +1,145 @@
+package org.uu.nl.disembed.util.read;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.clustering.HnswGraph;
+import org.uu.nl.disembed.clustering.TopK;
+import org.uu.nl.disembed.util.array.BigIntBuffer;
+import org.uu.nl.disembed.util.array.BigLongBuffer;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
+import org.uu.nl.disembed.util.write.HnswIndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of the HNSW index file: the graph read back has the same layers and finds the same neighbors
+ */
+public class HnswIndexReaderTest {
+
+    private static final String FILENAME = "hnsw_reader_test";
+    private static final int SIZE = 3000;
+    private static final int DIMENSION = 16;
+
+    @AfterEach
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file().toPath());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final HnswGraph.Similarity similarity = similarity();
+        final HnswGraph graph = HnswGraph.build(SIZE, keys(), similarity, 8, 50, 50, 2);
+        new HnswIndexWriter(graph, config()).write();
+
+        final HnswGraph read = new HnswIndexReader().load(file());
+        assertEquals(graph.size(), read.size());
+        assertArrayEquals(graph.keys(), read.keys());
+        assertEquals(graph.getM(), read.getM());
+        assertEquals(graph.getEf(), read.getEf());
+        assertEquals(graph.getEfConstruction(), read.getEfConstruction());
+        assertEquals(graph.getEntryPoint(), read.getEntryPoint());
+        assertEquals(graph.levels(), read.levels());
+        for (int level = 0; level < graph.levels(); level++) {
+            assertSameNodes(graph.nodes(level), read.nodes(level));
+            assertSameOffsets(graph.offsets(level), read.offsets(level));
+            assertSameLinks(graph.links(level), read.links(level));
+        }
+
+        final TopK expected = new TopK(5), actual = new TopK(5);
+        final HnswGraph.Search search = graph.search(), readSearch = read.search();
+        for (int query = 0; query < SIZE; query++) {
+            graph.nearest(query, similarity, search, expected);
+            read.nearest(query, similarity, readSearch, actual);
+            assertEquals(expected.size(), actual.size());
+            for (int h = 0; h < expected.size(); h++) {
+                assertEquals(expected.index(h), actual.index(h), "neighbor " + h + " of " + query);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        new HnswIndexWriter(HnswGraph.build(SIZE, keys(), similarity(), 8, 50, 50, 2), config()).write();
+        try (FileChannel channel = FileChannel.open(file().toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        assertThrows(IOException.class, () -> new HnswIndexReader().load(file()));
+    }
+
+    private static void assertSameNodes(IntBuffer expected, IntBuffer actual) {
+        if(expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.limit(), actual.limit());
+        for (int i = 0; i < expected.limit(); i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static void assertSameOffsets(BigLongBuffer expected, BigLongBuffer actual) {
+        assertEquals(expected.size(), actual.size());
+        for (long i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static void assertSameLinks(BigIntBuffer expected, BigIntBuffer actual) {
+        assertEquals(expected.size(), actual.size());
+        for (long i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static String[] keys() {
+        final String[] keys = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = i % 7 == 0 ? "http://example.org/entity/" + i + "#é" : "entity_" + i;
+        }
+        return keys;
+    }
+
+    private static HnswGraph.Similarity similarity() {
+        final Random random = new Random(1);
+        final float[][] vectors = new float[SIZE][DIMENSION];
+        for (float[] vector : vectors) {
+            float norm = 0;
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+                norm += vector[d] * vector[d];
+            }
+            norm = (float) Math.sqrt(norm);
+            for (int d = 0; d < DIMENSION; d++) vector[d] /= norm;
+        }
+        return (a, b) -> {
+            float dot = 0;
+            for (int d = 0; d < DIMENSION; d++) dot += vectors[a][d] * vectors[b][d];
+            return dot;
+        };
+    }
+
+    private static Configuration config() {
+        final IntermediateOutputConfiguration.OutputHnswIndex output = new IntermediateOutputConfiguration.OutputHnswIndex();
+        output.setFilename(FILENAME);
+        final IntermediateOutputConfiguration intermediateOutput = new IntermediateOutputConfiguration();
+        intermediateOutput.setHnsw(output);
+
+        final Configuration config = new Configuration();
+        config.setIntermediateOutput(intermediateOutput);
+        return config;
+    }
+
+    private static File file() {
+        return Paths.get("").toAbsolutePath().resolve(HnswIndexWriter.OUTPUT_DIRECTORY + "/" + FILENAME + HnswIndexWriter.FILETYPE).toFile();
+    }
+}
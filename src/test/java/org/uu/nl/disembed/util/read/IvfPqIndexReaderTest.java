@@ -0,0 +1,102 @@
+package org.uu.nl.disembed.util.read;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.uu.nl.disembed.clustering.IvfPqIndex;
+import org.uu.nl.disembed.embedding.opt.Embedding;
+import org.uu.nl.disembed.util.array.BigByteBuffer;
+import org.uu.nl.disembed.util.config.Configuration;
+import org.uu.nl.disembed.util.config.IntermediateOutputConfiguration;
+import org.uu.nl.disembed.util.write.IvfPqIndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of the IVF-PQ index file, and the validation of damaged files
+ */
+public class IvfPqIndexReaderTest {
+
+    private static final String FILENAME = "ivfpq_reader_test";
+    private static final int SIZE = 3000;
+    private static final int DIMENSION = 16;
+
+    @AfterEach
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file().toPath());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final IvfPqIndex index = IvfPqIndex.build(embedding(), 32, 4, 2);
+        new IvfPqIndexWriter(index, config()).write();
+
+        final IvfPqIndex read = new IvfPqIndexReader().load(file());
+        assertEquals(index.dimension(), read.dimension());
+        assertEquals(index.lists(), read.lists());
+        assertEquals(index.subspaces(), read.subspaces());
+        assertEquals(index.codebookSize(), read.codebookSize());
+        assertEquals(index.size(), read.size());
+        assertArrayEquals(index.centroids(), read.centroids(), 0f);
+        assertArrayEquals(index.codebooks(), read.codebooks(), 0f);
+        assertArrayEquals(index.listStart(), read.listStart());
+        assertArrayEquals(index.ids(), read.ids());
+
+        final BigByteBuffer codes = index.codes(), readCodes = read.codes();
+        assertEquals(codes.size(), readCodes.size());
+        for (long i = 0; i < codes.size(); i++) {
+            assertEquals(codes.get(i), readCodes.get(i), "code " + i);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        new IvfPqIndexWriter(IvfPqIndex.build(embedding(), 32, 4, 2), config()).write();
+        try (FileChannel channel = FileChannel.open(file().toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        assertThrows(IOException.class, () -> new IvfPqIndexReader().load(file()));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Files.createDirectories(file().toPath().getParent());
+        Files.write(file().toPath(), new byte[1024]);
+        assertThrows(IOException.class, () -> new IvfPqIndexReader().load(file()));
+    }
+
+    private static Embedding embedding() {
+        final Random random = new Random(1);
+        final String[] keys = new String[SIZE];
+        final float[][] vectors = new float[SIZE][DIMENSION];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = "entity_" + i;
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = (float) random.nextGaussian();
+            }
+        }
+        return new Embedding(keys, vectors);
+    }
+
+    private static Configuration config() {
+        final IntermediateOutputConfiguration.OutputIvfPqIndex output = new IntermediateOutputConfiguration.OutputIvfPqIndex();
+        output.setFilename(FILENAME);
+        final IntermediateOutputConfiguration intermediateOutput = new IntermediateOutputConfiguration();
+        intermediateOutput.setIvfpq(output);
+
+        final Configuration config = new Configuration();
+        config.setIntermediateOutput(intermediateOutput);
+        return config;
+    }
+
+    private static File file() {
+        return Paths.get("").toAbsolutePath().resolve(IvfPqIndexWriter.OUTPUT_DIRECTORY + "/" + FILENAME + IvfPqIndexWriter.FILETYPE).toFile();
+    }
+}